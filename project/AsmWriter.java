@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * AsmWriter
+ *
+ * The writer the generated code goes through.  Text is put into a byte
+ * buffer that is reused for the whole compilation and handed to a channel
+ * (a FileChannel for .asm files) in large blocks.  Printing a string or an
+ * int allocates nothing: ASCII characters are stored as they are, ints are
+ * formatted into the buffer, and the bytes of opcodes and registers are
+ * kept in tables shared by all writers, indexed by ordinal().
+ *
+ * The bytes written are the ones a PrintWriter would write with the
+ * default charset and line separator.  Like a PrintWriter, an AsmWriter
+ * does not throw on errors of the channel; checkError() tells whether
+ * there were any.
+ */
+class AsmWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // the bytes of the mnemonics and of the register names, by ordinal()
+    private static final byte[][] OPCODES = new byte[Opcode.values().length][];
+    private static final byte[][] REGISTERS = new byte[Register.values().length][];
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+    private static final byte[] SPACES = new byte[64];
+
+    static {
+        for (Opcode op : Opcode.values()) {
+            String s = op.mnemonic();
+            OPCODES[op.ordinal()] = s == null ? new byte[0] : s.getBytes(Charset.defaultCharset());
+        }
+        for (Register r : Register.values()) {
+            REGISTERS[r.ordinal()] = r.toString().getBytes(Charset.defaultCharset());
+        }
+        Arrays.fill(SPACES, (byte) ' ');
+    }
+
+    private WritableByteChannel channel;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private ByteBuffer wrapper = ByteBuffer.wrap(buf);
+    private int count = 0;
+    private boolean trouble = false;
+
+    /**
+     * Creates a writer handing its bytes to channel.
+     */
+    public AsmWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a writer to out.
+     */
+    public AsmWriter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    /**
+     * Creates (or truncates) the file named filename and returns a writer
+     * to it.
+     */
+    public static AsmWriter open(String filename) throws IOException {
+        return new AsmWriter(FileChannel.open(Paths.get(filename),
+                                              StandardOpenOption.WRITE,
+                                              StandardOpenOption.CREATE,
+                                              StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Prints s.
+     */
+    public void print(String s) {
+        int n = s.length();
+        if (count + n > buf.length) {
+            flushBuffer();
+            if (n > buf.length) {
+                writeEncoded(s);
+                return;
+            }
+        }
+        int start = count;
+        for (int k = 0; k < n; k++) {
+            char c = s.charAt(k);
+            if (c >= 0x80) {
+                count = start;
+                writeEncoded(s);
+                return;
+            }
+            buf[count++] = (byte) c;
+        }
+    }
+
+    /**
+     * Prints the mnemonic of op.
+     */
+    public void print(Opcode op) {
+        byte[] bytes = OPCODES[op.ordinal()];
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Prints the name of r, e.g. "$t0".
+     */
+    public void print(Register r) {
+        byte[] bytes = REGISTERS[r.ordinal()];
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Prints n in decimal.
+     */
+    public void print(int n) {
+        if (count + 11 > buf.length) {
+            flushBuffer();
+        }
+        if (n == Integer.MIN_VALUE) {
+            print("-2147483648");
+            return;
+        }
+        if (n < 0) {
+            buf[count++] = '-';
+            n = -n;
+        }
+        int end = count + digits(n);
+        int k = end;
+        do {
+            buf[--k] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        count = end;
+    }
+
+    public void print(char c) {
+        if (c >= 0x80) {
+            writeEncoded(String.valueOf(c));
+            return;
+        }
+        if (count == buf.length) {
+            flushBuffer();
+        }
+        buf[count++] = (byte) c;
+    }
+
+    /**
+     * Prints n spaces (none if n is not positive).
+     */
+    public void spaces(int n) {
+        while (n > SPACES.length) {
+            write(SPACES, 0, SPACES.length);
+            n -= SPACES.length;
+        }
+        if (n > 0) {
+            write(SPACES, 0, n);
+        }
+    }
+
+    /**
+     * Ends the line.
+     */
+    public void println() {
+        write(NEWLINE, 0, NEWLINE.length);
+    }
+
+    public void write(byte[] b, int off, int len) {
+        if (count + len > buf.length) {
+            flushBuffer();
+            if (len > buf.length) {
+                writeOut(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Hands the buffered bytes to the channel.
+     */
+    public void flush() {
+        flushBuffer();
+    }
+
+    /**
+     * Flushes and closes the channel.
+     */
+    public void close() {
+        flushBuffer();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            trouble = true;
+        }
+    }
+
+    /**
+     * Flushes and returns true if there has been an error on the channel.
+     */
+    public boolean checkError() {
+        flushBuffer();
+        return trouble;
+    }
+
+    private static int digits(int n) {
+        int d = 1;
+        while (n >= 10) {
+            n /= 10;
+            d++;
+        }
+        return d;
+    }
+
+    private void writeEncoded(String s) {
+        byte[] bytes = s.getBytes(Charset.defaultCharset());
+        write(bytes, 0, bytes.length);
+    }
+
+    private void flushBuffer() {
+        if (count > 0) {
+            wrapper.clear().limit(count);
+            writeOut(wrapper);
+            count = 0;
+        }
+    }
+
+    private void writeOut(ByteBuffer bytes) {
+        if (trouble) {
+            return;
+        }
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException ex) {
+            trouble = true;
+        }
+    }
+}
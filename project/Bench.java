@@ -0,0 +1,350 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Bench
+ *
+ * Benchmarks the stages of the compiler one at a time:
+ *     lex        Yylex.next_token over the whole input (also in MB/s)
+ *     parse      scanning and CmmParser.parse
+ *     check      nameAnalysis and typeCheck of a freshly parsed tree
+ *     codegen    codeGen of a freshly checked tree and printing the code
+ *                into a null writer
+ *     symtable   SymTable addDecl/lookupLocal/lookupGlobal at several
+ *                scope depths (independent of the inputs)
+ * The inputs are the files given on the command line and programs of a
+ * medium and a huge size generated by CmmGen.  Work done to prepare an operation
+ * (e.g. parsing before a check) is not counted.
+ *
+ * Every benchmark is run for some warm-up iterations and then for some
+ * measured ones; an iteration repeats the operation until ITERATION_NANOS
+ * have passed.  The score is the mean time per operation with the
+ * half-width of its 99% confidence interval.
+ *
+ * Results are printed as a table and may be written to a file with -out.
+ * A file written by an earlier run (e.g. of another commit) can be given
+ * with -baseline to print the change of every score against it.
+ *
+ * usage: java Bench [-warmup N] [-iterations N] [-only STAGE]
+ *                   [-out FILE] [-baseline FILE] [file.cmm ...]
+ */
+public class Bench {
+    private static final long ITERATION_NANOS = 200L * 1000 * 1000;
+
+    // sizes (number of functions) of the generated inputs
+    private static final int MEDIUM = 100;
+    private static final int HUGE = 3000;
+    private static final long SEED = 536;
+
+    // scope depths for the symtable benchmark
+    private static final int[] DEPTHS = { 1, 8, 64 };
+    private static final int NAMES_PER_SCOPE = 16;
+
+    // keeps the results of benchmarked code alive
+    private static volatile long sink;
+
+    private int warmup = 3;
+    private int iterations = 5;
+    private String only = null;
+    private List<Result> results = new ArrayList<Result>();
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench();
+        String out = null;
+        String baseline = null;
+
+        int k = 0;
+        while (k < args.length && args[k].startsWith("-")) {
+            String opt = args[k++];
+            if (k == args.length) {
+                usage("missing value for " + opt);
+            }
+            String value = args[k++];
+            if (opt.equals("-warmup")) {
+                bench.warmup = Integer.parseInt(value);
+            } else if (opt.equals("-iterations")) {
+                bench.iterations = Integer.parseInt(value);
+            } else if (opt.equals("-only")) {
+                bench.only = value;
+            } else if (opt.equals("-out")) {
+                out = value;
+            } else if (opt.equals("-baseline")) {
+                baseline = value;
+            } else {
+                usage("unknown option " + opt);
+            }
+        }
+
+        List<Input> inputs = new ArrayList<Input>();
+        for (; k < args.length; k++) {
+            Path file = Paths.get(args[k]);
+            inputs.add(new Input(file.getFileName().toString(),
+                                 new String(Files.readAllBytes(file),
+                                            StandardCharsets.UTF_8)));
+        }
+        inputs.add(new Input("generated-" + MEDIUM, generate(MEDIUM)));
+        inputs.add(new Input("generated-" + HUGE, generate(HUGE)));
+
+        Map<String,Double> base = baseline == null ? null : readResults(baseline);
+        bench.runAll(inputs);
+        bench.print(System.out, base);
+        if (out != null) {
+            PrintStream p = new PrintStream(new FileOutputStream(out));
+            bench.print(p, null);
+            p.close();
+        }
+    }
+
+    /**
+     * Runs every benchmark on every input.
+     */
+    private void runAll(List<Input> inputs) throws Exception {
+        Compilation comp = new Compilation(new AsmWriter(OutputStream.nullOutputStream()),
+                                           new PrintStream(OutputStream.nullOutputStream()),
+                                           new PrintStream(OutputStream.nullOutputStream()));
+        comp.begin();
+        try {
+            for (Input in : inputs) {
+                run("lex", in, new Stage() {
+                    public long run(Input in) throws Exception {
+                        long start = System.nanoTime();
+                        Yylex lexer = new Yylex(new StringReader(in.source));
+                        long n = 0;
+                        while (lexer.next_token().sym != sym.EOF) {
+                            n++;
+                        }
+                        long end = System.nanoTime();
+                        sink += n;
+                        return end - start;
+                    }
+                });
+                run("parse", in, new Stage() {
+                    public long run(Input in) throws Exception {
+                        long start = System.nanoTime();
+                        ProgramNode root = parse(in.source);
+                        long end = System.nanoTime();
+                        sink += root.hashCode();
+                        return end - start;
+                    }
+                });
+                run("check", in, new Stage() {
+                    public long run(Input in) throws Exception {
+                        ProgramNode root = parse(in.source);
+                        long start = System.nanoTime();
+                        root.nameAnalysis();
+                        root.typeCheck();
+                        return System.nanoTime() - start;
+                    }
+                });
+                run("codegen", in, new Stage() {
+                    public long run(Input in) throws Exception {
+                        ProgramNode root = parse(in.source);
+                        root.nameAnalysis();
+                        root.typeCheck();
+                        Compilation comp = Compilation.current();
+                        comp.mips().clear();
+                        long start = System.nanoTime();
+                        root.codeGen();
+                        comp.mips().print(comp.code());
+                        comp.code().flush();
+                        return System.nanoTime() - start;
+                    }
+                });
+            }
+
+            for (final int depth : DEPTHS) {
+                run("symtable", new Input("depth-" + depth, ""), new Stage() {
+                    public long run(Input in) {
+                        return symTable(depth);
+                    }
+                });
+            }
+        } finally {
+            comp.end();
+        }
+    }
+
+    /**
+     * Builds a table of the given depth, then adds a scope, declares names
+     * in it, looks them up locally and looks up names of the outermost
+     * scope globally.  Returns the time taken without the building.
+     */
+    private static long symTable(int depth) {
+        SymInfo info = new SymInfo(new IntType());
+        SymTable table = new SymTable();
+        for (int d = 0; d < depth; d++) {
+            if (d > 0) {
+                table.addScope();
+            }
+            for (int k = 0; k < NAMES_PER_SCOPE; k++) {
+                table.addDecl("v" + d + "_" + k, info);
+            }
+        }
+        String[] outer = new String[NAMES_PER_SCOPE];
+        String[] inner = new String[NAMES_PER_SCOPE];
+        for (int k = 0; k < NAMES_PER_SCOPE; k++) {
+            outer[k] = "v0_" + k;
+            inner[k] = "w" + k;
+        }
+
+        long start = System.nanoTime();
+        long found = 0;
+        for (int rep = 0; rep < 100; rep++) {
+            table.addScope();
+            for (String name : inner) {
+                table.addDecl(name, info);
+            }
+            for (String name : inner) {
+                if (table.lookupLocal(name) != null) {
+                    found++;
+                }
+            }
+            for (String name : outer) {
+                if (table.lookupGlobal(name) != null) {
+                    found++;
+                }
+            }
+            table.removeScope();
+        }
+        long end = System.nanoTime();
+        sink += found;
+        return end - start;
+    }
+
+    private static ProgramNode parse(String source) throws Exception {
+        CmmParser parser = new CmmParser(new Yylex(new StringReader(source)));
+        return (ProgramNode) parser.parse().value;
+    }
+
+    /**
+     * An operation to benchmark; returns the time taken by the part that
+     * is measured.
+     */
+    private interface Stage {
+        long run(Input in) throws Exception;
+    }
+
+    private static class Input {
+        String name;
+        String source;
+        int bytes;
+
+        Input(String name, String source) {
+            this.name = name;
+            this.source = source;
+            this.bytes = source.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    private static class Result {
+        String stage;
+        Input input;
+        double nanosPerOp;
+        double error;
+    }
+
+    private void run(String name, Input in, Stage stage) throws Exception {
+        if (only != null && !only.equals(name)) {
+            return;
+        }
+        for (int k = 0; k < warmup; k++) {
+            iteration(in, stage);
+        }
+        double[] scores = new double[iterations];
+        for (int k = 0; k < iterations; k++) {
+            scores[k] = iteration(in, stage);
+        }
+
+        double mean = 0;
+        for (double s : scores) {
+            mean += s;
+        }
+        mean /= scores.length;
+        double var = 0;
+        for (double s : scores) {
+            var += (s - mean) * (s - mean);
+        }
+        var = scores.length > 1 ? var / (scores.length - 1) : 0;
+
+        Result r = new Result();
+        r.stage = name;
+        r.input = in;
+        r.nanosPerOp = mean;
+        r.error = 2.576 * Math.sqrt(var / scores.length);
+        results.add(r);
+        System.err.println(String.format("%-9s %-20s done", name, in.name));
+    }
+
+    /**
+     * Runs stage at least once and until ITERATION_NANOS have passed,
+     * preparation included; returns the mean measured time per operation.
+     */
+    private static double iteration(Input in, Stage stage) throws Exception {
+        long start = System.nanoTime();
+        long nanos = 0;
+        long ops = 0;
+        do {
+            nanos += stage.run(in);
+            ops++;
+        } while (System.nanoTime() - start < ITERATION_NANOS);
+        return (double) nanos / ops;
+    }
+
+    /**
+     * Prints the results, with their change against base if it is not
+     * null.
+     */
+    private void print(PrintStream p, Map<String,Double> base) {
+        p.println(String.format("%-9s %-20s %10s %14s %12s %10s%s",
+                                "#stage", "input", "bytes", "ns/op", "error",
+                                "MB/s", base == null ? "" : "     change"));
+        for (Result r : results) {
+            String mbs = r.stage.equals("lex")
+                ? String.format("%.2f", r.input.bytes / (r.nanosPerOp / 1e9) / 1e6)
+                : "-";
+            String change = "";
+            if (base != null) {
+                Double old = base.get(r.stage + " " + r.input.name);
+                change = old == null ? "  (new)"
+                    : String.format("  %+8.1f%%", 100 * (r.nanosPerOp - old) / old);
+            }
+            p.println(String.format("%-9s %-20s %10d %14.1f %12.1f %10s%s",
+                                    r.stage, r.input.name, r.input.bytes,
+                                    r.nanosPerOp, r.error, mbs, change));
+        }
+    }
+
+    /**
+     * Reads the ns/op scores of a result file, keyed by stage and input.
+     */
+    private static Map<String,Double> readResults(String file) throws IOException {
+        Map<String,Double> scores = new HashMap<String,Double>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+            String[] f = line.trim().split("\\s+");
+            scores.put(f[0] + " " + f[1], Double.parseDouble(f[3]));
+        }
+        return scores;
+    }
+
+    /**
+     * Returns a valid program of n functions made by CmmGen.  The seed is
+     * fixed so that runs on different commits compile the same programs.
+     */
+    static String generate(int n) {
+        CmmGen gen = new CmmGen(SEED);
+        gen.functions = n;
+        return gen.generate();
+    }
+
+    private static void usage(String msg) {
+        System.err.println(msg);
+        System.err.println("usage: java Bench [-warmup N] [-iterations N] [-only STAGE]");
+        System.err.println("                  [-out FILE] [-baseline FILE] [file.cmm ...]");
+        System.exit(-1);
+    }
+}
@@ -0,0 +1,527 @@
+import java.util.*;
+
+/**
+ * Cfg
+ *
+ * The control-flow graph of a function body, built from the AST by
+ * FnDeclNode.buildCfg().  A basic block is a run of statements that are
+ * executed one after the other -- assignments, increments, reads, writes
+ * and calls -- ended by a terminator:
+ *     GOTO    go on with the only successor
+ *     BRANCH  evaluate cond(b), and go on with successor 0 if it is true
+ *             and successor 1 if it is false
+ *     RETURN  leave the function; the last statement of the block is the
+ *             ReturnStmtNode, unless the block falls off the end of the body
+ * The condition of an if or if-else statement ends the block it is in, and
+ * the condition of a while is a block by itself, the header of the loop.
+ *
+ * Blocks are numbered in the order of the source, so that every edge goes
+ * to a later block except the back edge from the end of a loop body to the
+ * loop header (C-- has no goto or break), and block 0 is the entry.
+ * Everything is kept in arrays of ints indexed by block or statement, the
+ * edges to predecessors and the children in the dominator tree in the
+ * compressed form of an index array into one array of neighbours.
+ *
+ * Dominators are found while the graph is built.  All the edges into a
+ * block are known when it is started, except for the back edge into a
+ * loop header, which does not change its dominator.  A block with one edge
+ * into it is dominated by the block the edge comes from; a block with more
+ * is the join after an if or if-else statement and is dominated by the
+ * block that ends with the condition.  So building takes time linear in
+ * the size of the body.  Blocks that cannot be reached from the entry --
+ * after a return -- are not in the dominator tree.
+ *
+ * The loop nesting forest has a loop for every while statement: its
+ * header and the blocks of its body, which are numbered consecutively.
+ * Loops are numbered in the order of their headers, so an outer loop comes
+ * before the loops nested in it.
+ */
+class Cfg {
+    // kinds of terminators
+    public static final byte GOTO = 0;
+    public static final byte BRANCH = 1;
+    public static final byte RETURN = 2;
+
+    private static final String[] KIND_NAMES = { "goto", "branch", "return" };
+
+    // blocks
+    private int numBlocks = 0;
+    private byte[] kinds = new byte[16];
+    private int[] firsts = new int[16];      // statements first..end-1
+    private int[] ends = new int[16];
+    private int[] succs = new int[32];       // successors 2b and 2b+1
+    private ExpNode[] conds = new ExpNode[16];
+    private StmtNode[] owners = new StmtNode[16];
+    private int[] idoms = new int[16];
+    private int[] blockLoops = new int[16];
+
+    // statements
+    private int numStmts = 0;
+    private StmtNode[] stmts = new StmtNode[16];
+
+    // predecessors of block b: preds[predStart[b]] .. preds[predStart[b+1]-1]
+    private int[] predStart;
+    private int[] preds;
+
+    // dominator tree: children of block b likewise in domChildren, and
+    // the preorder and postorder numbers and depth of every block in it
+    private int[] domStart;
+    private int[] domChildren;
+    private int[] domPre;
+    private int[] domPost;
+    private int[] domDepth;
+
+    // loops
+    private int numLoops = 0;
+    private int[] loopHeaders = new int[4];
+    private int[] loopEnds = new int[4];
+    private int[] loopParents = new int[4];
+    private int[] loopDepths = new int[4];
+    private WhileStmtNode[] loopStmts = new WhileStmtNode[4];
+
+    // while building: the open block (-1 if none), the edges into the next
+    // block started, and the loops being built
+    private int current;
+    private int[] pending = new int[8];
+    private int numPending = 0;
+    private int[] loopStack = new int[4];
+    private int loopTop = 0;
+    private boolean finished = false;
+
+    public Cfg() {
+        current = newBlock(-1);
+    }
+
+    // **********************************************************************
+    // building, by the buildCfg methods of the statements in order
+    // **********************************************************************
+
+    /**
+     * Adds the statement to the open block.  A statement after one that
+     * control never gets past starts a block that cannot be reached.
+     */
+    public void add(StmtNode stmt) {
+        if (current < 0) {
+            current = newBlock(-1);
+        }
+        if (numStmts == stmts.length) {
+            stmts = Arrays.copyOf(stmts, 2 * numStmts);
+        }
+        stmts[numStmts++] = stmt;
+        ends[current] = numStmts;
+    }
+
+    /**
+     * Ends the open block with a branch on cond, the condition of the
+     * statement owner, and returns the block.  Its successors are given by
+     * edge().
+     */
+    public int branch(ExpNode cond, StmtNode owner) {
+        if (current < 0) {
+            current = newBlock(-1);
+        }
+        int b = current;
+        kinds[b] = BRANCH;
+        conds[b] = cond;
+        owners[b] = owner;
+        current = -1;
+        return b;
+    }
+
+    /**
+     * Ends the open block with the return statement.
+     */
+    public void ret(ReturnStmtNode stmt) {
+        add(stmt);
+        kinds[current] = RETURN;
+        current = -1;
+    }
+
+    /**
+     * Ends the open block, if any, with a goto and returns it, or -1 if
+     * there is none; its successor is given by edge() or backEdge().
+     */
+    public int close() {
+        int b = current;
+        current = -1;
+        return b;
+    }
+
+    /**
+     * Makes successor k of block b (nothing if b is -1) the next block
+     * started.
+     */
+    public void edge(int b, int k) {
+        if (b < 0) {
+            return;
+        }
+        if (numPending == pending.length) {
+            pending = Arrays.copyOf(pending, 2 * numPending);
+        }
+        pending[numPending++] = 2 * b + k;
+    }
+
+    /**
+     * Makes the header of a loop the successor of block b, the end of the
+     * loop's body (nothing if b is -1).
+     */
+    public void backEdge(int b, int header) {
+        if (b >= 0) {
+            succs[2 * b] = header;
+        }
+    }
+
+    /**
+     * Starts a new block, the target of the edges given since the last one
+     * was started, and returns it.  If there is more than one such edge,
+     * the new block is the join after an if or if-else statement and dom,
+     * the block ending with its condition, dominates it.
+     */
+    public int start(int dom) {
+        int idom = -1;
+        if (numPending == 1) {
+            idom = pending[0] / 2;
+        } else if (numPending > 1) {
+            idom = dom;
+        }
+        current = newBlock(idom);
+        for (int k = 0; k < numPending; k++) {
+            succs[pending[k]] = current;
+        }
+        numPending = 0;
+        return current;
+    }
+
+    /**
+     * Starts the loop of the while statement stmt, whose header is block
+     * header; the blocks up to endLoop() are its body.
+     */
+    public void beginLoop(int header, WhileStmtNode stmt) {
+        if (numLoops == loopHeaders.length) {
+            int n = 2 * numLoops;
+            loopHeaders = Arrays.copyOf(loopHeaders, n);
+            loopEnds = Arrays.copyOf(loopEnds, n);
+            loopParents = Arrays.copyOf(loopParents, n);
+            loopDepths = Arrays.copyOf(loopDepths, n);
+            loopStmts = Arrays.copyOf(loopStmts, n);
+        }
+        int l = numLoops++;
+        loopHeaders[l] = header;
+        loopParents[l] = loopTop == 0 ? -1 : loopStack[loopTop - 1];
+        loopDepths[l] = loopTop + 1;
+        loopStmts[l] = stmt;
+        blockLoops[header] = l;
+        if (loopTop == loopStack.length) {
+            loopStack = Arrays.copyOf(loopStack, 2 * loopTop);
+        }
+        loopStack[loopTop++] = l;
+    }
+
+    public void endLoop() {
+        int l = loopStack[--loopTop];
+        loopEnds[l] = numBlocks;
+    }
+
+    /**
+     * Ends building: the open block falls off the end of the body and
+     * returns.  Computes the predecessors and the dominator tree.
+     */
+    public void finish() {
+        if (current >= 0) {
+            kinds[current] = RETURN;
+            current = -1;
+        }
+        finished = true;
+
+        // predecessors, counted and then filled in from the back
+        predStart = new int[numBlocks + 1];
+        for (int b = 0; b < numBlocks; b++) {
+            for (int k = 0; k < numSuccs(b); k++) {
+                predStart[succs[2 * b + k] + 1]++;
+            }
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            predStart[b + 1] += predStart[b];
+        }
+        preds = new int[predStart[numBlocks]];
+        int[] fill = Arrays.copyOf(predStart, numBlocks);
+        for (int b = 0; b < numBlocks; b++) {
+            for (int k = 0; k < numSuccs(b); k++) {
+                int s = succs[2 * b + k];
+                preds[fill[s]++] = b;
+            }
+        }
+
+        // dominator tree; a dominator always comes before the block
+        domStart = new int[numBlocks + 1];
+        for (int b = 1; b < numBlocks; b++) {
+            if (idoms[b] >= 0) {
+                domStart[idoms[b] + 1]++;
+            }
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            domStart[b + 1] += domStart[b];
+        }
+        domChildren = new int[domStart[numBlocks]];
+        fill = Arrays.copyOf(domStart, numBlocks);
+        domDepth = new int[numBlocks];
+        for (int b = 1; b < numBlocks; b++) {
+            if (idoms[b] >= 0) {
+                domChildren[fill[idoms[b]]++] = b;
+                domDepth[b] = domDepth[idoms[b]] + 1;
+            }
+        }
+        numberDomTree();
+    }
+
+    /**
+     * Numbers the dominator tree in preorder and postorder, without
+     * recursion.  Blocks not in the tree get -1.
+     */
+    private void numberDomTree() {
+        domPre = new int[numBlocks];
+        domPost = new int[numBlocks];
+        Arrays.fill(domPre, -1);
+        Arrays.fill(domPost, -1);
+        int[] stack = new int[numBlocks];
+        int[] next = new int[numBlocks];    // next child to visit
+        int top = 0;
+        int pre = 0;
+        int post = 0;
+        stack[top++] = 0;
+        domPre[0] = pre++;
+        next[0] = domStart[0];
+        while (top > 0) {
+            int b = stack[top - 1];
+            if (next[b] < domStart[b + 1]) {
+                int c = domChildren[next[b]++];
+                domPre[c] = pre++;
+                next[c] = domStart[c];
+                stack[top++] = c;
+            } else {
+                domPost[b] = post++;
+                top--;
+            }
+        }
+    }
+
+    private int newBlock(int idom) {
+        if (numBlocks == kinds.length) {
+            int n = 2 * numBlocks;
+            kinds = Arrays.copyOf(kinds, n);
+            firsts = Arrays.copyOf(firsts, n);
+            ends = Arrays.copyOf(ends, n);
+            succs = Arrays.copyOf(succs, 2 * n);
+            conds = Arrays.copyOf(conds, n);
+            owners = Arrays.copyOf(owners, n);
+            idoms = Arrays.copyOf(idoms, n);
+            blockLoops = Arrays.copyOf(blockLoops, n);
+        }
+        int b = numBlocks++;
+        kinds[b] = GOTO;
+        firsts[b] = numStmts;
+        ends[b] = numStmts;
+        succs[2 * b] = -1;
+        succs[2 * b + 1] = -1;
+        conds[b] = null;
+        owners[b] = null;
+        idoms[b] = idom;
+        blockLoops[b] = loopTop == 0 ? -1 : loopStack[loopTop - 1];
+        return b;
+    }
+
+    // **********************************************************************
+    // blocks
+    // **********************************************************************
+
+    public int numBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * Returns the kind of terminator of block b: GOTO, BRANCH or RETURN.
+     */
+    public byte kind(int b) {
+        return kinds[b];
+    }
+
+    /**
+     * Returns the condition a BRANCH block ends with, and the if, if-else
+     * or while statement it is the condition of.
+     */
+    public ExpNode cond(int b) {
+        return conds[b];
+    }
+
+    public StmtNode owner(int b) {
+        return owners[b];
+    }
+
+    /**
+     * The statements of block b are stmt(first(b)) .. stmt(end(b) - 1).
+     */
+    public int first(int b) {
+        return firsts[b];
+    }
+
+    public int end(int b) {
+        return ends[b];
+    }
+
+    public StmtNode stmt(int i) {
+        return stmts[i];
+    }
+
+    public int numStmts() {
+        return numStmts;
+    }
+
+    // **********************************************************************
+    // edges
+    // **********************************************************************
+
+    public int numSuccs(int b) {
+        switch (kinds[b]) {
+        case GOTO:
+            return succs[2 * b] < 0 ? 0 : 1;
+        case BRANCH:
+            return 2;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Returns successor k of block b; for a BRANCH block, 0 is where the
+     * condition being true goes.
+     */
+    public int succ(int b, int k) {
+        return succs[2 * b + k];
+    }
+
+    public int numPreds(int b) {
+        return predStart[b + 1] - predStart[b];
+    }
+
+    public int pred(int b, int k) {
+        return preds[predStart[b] + k];
+    }
+
+    /**
+     * Returns true if the edge from block b to its successor s goes back
+     * to the header of a loop.
+     */
+    public boolean isBackEdge(int b, int s) {
+        return s <= b;
+    }
+
+    // **********************************************************************
+    // dominators
+    // **********************************************************************
+
+    /**
+     * Returns the immediate dominator of block b, or -1 for the entry and
+     * the blocks that cannot be reached.
+     */
+    public int idom(int b) {
+        return idoms[b];
+    }
+
+    public boolean isReachable(int b) {
+        return domPre[b] >= 0;
+    }
+
+    /**
+     * Returns true if block a dominates block b (every block dominates
+     * itself).
+     */
+    public boolean dominates(int a, int b) {
+        return domPre[a] >= 0 && domPre[b] >= 0
+            && domPre[a] <= domPre[b] && domPost[b] <= domPost[a];
+    }
+
+    public int numDomChildren(int b) {
+        return domStart[b + 1] - domStart[b];
+    }
+
+    public int domChild(int b, int k) {
+        return domChildren[domStart[b] + k];
+    }
+
+    /**
+     * Returns the depth of block b in the dominator tree; the entry is 0.
+     */
+    public int domDepth(int b) {
+        return domDepth[b];
+    }
+
+    // **********************************************************************
+    // loops
+    // **********************************************************************
+
+    public int numLoops() {
+        return numLoops;
+    }
+
+    /**
+     * The blocks of loop l are loopHeader(l) .. loopEnd(l) - 1; the block
+     * loopEnd(l) is where the loop exits to.
+     */
+    public int loopHeader(int l) {
+        return loopHeaders[l];
+    }
+
+    public int loopEnd(int l) {
+        return loopEnds[l];
+    }
+
+    /**
+     * Returns the loop that loop l is nested in, or -1 for an outermost
+     * loop, and the number of loops l is in, counting itself.
+     */
+    public int loopParent(int l) {
+        return loopParents[l];
+    }
+
+    public int loopDepth(int l) {
+        return loopDepths[l];
+    }
+
+    public WhileStmtNode loopStmt(int l) {
+        return loopStmts[l];
+    }
+
+    /**
+     * Returns the innermost loop block b is in, or -1 if none.
+     */
+    public int loopOf(int b) {
+        return blockLoops[b];
+    }
+
+    public boolean inLoop(int b, int l) {
+        return b >= loopHeaders[l] && b < loopEnds[l];
+    }
+
+    /**
+     * Returns the graph as text, a line per block with its terminator,
+     * successors, immediate dominator and loop, for debugging.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int b = 0; b < numBlocks; b++) {
+            sb.append("B").append(b).append(": ").append(ends[b] - firsts[b])
+              .append(" stmts, ").append(KIND_NAMES[kinds[b]]);
+            for (int k = 0; k < numSuccs(b); k++) {
+                sb.append(" B").append(succs[2 * b + k]);
+            }
+            if (finished) {
+                sb.append(", idom ").append(idoms[b]);
+            }
+            if (blockLoops[b] >= 0) {
+                sb.append(", loop ").append(blockLoops[b]);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * CmmGen
+ *
+ * Generates C-- programs of any size for benchmarks and stress tests.  The
+ * shape of a program is controlled by the public fields below; the same
+ * seed and parameters always give the same program.
+ *
+ * A valid program has structs S0, S1, ... where every struct but the first
+ * contains the previous one, a global variable of each struct type, and
+ * functions f0, f1, ... returning int, bool and void in turn, followed by
+ * main.  Statements use every kind of statement and operator of the
+ * language.  Generated programs also terminate: loops count down a counter
+ * their bodies do not touch, a function calls at most one earlier function
+ * and never from inside a loop, and division is by non-zero literals.
+ *
+ * An invalid program has the same shape, but about half of the statements
+ * and one global declaration per function are replaced by code that
+ * triggers an error (or the warning) of the scanner, the name analysis or
+ * the type checker, going round all of them in turn; main is left out.
+ * Syntax errors are not generated since the parser stops at the first.
+ *
+ * usage: java CmmGen [-seed N] [-functions N] [-statements N] [-depth N]
+ *                    [-nesting N] [-structs N] [-chain N] [-strings P]
+ *                    [-invalid] [-o FILE]
+ */
+public class CmmGen {
+    public int functions = 10;      // number of functions besides main
+    public int statements = 20;     // statements per function body
+    public int depth = 3;           // maximum depth of an expression
+    public int nesting = 2;         // maximum nesting of if and while blocks
+    public int structs = 2;         // number of struct types
+    public int chain = 2;           // maximum length of a dot-access chain
+    public double strings = 0.3;    // share of writes that write a string
+    public boolean invalid = false; // generate errors
+
+    // errors in statements; the ones starting with "return" are only used
+    // when they match the type of the function (see errorStmt)
+    private static final String[] STMT_ERRORS = {
+        "b0++;", "b0--;", "i0 = -b0;", "i0 = b0 + 1;", "i0 = 1 * b0;",
+        "cin >> nf;", "cin >> S0;", "cin >> sv0;",
+        "cout << nf;", "cout << S0;", "cout << sv0;", "cout << vf();",
+        "if (i0) {\n}", "if (i0) {\n}\nelse {\n}", "while (i0) {\n}",
+        "return ;", "return b0;", "return 1;",
+        "undeclared = 1;", "i0 = i0.x;", "i0 = sv0.x.y;", "i0 = sv0.nope;",
+        "i0();", "i0 = nf();", "i0 = nf(b0);",
+        "b0 = !i0;", "b0 = i0 && b0;", "b0 = b0 || i0;",
+        "b0 = vf() == vf();", "b0 = nf == nf;", "b0 = S0 == S0;",
+        "b0 = sv0 == sv0;", "b0 = i0 == b0;", "b0 = b0 < 1;", "b0 = 1 >= b0;",
+        "nf = nf;", "S0 = S0;", "sv0 = sv0;", "i0 = b0;",
+        "@", "\"unterminated", "\"bad \\q escape\"", "\"unterminated bad \\q escape",
+        "i0 = 99999999999;"
+    };
+
+    // errors in global declarations; %d is replaced by a unique number
+    private static final String[] DECL_ERRORS = {
+        "void e%d;",
+        "struct Nope e%d;",
+        "int e%d;\nbool e%d;",
+        "struct E%d {\n    int x;\n    bool x;\n};",
+        "struct E%d {\n    void x;\n};",
+        "struct E%d {\n    struct Nope x;\n};",
+        "int e%d;\nint e%d() {\n    return 0;\n}",
+        "int e%d(void a) {\n    return 0;\n}",
+        "int e%d(int a, bool a) {\n    return a;\n}",
+        "int e%d;\nstruct e%d {\n    int x;\n};",
+        "void e%d() {\n    void x;\n    int y;\n    bool y;\n}"
+    };
+
+    private Random rand;
+    private StringBuilder sb;
+    private int stmtError;          // next error of each kind
+    private int declError;
+    private int numErrors;
+
+    // the function being generated
+    private int fn;
+    private boolean callMade;
+    private int loops;              // enclosing while loops
+
+    public CmmGen(long seed) {
+        rand = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        String out = null;
+        CmmGen gen = null;
+        Map<String,String> opts = new HashMap<String,String>();
+
+        int k = 0;
+        while (k < args.length) {
+            String opt = args[k++];
+            if (opt.equals("-invalid")) {
+                opts.put(opt, "true");
+                continue;
+            }
+            if (k == args.length) {
+                usage("missing value for " + opt);
+            }
+            opts.put(opt, args[k++]);
+        }
+        if (opts.containsKey("-seed")) {
+            seed = Long.parseLong(opts.remove("-seed"));
+        }
+        if (opts.containsKey("-o")) {
+            out = opts.remove("-o");
+        }
+        gen = new CmmGen(seed);
+        try {
+            for (Map.Entry<String,String> e : opts.entrySet()) {
+                String opt = e.getKey();
+                String value = e.getValue();
+                if (opt.equals("-functions")) {
+                    gen.functions = Integer.parseInt(value);
+                } else if (opt.equals("-statements")) {
+                    gen.statements = Integer.parseInt(value);
+                } else if (opt.equals("-depth")) {
+                    gen.depth = Integer.parseInt(value);
+                } else if (opt.equals("-nesting")) {
+                    gen.nesting = Integer.parseInt(value);
+                } else if (opt.equals("-structs")) {
+                    gen.structs = Integer.parseInt(value);
+                } else if (opt.equals("-chain")) {
+                    gen.chain = Integer.parseInt(value);
+                } else if (opt.equals("-strings")) {
+                    gen.strings = Double.parseDouble(value);
+                } else if (opt.equals("-invalid")) {
+                    gen.invalid = true;
+                } else {
+                    usage("unknown option " + opt);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            usage("bad number " + ex.getMessage());
+        }
+
+        String program = gen.generate();
+        if (out == null) {
+            System.out.print(program);
+        } else {
+            PrintWriter p = new PrintWriter(out);
+            p.print(program);
+            p.close();
+        }
+    }
+
+    /**
+     * Returns a new program.
+     */
+    public String generate() {
+        sb = new StringBuilder();
+        stmtError = 0;
+        declError = 0;
+        numErrors = 0;
+        if (invalid) {
+            structs = Math.max(structs, 2);
+        }
+
+        for (int k = 0; k < structs; k++) {
+            sb.append("struct S").append(k).append(" {\n");
+            sb.append("    int x;\n");
+            sb.append("    bool y;\n");
+            if (k > 0) {
+                sb.append("    struct S").append(k - 1).append(" n;\n");
+            }
+            sb.append("};\n\n");
+        }
+        for (int k = 0; k < structs; k++) {
+            sb.append("struct S").append(k).append(" sv").append(k).append(";\n");
+        }
+        sb.append("int ga;\n");
+        sb.append("bool gb;\n\n");
+        if (invalid) {
+            sb.append("void vf() {\n}\n\n");
+            sb.append("int nf(int a) {\n    return a;\n}\n\n");
+        }
+
+        for (fn = 0; fn < functions; fn++) {
+            if (invalid) {
+                String err = DECL_ERRORS[declError++ % DECL_ERRORS.length];
+                sb.append(err.replace("%d", String.valueOf(numErrors++))).append("\n\n");
+            }
+            function();
+        }
+        fn = functions;
+        if (!invalid) {
+            callMade = false;
+            loops = 0;
+            sb.append("void main() {\n");
+            sb.append("    int i0;\n");
+            sb.append("    bool b0;\n");
+            for (int k = 0; k < nesting; k++) {
+                sb.append("    int l").append(k).append(";\n");
+            }
+            for (int k = 0; k < statements; k++) {
+                stmt(1);
+            }
+            if (functions > 0) {
+                sb.append("    ").append(call(functions - 1)).append(";\n");
+            }
+            sb.append("    cout << \"done\\n\";\n");
+            sb.append("}\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends function fn.
+     */
+    private void function() {
+        callMade = false;
+        loops = 0;
+        sb.append(typeName(returnType(fn))).append(" f").append(fn);
+        sb.append("(int a, bool b) {\n");
+        sb.append("    int i0;\n");
+        sb.append("    int i1;\n");
+        sb.append("    bool b0;\n");
+        sb.append("    bool b1;\n");
+        for (int k = 0; k < nesting; k++) {
+            sb.append("    int l").append(k).append(";\n");
+        }
+        for (int k = 0; k < statements; k++) {
+            stmt(1);
+        }
+        int type = returnType(fn);
+        if (type == INT) {
+            line(1, "return " + intExp(depth) + ";");
+        } else if (type == BOOL) {
+            line(1, "return " + boolExp(depth) + ";");
+        }
+        sb.append("}\n\n");
+    }
+
+    private static final int INT = 0;
+    private static final int BOOL = 1;
+    private static final int VOID = 2;
+
+    private static int returnType(int f) {
+        return f % 3;
+    }
+
+    private static String typeName(int type) {
+        return type == INT ? "int" : type == BOOL ? "bool" : "void";
+    }
+
+    /**
+     * Appends a statement at the given block level (1 for a function body).
+     */
+    private void stmt(int level) {
+        if (invalid && rand.nextBoolean()) {
+            errorStmt(level);
+            return;
+        }
+        int kind = rand.nextInt(level <= nesting ? 12 : 9);
+        switch (kind) {
+        case 0:
+        case 1:
+            line(level, intVar() + " = " + intExp(depth) + ";");
+            break;
+        case 2:
+            line(level, boolVar() + " = " + boolExp(depth) + ";");
+            break;
+        case 3:
+            line(level, intVar() + (rand.nextBoolean() ? "++;" : "--;"));
+            break;
+        case 4:
+            line(level, "cin >> " + intVar() + ";");
+            break;
+        case 5:
+        case 6:
+            if (rand.nextDouble() < strings) {
+                line(level, "cout << " + stringLit() + ";");
+            } else {
+                line(level, "cout << " + (rand.nextBoolean() ? intExp(depth)
+                                                             : boolExp(depth)) + ";");
+            }
+            break;
+        case 7:
+        case 8:
+            // a field assignment if there are fields, else a call
+            if (kind == 7 && structs > 0 && chain > 0) {
+                String loc = dotChain();
+                line(level, loc + "x = " + intExp(depth) + ";");
+            } else {
+                int callee = callee(-1);
+                if (callee >= 0) {
+                    line(level, call(callee) + ";");
+                } else {
+                    line(level, intVar() + " = " + intExp(depth) + ";");
+                }
+            }
+            break;
+        case 9:
+            line(level, "if (" + boolExp(depth) + ") {");
+            block(level);
+            line(level, "}");
+            break;
+        case 10:
+            line(level, "if (" + boolExp(depth) + ") {");
+            block(level);
+            line(level, "}");
+            line(level, "else {");
+            block(level);
+            line(level, "}");
+            break;
+        default:
+            // the counter of this level is only touched here
+            String counter = "l" + (level - 1);
+            line(level, counter + " = " + (1 + rand.nextInt(4)) + ";");
+            line(level, "while (" + counter + " > 0) {");
+            loops++;
+            block(level);
+            loops--;
+            line(level + 1, counter + "--;");
+            line(level, "}");
+            break;
+        }
+    }
+
+    /**
+     * Appends the statements of a block nested in the given level.
+     */
+    private void block(int level) {
+        int n = 1 + rand.nextInt(3);
+        for (int k = 0; k < n; k++) {
+            stmt(level + 1);
+        }
+    }
+
+    /**
+     * Appends the next statement with an error that fits the function.
+     */
+    private void errorStmt(int level) {
+        int type = fn < functions ? returnType(fn) : VOID;
+        String err;
+        do {
+            err = STMT_ERRORS[stmtError++ % STMT_ERRORS.length];
+        } while ((err.equals("return ;") || err.equals("return b0;")) && type != INT
+                 || err.equals("return 1;") && type != VOID);
+        for (String s : err.split("\n")) {
+            line(level, s);
+        }
+        numErrors++;
+    }
+
+    private String intExp(int d) {
+        if (d <= 0 || rand.nextInt(10) < 3) {
+            return intAtom();
+        }
+        switch (rand.nextInt(6)) {
+        case 0:
+            return "(" + intExp(d - 1) + " + " + intExp(d - 1) + ")";
+        case 1:
+            return "(" + intExp(d - 1) + " - " + intExp(d - 1) + ")";
+        case 2:
+            return "(" + intExp(d - 1) + " * " + intExp(d - 1) + ")";
+        case 3:
+            return "(" + intExp(d - 1) + " / " + (1 + rand.nextInt(9)) + ")";
+        case 4:
+            return "-" + intAtom();
+        default:
+            return "(" + intExp(d - 1) + ")";
+        }
+    }
+
+    /**
+     * Returns a literal, a field, a call or a variable.  A field or a call
+     * that cannot be made gives way to the next of them.
+     */
+    private String intAtom() {
+        int kind = rand.nextInt(6);
+        if (kind <= 1) {
+            return String.valueOf(rand.nextInt(100));
+        }
+        if (kind == 2 && structs > 0 && chain > 0) {
+            return dotChain() + "x";
+        }
+        if (kind <= 3) {
+            int callee = callee(INT);
+            if (callee >= 0) {
+                return call(callee);
+            }
+        }
+        return intVar();
+    }
+
+    private String boolExp(int d) {
+        if (d <= 0 || rand.nextInt(10) < 3) {
+            return boolAtom();
+        }
+        switch (rand.nextInt(7)) {
+        case 0:
+            return "(" + boolExp(d - 1) + " && " + boolExp(d - 1) + ")";
+        case 1:
+            return "(" + boolExp(d - 1) + " || " + boolExp(d - 1) + ")";
+        case 2:
+            return "!" + boolAtom();
+        case 3:
+            return "(" + boolExp(d - 1) + (rand.nextBoolean() ? " == " : " != ")
+                + boolExp(d - 1) + ")";
+        case 4:
+            return "(" + intExp(d - 1) + (rand.nextBoolean() ? " == " : " != ")
+                + intExp(d - 1) + ")";
+        default:
+            String[] ops = { " < ", " > ", " <= ", " >= " };
+            return "(" + intExp(d - 1) + ops[rand.nextInt(4)] + intExp(d - 1) + ")";
+        }
+    }
+
+    /**
+     * Returns a literal, a field, a call or a variable, as intAtom does.
+     */
+    private String boolAtom() {
+        int kind = rand.nextInt(5);
+        if (kind == 0) {
+            return rand.nextBoolean() ? "true" : "false";
+        }
+        if (kind == 1 && structs > 0 && chain > 0) {
+            return dotChain() + "y";
+        }
+        if (kind <= 2) {
+            int callee = callee(BOOL);
+            if (callee >= 0) {
+                return call(callee);
+            }
+        }
+        return boolVar();
+    }
+
+    private String intVar() {
+        String[] vars = fn < functions ? new String[] { "i0", "i1", "a", "ga" }
+                                       : new String[] { "i0", "ga" };
+        return vars[rand.nextInt(vars.length)];
+    }
+
+    private String boolVar() {
+        String[] vars = fn < functions ? new String[] { "b0", "b1", "b", "gb" }
+                                       : new String[] { "b0", "gb" };
+        return vars[rand.nextInt(vars.length)];
+    }
+
+    /**
+     * Returns a struct variable followed by a chain of dot-accesses, ending
+     * with a dot before the final field: e.g. "sv2.n.n." for 3 dots.
+     */
+    private String dotChain() {
+        int len = 1 + rand.nextInt(Math.min(chain, structs));
+        StringBuilder loc = new StringBuilder("sv").append(len - 1).append('.');
+        for (int k = 1; k < len; k++) {
+            loc.append("n.");
+        }
+        return loc.toString();
+    }
+
+    private String stringLit() {
+        String[] texts = { "value: ", "\\n", "tab\\there", "quote \\\" end", "s" };
+        String text = texts[rand.nextInt(texts.length)];
+        return "\"" + text + (text.length() == 1 ? rand.nextInt(1000) : "") + "\"";
+    }
+
+    /**
+     * Returns a function the current one may call, returning the given type
+     * (any type if -1), or -1 if there is none.  Only one call is made per
+     * function, and none in loops, so that running a program is quick.
+     */
+    private int callee(int type) {
+        if (callMade || loops > 0 || fn == 0) {
+            return -1;
+        }
+        for (int k = 0; k < 3; k++) {
+            int f = fn - 1 - rand.nextInt(Math.min(fn, 8));
+            if (type == -1 || returnType(f) == type) {
+                callMade = true;
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    private String call(int f) {
+        return "f" + f + "(" + intExp(0) + ", " + boolExp(0) + ")";
+    }
+
+    private void line(int level, String s) {
+        for (int k = 0; k < level; k++) {
+            sb.append("    ");
+        }
+        sb.append(s).append('\n');
+    }
+
+    private static void usage(String msg) {
+        System.err.println(msg);
+        System.err.println("usage: java CmmGen [-seed N] [-functions N] [-statements N] [-depth N]");
+        System.err.println("                   [-nesting N] [-structs N] [-chain N] [-strings P]");
+        System.err.println("                   [-invalid] [-o FILE]");
+        System.exit(-1);
+    }
+}
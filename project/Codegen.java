@@ -1,15 +1,17 @@
-import java.io.*;
-
 // **********************************************************************
 // The Codegen class provides constants and operations useful for code
 // generation.
 //
 // The constants are:
-//     Registers: FP, SP, RA, V0, V1, A0, T0, T1
+//     Registers: FP, SP, RA, V0, V1, A0, T0, T1, ZERO
 //     Values: TRUE, FALSE
+//     NUM_TEMPS, the number of temporaries $t0-$t9 that expressions are
+//     evaluated in (see tmp)
+//     NUM_SAVED, the number of registers $s0-$s7 that variables may be
+//     kept in (see saved)
 //
-// The operations are include various "generate" methods to print nicely
-// formatted assembly code:
+// The operations are include various "generate" methods to append
+// instructions to the generated code:
 //     generateWithComment
 //     generate
 //     generateIndexed
@@ -17,35 +19,50 @@ import java.io.*;
 //     genPush
 //     genPop
 //     genLabel
-// and a method nextLabel to create and return a new label.
+// methods setFrame, generateFrame and genFrameAddr to address the frame
+// of the current function, from $fp or, in a leaf function, from $sp,
+// canMultiply, genMultiply and genDivide for the products and quotients
+// by constants (see reducingStrength),
+// methods tmp and saved to map the number of a temporary or a saved
+// register to the register, a method
+// nextLabel to create and return a new label, and setReturnLabel
+// and returnLabel for the label of the epilogue of the current function.
+//
+// The code is appended to the MipsCode of the current compilation, and
+// labels are numbered per compilation (see Compilation).  It is written
+// out as assembly text once code generation is done.
 //
 // **********************************************************************
 
 public class Codegen {
-    // file into which generated code is written
-    public static PrintWriter p = null;    
-
     // values of true and false
-    public static final String TRUE = "1";
-    public static final String FALSE = "0";
+    public static final int TRUE = 1;
+    public static final int FALSE = 0;
 
     // registers
-    public static final String FP = "$fp";
-    public static final String SP = "$sp";
-    public static final String RA = "$ra";
-    public static final String V0 = "$v0";
-    public static final String V1 = "$v1";
-    public static final String A0 = "$a0";
-    public static final String T0 = "$t0";
-    public static final String T1 = "$t1";
-
+    public static final Register FP = Register.FP;
+    public static final Register SP = Register.SP;
+    public static final Register RA = Register.RA;
+    public static final Register V0 = Register.V0;
+    public static final Register V1 = Register.V1;
+    public static final Register A0 = Register.A0;
+    public static final Register T0 = Register.T0;
+    public static final Register T1 = Register.T1;
+    public static final Register ZERO = Register.ZERO;
 
-    // for pretty printing generated code
-    private static final int MAXLEN = 4;
+    // the temporaries $t0-$t9, in the order they are allocated
+    public static final int NUM_TEMPS = 10;
+    private static final Register[] TEMPS = {
+        Register.T0, Register.T1, Register.T2, Register.T3, Register.T4,
+        Register.T5, Register.T6, Register.T7, Register.T8, Register.T9
+    };
 
-
-    // for generating labels
-    private static int currLabel = 0;
+    // the callee-saved registers $s0-$s7, in the order they are allocated
+    public static final int NUM_SAVED = 8;
+    private static final Register[] SAVED = {
+        Register.S0, Register.S1, Register.S2, Register.S3,
+        Register.S4, Register.S5, Register.S6, Register.S7
+    };
 
 
     // **********************************************************************
@@ -53,177 +70,384 @@ public class Codegen {
     // GENERATE OPERATIONS
     // **********************************************************************
     // **********************************************************************
-    
+
     // **********************************************************************
     // generateWithComment
-    //    given:  op code, comment, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
-    // **********************************************************************
-    public static void generateWithComment(String opcode, String comment,
-                                        String arg1, String arg2, String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "") 
-                    p.print(", " + arg3);
-            }
-        }
-        if (comment != "") 
-            p.print("\t\t#" + comment);
-        p.println();
+    //    given:  op code, comment, and 0 to 3 register args
+    //    do:     append the instruction with the comment
+    // **********************************************************************
+    public static void generateWithComment(Opcode opcode, String comment,
+                                        Register arg1, Register arg2, Register arg3) {
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addReg(arg2);
+        code.addReg(arg3);
+        code.setComment(comment);
     }
 
-    public static void generateWithComment(String opcode, String comment,
-                                           String arg1, String arg2) {
-        generateWithComment(opcode, comment, arg1, arg2, "");
+    public static void generateWithComment(Opcode opcode, String comment,
+                                           Register arg1, Register arg2) {
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addReg(arg2);
+        code.setComment(comment);
     }
 
-    public static void generateWithComment(String opcode, String comment,
-                                           String arg1) {
-        generateWithComment(opcode, comment, arg1, "", "");
+    public static void generateWithComment(Opcode opcode, String comment,
+                                           Register arg1) {
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.setComment(comment);
     }
 
-    public static void generateWithComment(String opcode, String comment) {
-        generateWithComment(opcode, comment, "", "", "");
+    public static void generateWithComment(Opcode opcode, String comment) {
+        begin(opcode).setComment(comment);
     }
 
     // **********************************************************************
     // generate
-    //    given:  op code, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
-    // **********************************************************************
-    public static void generate(String opcode, String arg1, String arg2,
-                                String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "") 
-                    p.print(", " + arg3);
-            }
-        }
-        p.println();
+    //    given:  op code, and 0 to 3 register args
+    //    do:     append the instruction
+    // **********************************************************************
+    public static void generate(Opcode opcode, Register arg1, Register arg2,
+                                Register arg3) {
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addReg(arg2);
+        code.addReg(arg3);
     }
 
-    public static void generate(String opcode, String arg1, String arg2) {
-        generate(opcode, arg1, arg2, "");
+    public static void generate(Opcode opcode, Register arg1, Register arg2) {
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addReg(arg2);
     }
 
-    public static void generate(String opcode, String arg1) {
-        generate(opcode, arg1, "", "");
+    public static void generate(Opcode opcode, Register arg1) {
+        begin(opcode).addReg(arg1);
     }
 
-    public static void generate(String opcode) {
-        generate(opcode, "", "", "");
+    public static void generate(Opcode opcode) {
+        begin(opcode);
     }
 
     // **********************************************************************
-    // generate (two string args, one int)
+    // generate (two register args, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     append the instruction
     // **********************************************************************
-    public static void generate(String opcode, String arg1, String arg2,
+    public static void generate(Opcode opcode, Register arg1, Register arg2,
                                 int arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.println(arg1 + ", " + arg2 + ", " + arg3);
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addReg(arg2);
+        code.addImm(arg3);
     }
-    
+
     // **********************************************************************
-    // generate (one string arg, one int)
+    // generate (one register arg, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     append the instruction
     // **********************************************************************
-    public static void generate(String opcode, String arg1, int arg2) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.println(arg1 + ", " + arg2);
+    public static void generate(Opcode opcode, Register arg1, int arg2) {
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addImm(arg2);
+    }
+
+    // **********************************************************************
+    // generate (one int arg)
+    //    given:  op code (a directive such as .align) and arg
+    //    do:     append the directive
+    // **********************************************************************
+    public static void generate(Opcode opcode, int arg1) {
+        begin(opcode).addImm(arg1);
+    }
+
+    // **********************************************************************
+    // generate (label args)
+    //    given:  op code, 0 to 2 register args and a label (or, for
+    //            .asciiz, a string literal)
+    //    do:     append the instruction
+    // **********************************************************************
+    public static void generate(Opcode opcode, Register arg1, Register arg2,
+                                String label) {
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addReg(arg2);
+        code.addSym(label);
+    }
+
+    public static void generate(Opcode opcode, Register arg1, String label) {
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addSym(label);
+    }
+
+    public static void generate(Opcode opcode, String label) {
+        begin(opcode).addSym(label);
     }
-    
+
     // **********************************************************************
     // generateIndexed
-    //    given:  op code, target register T1 (as string), indexed register T2
-    //            (as string), - offset xx (int), and optional comment
-    //    do:     write nicely formatted code (ending with new line):
+    //    given:  op code, target register T1, indexed register T2,
+    //            - offset xx (int), and optional comment
+    //    do:     append the instruction
     //                 op T1, xx(T2) #comment
     // **********************************************************************
-    public static void generateIndexed(String opcode, String arg1, String arg2,
+    public static void generateIndexed(Opcode opcode, Register arg1, Register arg2,
                                        int arg3, String comment) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.print(arg1 + ", " + arg3 + "(" + arg2 + ")");
-        if (comment != "") 
-            p.print("\t#" + comment);
-        p.println();
-    }
-    
-    public static void generateIndexed(String opcode, String arg1, String arg2,
+        MipsCode code = begin(opcode);
+        code.addReg(arg1);
+        code.addReg(arg2);
+        code.addImm(arg3);
+        code.setIndexed();
+        code.setComment(comment);
+    }
+
+    public static void generateIndexed(Opcode opcode, Register arg1, Register arg2,
                                        int arg3) {
         generateIndexed(opcode, arg1, arg2, arg3, "");
     }
 
     // **********************************************************************
-    // generateLabeled (string args -- perhaps empty)
-    //    given:  label, op code, comment, and arg
-    //    do:     write nicely formatted code (ending with new line)
+    // generateLabeled
+    //    given:  label, op code (a directive such as .space), comment, and
+    //            arg
+    //    do:     append the directive, labeled with label
     // **********************************************************************
-    public static void generateLabeled(String label, String opcode,
-                                       String comment, String arg1) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print(label + ":");
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-        }
-        if (comment != "") 
-            p.print("\t# " + comment);
-        p.println();
+    public static void generateLabeled(String label, Opcode opcode,
+                                       String comment, int arg1) {
+        MipsCode code = begin(opcode);
+        code.addImm(arg1);
+        code.setLabel(label);
+        code.setComment(comment);
     }
 
-    public static void generateLabeled(String label, String opcode,
-                                       String comment) {
-        generateLabeled(label, opcode, comment, "");
+    // **********************************************************************
+    // begin
+    //    given:  op code
+    //    do:     count the instruction (directives are not counted), append
+    //            it and return the code to add its operands to
+    // **********************************************************************
+    private static MipsCode begin(Opcode opcode) {
+        Compilation comp = Compilation.current();
+        if (opcode.isInstruction())
+            comp.countInstruction();
+        MipsCode code = comp.mips();
+        code.add(opcode);
+        return code;
     }
 
     // **********************************************************************
     // genPush
     //    generate code to push the given value onto the stack
     // **********************************************************************
-    public static void genPush(String s) {
-        generateIndexed("sw", s, SP, 0, "PUSH");
-        generate("subu", SP, SP, 4);
+    public static void genPush(Register s) {
+        generateIndexed(Opcode.SW, s, SP, 0, "PUSH");
+        generate(Opcode.SUBU, SP, SP, 4);
+        Compilation.current().pushed(4);
     }
 
     // **********************************************************************
     // genPop
     //    generate code to pop into the given register
     // **********************************************************************
-    public static void genPop(String s) {
-        generateIndexed("lw", s, SP, 4, "POP");
-        generate("addu", SP, SP, 4);
+    public static void genPop(Register s) {
+        generateIndexed(Opcode.LW, s, SP, 4, "POP");
+        generate(Opcode.ADDU, SP, SP, 4);
+        Compilation.current().pushed(-4);
+    }
+
+    // **********************************************************************
+    // setFrame
+    //    the frame of the function being generated is addressed from $fp,
+    //    or, after setFrame(size) with size >= 0 for a leaf function that
+    //    sets up no $fp, from $sp: the place $fp would point to is then
+    //    size bytes above $sp, and as many more as have been pushed since
+    //    (see genPush and genPop); setFrame(-1) goes back to $fp
+    // **********************************************************************
+    public static void setFrame(int size) {
+        Compilation.current().setFrame(size);
+    }
+
+    // **********************************************************************
+    // generateFrame
+    //    given:    op (lw or sw), register r and an offset from $fp
+    //    generate: op r, offset($fp), or the same address from $sp
+    // **********************************************************************
+    public static void generateFrame(Opcode op, Register r, int offset) {
+        Compilation comp = Compilation.current();
+        if (comp.frameSize() < 0) {
+            generateIndexed(op, r, FP, offset);
+        }
+        else {
+            generateIndexed(op, r, SP, offset + comp.frameSize() + comp.pushedBytes());
+        }
+    }
+
+    // **********************************************************************
+    // genFrameAddr
+    //    put the address offset($fp) into register dest
+    // **********************************************************************
+    public static void genFrameAddr(Register dest, int offset) {
+        Compilation comp = Compilation.current();
+        if (comp.frameSize() < 0) {
+            generate(Opcode.ADDU, dest, FP, offset);
+        }
+        else {
+            generate(Opcode.ADDU, dest, SP, offset + comp.frameSize() + comp.pushedBytes());
+        }
+    }
+
+    // **********************************************************************
+    // canMultiply
+    //    whether genMultiply can multiply by c: |c| is a power of two, or
+    //    the sum or the difference of two
+    // **********************************************************************
+    public static boolean canMultiply(int c) {
+        long m = Math.abs((long) c);
+        long low = m & -m;
+        return m != 0 && (m == low || Long.bitCount(m) == 2
+                          || Long.bitCount(m + low) == 1);
+    }
+
+    // **********************************************************************
+    // genMultiply
+    //    given:    registers dest and src and an int c (see canMultiply)
+    //    generate: code leaving src * c in dest with shifts and an add or
+    //              subtract instead of mul, using $v1
+    // **********************************************************************
+    public static void genMultiply(Register dest, Register src, int c) {
+        long m = Math.abs((long) c);
+        long low = m & -m;
+        if (m == low) {
+            if (m == 1) {
+                generate(Opcode.MOVE, dest, src);
+            }
+            else {
+                generate(Opcode.SLL, dest, src, log2(m));
+            }
+        }
+        else {
+            // m is 2^a + 2^b, or 2^a - 2^b if it is a run of ones
+            boolean plus = Long.bitCount(m) == 2;
+            int a = log2(plus ? m - low : m + low);
+            int b = log2(low);
+            generate(Opcode.SLL, V1, src, a);
+            Register other = src;
+            if (b != 0) {
+                generate(Opcode.SLL, dest, src, b);
+                other = dest;
+            }
+            generate(plus ? Opcode.ADDU : Opcode.SUBU, dest, V1, other);
+        }
+        if (c < 0) {
+            generate(Opcode.NEG, dest, dest);
+        }
+        Compilation.current().count("strength.mul", 1);
+    }
+
+    // **********************************************************************
+    // genDivide
+    //    given:    registers dest and src and an int d other than 0, 1 and
+    //              -1
+    //    generate: code leaving src / d, rounded toward zero, in dest
+    //              without div, using $v1.  For |d| = 2^k the dividend is
+    //              shifted right by k after 2^k - 1 is added to it if it
+    //              is negative; otherwise it is multiplied by a magic
+    //              number and the high word of the product corrected and
+    //              shifted (see magic)
+    // **********************************************************************
+    public static void genDivide(Register dest, Register src, int d) {
+        long m = Math.abs((long) d);
+        Compilation comp = Compilation.current();
+        if ((m & (m - 1)) == 0) {
+            int k = log2(m);
+            if (k == 1) {
+                generate(Opcode.SRL, V1, src, 31);
+            }
+            else {
+                generate(Opcode.SRA, V1, src, 31);
+                generate(Opcode.SRL, V1, V1, 32 - k);
+            }
+            generate(Opcode.ADDU, V1, src, V1);
+            generate(Opcode.SRA, dest, V1, k);
+            if (d < 0) {
+                generate(Opcode.NEG, dest, dest);
+            }
+            comp.count("strength.div2", 1);
+            return;
+        }
+        int[] magic = magic(d);
+        generate(Opcode.LI, V1, magic[0]);
+        generate(Opcode.MULT, src, V1);
+        generate(Opcode.MFHI, V1);
+        if (d > 0 && magic[0] < 0) {
+            generate(Opcode.ADDU, V1, V1, src);
+        }
+        else if (d < 0 && magic[0] > 0) {
+            generate(Opcode.SUBU, V1, V1, src);
+        }
+        if (magic[1] != 0) {
+            generate(Opcode.SRA, V1, V1, magic[1]);
+        }
+        // one more if the quotient so far is negative
+        generate(Opcode.SRL, dest, V1, 31);
+        generate(Opcode.ADDU, dest, V1, dest);
+        comp.count("strength.magic", 1);
+    }
+
+    // **********************************************************************
+    // magic
+    //    the magic number M and the shift s for the signed division by d,
+    //    |d| > 1 not a power of two: n / d is the high word of M * n,
+    //    plus n if d > 0 and M < 0, minus n if d < 0 and M > 0, shifted
+    //    right by s and rounded toward zero (Warren, Hacker's Delight,
+    //    section 10-4)
+    // **********************************************************************
+    private static int[] magic(int d) {
+        final long two31 = 1L << 31;
+        long ad = Math.abs((long) d);
+        long t = two31 + (d >>> 31);
+        long anc = t - 1 - t % ad;      // |d| times the largest quotient
+        int p = 31;
+        long q1 = two31 / anc;
+        long r1 = two31 - q1 * anc;
+        long q2 = two31 / ad;
+        long r2 = two31 - q2 * ad;
+        long delta;
+        do {
+            p++;
+            q1 = 2 * q1;
+            r1 = 2 * r1;
+            if (r1 >= anc) {
+                q1++;
+                r1 -= anc;
+            }
+            q2 = 2 * q2;
+            r2 = 2 * r2;
+            if (r2 >= ad) {
+                q2++;
+                r2 -= ad;
+            }
+            delta = ad - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+        int magic = (int) (q2 + 1);
+        return new int[] { d < 0 ? -magic : magic, p - 32 };
+    }
+
+    private static int log2(long m) {
+        return 63 - Long.numberOfLeadingZeros(m);
+    }
+
+    // **********************************************************************
+    // reducingStrength
+    //    whether multiplications and divisions by constants are to be
+    //    generated with genMultiply and genDivide
+    // **********************************************************************
+    public static boolean reducingStrength() {
+        return Compilation.current().reducingStrength();
     }
 
     // **********************************************************************
@@ -232,23 +456,52 @@ public class Codegen {
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":");
-        if (comment != "") 
-            p.print("\t\t" + "# " + comment);
-        p.println();
+        MipsCode code = Compilation.current().mips();
+        code.add(Opcode.LABEL);
+        code.addSym(label);
+        code.setComment(comment);
     }
-    
+
     public static void genLabel(String label) {
         genLabel(label, "");
     }
-    
+
+    // **********************************************************************
+    // tmp
+    //    return temporary number k (0 <= k < NUM_TEMPS)
+    // **********************************************************************
+    public static Register tmp(int k) {
+        return TEMPS[k];
+    }
+
+    // **********************************************************************
+    // saved
+    //    return saved register number k (0 <= k < NUM_SAVED)
+    // **********************************************************************
+    public static Register saved(int k) {
+        return SAVED[k];
+    }
+
     // **********************************************************************
     // Return a different label each time:
     //        L0 L1 L2, etc.
     // **********************************************************************
     public static String nextLabel() {
-        Integer k = new Integer(currLabel++);
+        int k = Compilation.current().nextLabel();
         String tmp = ".L" + k;
         return(tmp);
     }
+
+    // **********************************************************************
+    // setReturnLabel, returnLabel
+    //    the label of the epilogue of the function being generated, where
+    //    return statements jump to
+    // **********************************************************************
+    public static void setReturnLabel(String label) {
+        Compilation.current().setReturnLabel(label);
+    }
+
+    public static String returnLabel() {
+        return Compilation.current().returnLabel();
+    }
 }
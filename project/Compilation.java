@@ -0,0 +1,219 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compilation
+ *
+ * This class holds the state that belongs to the compilation of a single
+ * input file: the generated code, its string literals and the writer it is
+ * finally written to, the streams messages and diagnostics are written to,
+ * the error flag, the label counter, the return label and the frame of the
+ * function being generated, counters of symbol-table lookups and emitted
+ * instructions, the counts reported by optimization passes, the metrics to
+ * collect, if any, the options it was given (see Options), and the
+ * choices of code generation made by them.
+ *
+ * The scanner, the parser, the passes in ast.java and Codegen reach this
+ * state through current(), which returns the compilation bound to the
+ * calling thread by begin().  Compilations on different threads therefore
+ * share nothing and can run at the same time.
+ */
+class Compilation {
+    private static final ThreadLocal<Compilation> current =
+        new ThreadLocal<Compilation>();
+
+    private AsmWriter code;     // file into which generated code is written
+    private MipsCode mips = new MipsCode();  // the generated code
+    private StringPool strings = new StringPool();  // its string literals
+    private PrintStream out;    // regular messages
+    private PrintStream err;    // warnings and errors
+    private boolean errFlag = false;
+    private int currLabel = 0;
+    private String returnLabel = null;
+    private int frameSize = -1;
+    private int pushedBytes = 0;
+    private long numLookups = 0;
+    private long numInstructions = 0;
+    private Map<String,Long> counts = new LinkedHashMap<String,Long>();
+    private CompileMetrics metrics = null;
+    private Options options = new Options();
+    private boolean reduceStrength = false;
+
+    /**
+     * Creates a compilation writing its code to code, its messages to out
+     * and its diagnostics to err.
+     */
+    public Compilation(AsmWriter code, PrintStream out, PrintStream err) {
+        this.code = code;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Returns the compilation bound to the calling thread.
+     */
+    public static Compilation current() {
+        Compilation comp = current.get();
+        if (comp == null)
+            throw new IllegalStateException("no compilation in progress");
+        return comp;
+    }
+
+    /**
+     * Binds this compilation to the calling thread.
+     */
+    public void begin() {
+        current.set(this);
+    }
+
+    /**
+     * Unbinds this compilation from the calling thread.
+     */
+    public void end() {
+        current.remove();
+    }
+
+    public AsmWriter code() {
+        return code;
+    }
+
+    /**
+     * Returns the code generated so far.
+     */
+    public MipsCode mips() {
+        return mips;
+    }
+
+    /**
+     * Returns the string literals of the code generated so far.
+     */
+    public StringPool strings() {
+        return strings;
+    }
+
+    public PrintStream out() {
+        return out;
+    }
+
+    public PrintStream err() {
+        return err;
+    }
+
+    /**
+     * Records that a fatal error has been reported.
+     */
+    public void setErr() {
+        errFlag = true;
+    }
+
+    public boolean getErr() {
+        return errFlag;
+    }
+
+    /**
+     * Returns the next label number, starting from 0.
+     */
+    public int nextLabel() {
+        return currLabel++;
+    }
+
+    public void setReturnLabel(String label) {
+        returnLabel = label;
+    }
+
+    public String returnLabel() {
+        return returnLabel;
+    }
+
+    /**
+     * Sets the frame of the function being generated (see Codegen.setFrame)
+     * and starts counting the bytes pushed in it again.
+     */
+    public void setFrame(int size) {
+        frameSize = size;
+        pushedBytes = 0;
+    }
+
+    public int frameSize() {
+        return frameSize;
+    }
+
+    public void pushed(int bytes) {
+        pushedBytes += bytes;
+    }
+
+    public int pushedBytes() {
+        return pushedBytes;
+    }
+
+    public void countLookup() {
+        numLookups++;
+    }
+
+    public long getNumLookups() {
+        return numLookups;
+    }
+
+    public void countInstruction() {
+        numInstructions++;
+    }
+
+    public long getNumInstructions() {
+        return numInstructions;
+    }
+
+    /**
+     * Adds n to the count called name, e.g. "peephole.push-pop" for the
+     * hits of a pattern of the peephole optimizer.
+     */
+    public void count(String name, long n) {
+        Long old = counts.get(name);
+        counts.put(name, old == null ? n : old + n);
+        if (metrics != null) {
+            metrics.count(name, n);
+        }
+    }
+
+    /**
+     * Returns the counts, in the order they were first made.
+     */
+    public Map<String,Long> counts() {
+        return counts;
+    }
+
+    /**
+     * Returns the metrics collected for this compilation, or null if they
+     * are not wanted.
+     */
+    public CompileMetrics metrics() {
+        return metrics;
+    }
+
+    public void setMetrics(CompileMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the options of this compilation; without setOptions, the
+     * defaults, which do not optimize.
+     */
+    public Options options() {
+        return options;
+    }
+
+    public void setOptions(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Returns whether products and quotients by constants are generated
+     * without mul and div (see Codegen.genMultiply).
+     */
+    public boolean reducingStrength() {
+        return reduceStrength;
+    }
+
+    public void setReduceStrength(boolean reduce) {
+        reduceStrength = reduce;
+    }
+}
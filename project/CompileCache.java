@@ -0,0 +1,367 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * CompileCache
+ *
+ * An on-disk cache of compilation results.  An entry holds everything a
+ * compilation produces -- the generated code, the messages, the warnings
+ * and errors, and the error flag -- and is found by a SHA-256 digest of
+ * the source text, the compiler version and the options of the
+ * compilation (see Options).  The compiler version is a digest of the
+ * compiler's own class files, so entries made by another build of the
+ * compiler are never used.
+ *
+ * A compilation through the cache always writes its results from a
+ * recorded entry, whether that entry was just made or found in the cache,
+ * so a hit produces exactly the output of a real compile.
+ *
+ * Every entry is a file of the cache directory named after its key.
+ * Entries are read through a memory mapping.  They are written to a
+ * temporary file first and then renamed, so several processes can share a
+ * directory.  When the entries take more than the size cap, the least
+ * recently used ones are deleted.  The last use of an entry is kept as the
+ * modification time of its file, so the order survives restarts.
+ */
+public class CompileCache {
+    private static final int MAGIC = 0x434d4d31;  // "CMM1"
+    private static final int HEADER_SIZE = 8;     // magic, error flag
+
+    private Path dir;
+    private long maxBytes;
+    private byte[] version;
+
+    // entry name -> size in bytes, least recently used first
+    private LinkedHashMap<String,Long> entries =
+        new LinkedHashMap<String,Long>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Opens the cache kept in directory dir, creating it if needed.
+     * Entries take at most maxBytes.
+     */
+    public CompileCache(String dir, long maxBytes) throws IOException {
+        this.dir = Paths.get(dir);
+        this.maxBytes = maxBytes;
+        this.version = compilerVersion();
+        Files.createDirectories(this.dir);
+
+        // enter the existing entries from least to most recently used
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir);
+        try {
+            for (Path file : stream) {
+                if (isEntryName(file.getFileName().toString())) {
+                    files.add(file);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        final Map<Path,Long> used = new HashMap<Path,Long>();
+        for (Path file : files) {
+            used.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return Long.compare(used.get(a), used.get(b));
+            }
+        });
+        for (Path file : files) {
+            long size = Files.size(file);
+            entries.put(file.getFileName().toString(), size);
+            totalBytes += size;
+        }
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    /**
+     * Compiles the program read from inFile as Main.compile does, using the
+     * recorded results when the program has been compiled before.
+     * Returns false if the compilation was aborted by an internal error;
+     * such compilations are not cached.
+     */
+    public boolean compile(Compilation comp, Reader inFile) throws IOException {
+        String source = readAll(inFile);
+        String name = key(source, comp.options());
+
+        byte[][] entry = lookup(name);
+        if (entry != null) {
+            hits.incrementAndGet();
+            if (comp.metrics() != null) {
+                comp.metrics().setCached();
+            }
+        }
+        else {
+            misses.incrementAndGet();
+            ByteArrayOutputStream codeBuf = new ByteArrayOutputStream();
+            ByteArrayOutputStream outBuf = new ByteArrayOutputStream();
+            ByteArrayOutputStream errBuf = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(outBuf);
+            PrintStream err = new PrintStream(errBuf);
+            Compilation rec = new Compilation(new AsmWriter(codeBuf), out, err);
+            rec.setOptions(comp.options());
+            rec.setMetrics(comp.metrics());
+            boolean ok = Main.compileUncached(rec, new StringReader(source));
+            rec.code().flush();
+            out.flush();
+            err.flush();
+            entry = new byte[][] {
+                codeBuf.toByteArray(),
+                outBuf.toByteArray(),
+                errBuf.toByteArray(),
+                { (byte) (rec.getErr() ? 1 : 0) }
+            };
+            if (!ok) {
+                replay(comp, entry);
+                return false;
+            }
+            store(name, entry);
+        }
+        replay(comp, entry);
+        return true;
+    }
+
+    /**
+     * Returns the statistics of this cache.
+     */
+    public synchronized String stats() {
+        return "cache: hits " + hits.get() + "  misses " + misses.get() +
+               "  evictions " + evictions.get() + "  entries " + entries.size() +
+               "  bytes " + totalBytes;
+    }
+
+    /**
+     * Writes the recorded results of a compilation to comp.
+     */
+    private static void replay(Compilation comp, byte[][] entry) {
+        comp.code().write(entry[0], 0, entry[0].length);
+        comp.out().write(entry[1], 0, entry[1].length);
+        comp.err().write(entry[2], 0, entry[2].length);
+        if (entry[3][0] != 0) {
+            comp.setErr();
+        }
+    }
+
+    /**
+     * Returns the entry with the given name -- code, messages,
+     * diagnostics and error flag -- or null if there is none.
+     */
+    private byte[][] lookup(String name) {
+        Path file = dir.resolve(name);
+        byte[][] entry = null;
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                MappedByteBuffer buf =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                entry = decode(buf);
+            } finally {
+                channel.close();
+            }
+        } catch (NoSuchFileException ex) {
+            // not cached (or evicted by another process)
+        } catch (IOException ex) {
+            // unreadable; treated as a miss
+        }
+
+        synchronized (this) {
+            if (entry == null) {
+                Long size = entries.remove(name);
+                if (size != null) {
+                    totalBytes -= size;
+                }
+                return null;
+            }
+            Long size = entries.get(name);  // marks the entry as used
+            if (size == null) {             // made by another process
+                size = (long) encodedSize(entry);
+                entries.put(name, size);
+                totalBytes += size;
+                evict();
+            }
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            // the order of the next run will be a little off
+        }
+        return entry;
+    }
+
+    /**
+     * Decodes an entry; returns null if it is damaged.
+     */
+    private static byte[][] decode(ByteBuffer buf) {
+        try {
+            if (buf.getInt() != MAGIC) {
+                return null;
+            }
+            byte[] flag = { (byte) buf.getInt() };
+            byte[][] entry = new byte[4][];
+            for (int k = 0; k < 3; k++) {
+                entry[k] = new byte[buf.getInt()];
+                buf.get(entry[k]);
+            }
+            entry[3] = flag;
+            return buf.hasRemaining() ? null : entry;
+        } catch (BufferUnderflowException ex) {
+            return null;
+        } catch (NegativeArraySizeException ex) {
+            return null;
+        }
+    }
+
+    private static int encodedSize(byte[][] entry) {
+        return HEADER_SIZE + 12 + entry[0].length + entry[1].length + entry[2].length;
+    }
+
+    /**
+     * Writes an entry to the cache directory.  A failure to do so is not
+     * an error of the compilation and is ignored.
+     */
+    private void store(String name, byte[][] entry) {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize(entry));
+        buf.putInt(MAGIC);
+        buf.putInt(entry[3][0]);
+        for (int k = 0; k < 3; k++) {
+            buf.putInt(entry[k].length);
+            buf.put(entry[k]);
+        }
+        buf.flip();
+
+        try {
+            Path tmp = Files.createTempFile(dir, "tmp", null);
+            try {
+                FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                try {
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                } finally {
+                    channel.close();
+                }
+                Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException ex) {
+            return;
+        }
+
+        synchronized (this) {
+            Long old = entries.put(name, (long) buf.limit());
+            totalBytes += buf.limit() - (old == null ? 0 : old);
+            evict();
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the cache fits its cap.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String,Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String,Long> eldest = it.next();
+            try {
+                Files.deleteIfExists(dir.resolve(eldest.getKey()));
+            } catch (IOException ex) {
+                continue;  // try again at the next eviction
+            }
+            totalBytes -= eldest.getValue();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the name of the entry for source compiled with options: the
+     * digest of the compiler version, the options and the source, in hex.
+     */
+    private String key(String source, Options options) {
+        MessageDigest md = sha256();
+        md.update(version);
+        md.update(options.toString().getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(source.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isEntryName(String name) {
+        return name.length() == 64 && name.matches("[0-9a-f]+");
+    }
+
+    /**
+     * Returns a digest of the class files (or jar) the compiler was loaded
+     * from.
+     */
+    private static byte[] compilerVersion() throws IOException {
+        MessageDigest md = sha256();
+        Path location;
+        try {
+            URL url = Main.class.getProtectionDomain().getCodeSource().getLocation();
+            location = Paths.get(url.toURI());
+        } catch (Exception ex) {  // no code source to look at
+            return md.digest();
+        }
+
+        if (Files.isDirectory(location)) {
+            List<Path> classes = new ArrayList<Path>();
+            DirectoryStream<Path> stream = Files.newDirectoryStream(location, "*.class");
+            try {
+                for (Path file : stream) {
+                    classes.add(file);
+                }
+            } finally {
+                stream.close();
+            }
+            Collections.sort(classes);
+            for (Path file : classes) {
+                md.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                md.update(Files.readAllBytes(file));
+            }
+        }
+        else {
+            md.update(Files.readAllBytes(location));
+        }
+        return md.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available");
+        }
+    }
+
+    private static String readAll(Reader in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            sb.append(buf, 0, n);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,362 @@
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * CompileMetrics
+ *
+ * Collects where the time of a compilation goes: for every phase (scan,
+ * parse, nameAnalysis, typeCheck, codeGen, the optimization passes, emit)
+ * the wall time, the bytes allocated by the compiling thread, the
+ * symbol-table lookups and the instructions emitted, both for the whole
+ * file and for every function, and the counts made by the optimization
+ * passes (see Compilation.count).  Every function also gets the size of
+ * its AST and the number of basic blocks and loops of its control-flow
+ * graph (see Cfg), and what the loop optimizer did to each of its loops
+ * (see Loops).  The result is reported as a JSON object by toJson().
+ *
+ * The sizes and graphs of the functions are taken by measureFunctions()
+ * once all the phases are over, from the trees as the last phase left
+ * them, so that building them is not counted in any phase.
+ *
+ * Scanning and parsing are interleaved: the scanner is wrapped by
+ * timeScanner() so that the time spent in next_token can be taken out of
+ * the parse phase and reported as the scan phase.
+ */
+class CompileMetrics {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private String file;
+    private boolean cached = false;
+    private int astNodes = 0;
+    private TimedScanner scanner = null;
+
+    private List<Phase> phases = new ArrayList<Phase>();
+    private Map<FnDeclNode,Function> functions =
+        new LinkedHashMap<FnDeclNode,Function>();
+    private Map<String,Long> counts = new LinkedHashMap<String,Long>();
+
+    // the phase and the function being measured, with their start counters
+    private Phase phase = null;
+    private long[] phaseStart;
+    private Counters fnCounters = null;
+    private long[] fnStart;
+
+    public CompileMetrics(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Records that the results were taken from the compilation cache.
+     */
+    public void setCached() {
+        cached = true;
+    }
+
+    /**
+     * Returns a scanner that passes on the tokens of scanner, measuring
+     * the time and allocations spent producing them.
+     */
+    public java_cup.runtime.Scanner timeScanner(java_cup.runtime.Scanner scanner) {
+        this.scanner = new TimedScanner(scanner);
+        return this.scanner;
+    }
+
+    /**
+     * Starts measuring the phase with the given name.
+     */
+    public void beginPhase(String name) {
+        phase = new Phase(name);
+        phaseStart = snapshot();
+    }
+
+    /**
+     * Ends the current phase.  The time the parse phase spent in the
+     * scanner is reported separately as the scan phase.
+     */
+    public void endPhase() {
+        phase.counters.add(phaseStart, snapshot());
+        if (scanner != null && phase.name.equals("parse")) {
+            Phase scan = new Phase("scan");
+            scan.counters.wallNanos = scanner.nanos;
+            scan.counters.allocatedBytes = scanner.bytes;
+            scan.tokens = scanner.tokens;
+            phase.counters.wallNanos -= scanner.nanos;
+            phase.counters.allocatedBytes -= scanner.bytes;
+            phases.add(scan);
+        }
+        phases.add(phase);
+        phase = null;
+    }
+
+    /**
+     * Records the size of the AST produced by the parser.
+     */
+    public void setAst(ProgramNode root) {
+        astNodes = root.numNodes();
+    }
+
+    /**
+     * Starts measuring the part of the current phase spent on function fn.
+     */
+    public void beginFunction(FnDeclNode fn) {
+        Function f = function(fn);
+        fnCounters = f.phase(phase.name);
+        fnStart = snapshot();
+    }
+
+    public void endFunction() {
+        fnCounters.add(fnStart, snapshot());
+        fnCounters = null;
+    }
+
+    /**
+     * Records what the loop optimizer did to the loop of fn at line: the
+     * expressions hoisted out of it and the products reduced.
+     */
+    public void addLoop(FnDeclNode fn, int line, List<String> hoisted,
+                        List<String> reduced) {
+        Function f = function(fn);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"line\": ").append(line);
+        sb.append(", \"hoisted\": ");
+        appendStrings(sb, hoisted);
+        sb.append(", \"reduced\": ");
+        appendStrings(sb, reduced);
+        sb.append("}");
+        f.loopReports.add(sb.toString());
+    }
+
+    /**
+     * Records the size of the AST and of the control-flow graph of every
+     * function in fns.
+     */
+    public void measureFunctions(List<FnDeclNode> fns) {
+        for (FnDeclNode fn : fns) {
+            Function f = function(fn);
+            f.astNodes = fn.numNodes();
+            Cfg cfg = fn.buildCfg();
+            f.blocks = cfg.numBlocks();
+            f.loops = cfg.numLoops();
+        }
+    }
+
+    /**
+     * Adds n to the count called name.
+     */
+    public void count(String name, long n) {
+        Long old = counts.get(name);
+        counts.put(name, old == null ? n : old + n);
+    }
+
+    /**
+     * Returns the metrics as a JSON object.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        Counters total = new Counters();
+        for (Phase p : phases) {
+            total.addAll(p.counters);
+        }
+        sb.append("  {\n");
+        sb.append("    \"file\": ").append(quote(file)).append(",\n");
+        sb.append("    \"cached\": ").append(cached).append(",\n");
+        sb.append("    \"astNodes\": ").append(astNodes).append(",\n");
+        sb.append("    \"total\": ");
+        total.appendJson(sb);
+        sb.append(",\n    \"phases\": [");
+        String sep = "\n";
+        for (Phase p : phases) {
+            sb.append(sep).append("      {\"name\": ").append(quote(p.name));
+            if (p.name.equals("scan")) {
+                sb.append(", \"tokens\": ").append(p.tokens);
+            }
+            sb.append(", \"metrics\": ");
+            p.counters.appendJson(sb);
+            sb.append("}");
+            sep = ",\n";
+        }
+        sb.append(phases.isEmpty() ? "],\n" : "\n    ],\n");
+        sb.append("    \"counts\": {");
+        sep = "";
+        for (Map.Entry<String,Long> e : counts.entrySet()) {
+            sb.append(sep).append(quote(e.getKey())).append(": ").append(e.getValue());
+            sep = ", ";
+        }
+        sb.append("},\n");
+        sb.append("    \"functions\": [");
+        sep = "\n";
+        for (Function f : functions.values()) {
+            sb.append(sep).append("      {\"name\": ").append(quote(f.name));
+            sb.append(", \"line\": ").append(f.line);
+            sb.append(", \"astNodes\": ").append(f.astNodes);
+            sb.append(", \"blocks\": ").append(f.blocks);
+            sb.append(", \"loops\": ").append(f.loops);
+            sb.append(", \"loopReports\": [");
+            String sep2 = "";
+            for (String report : f.loopReports) {
+                sb.append(sep2).append(report);
+                sep2 = ", ";
+            }
+            sb.append("]");
+            sb.append(", \"phases\": {");
+            sep2 = "";
+            for (Map.Entry<String,Counters> e : f.phases.entrySet()) {
+                sb.append(sep2).append(quote(e.getKey())).append(": ");
+                e.getValue().appendJson(sb);
+                sep2 = ", ";
+            }
+            sb.append("}}");
+            sep = ",\n";
+        }
+        sb.append(functions.isEmpty() ? "]\n" : "\n    ]\n");
+        sb.append("  }");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the current values of the measured quantities: wall time,
+     * allocated bytes, lookups and instructions.
+     */
+    private static long[] snapshot() {
+        Compilation comp = Compilation.current();
+        return new long[] { System.nanoTime(), allocatedBytes(),
+                            comp.getNumLookups(), comp.getNumInstructions() };
+    }
+
+    /**
+     * Returns the bytes allocated so far by the calling thread, or 0 if
+     * the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            long bytes = ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+            return Math.max(bytes, 0);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the metrics of function fn, made when first asked for.
+     */
+    private Function function(FnDeclNode fn) {
+        Function f = functions.get(fn);
+        if (f == null) {
+            f = new Function(fn);
+            functions.put(fn, f);
+        }
+        return f;
+    }
+
+    private static void appendStrings(StringBuilder sb, List<String> strings) {
+        sb.append("[");
+        String sep = "";
+        for (String s : strings) {
+            sb.append(sep).append(quote(s));
+            sep = ", ";
+        }
+        sb.append("]");
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static class Counters {
+        long wallNanos;
+        long allocatedBytes;
+        long lookups;
+        long instructions;
+
+        void add(long[] start, long[] end) {
+            wallNanos += end[0] - start[0];
+            allocatedBytes += end[1] - start[1];
+            lookups += end[2] - start[2];
+            instructions += end[3] - start[3];
+        }
+
+        void addAll(Counters c) {
+            wallNanos += c.wallNanos;
+            allocatedBytes += c.allocatedBytes;
+            lookups += c.lookups;
+            instructions += c.instructions;
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"wallNanos\": ").append(wallNanos)
+              .append(", \"allocatedBytes\": ").append(allocatedBytes)
+              .append(", \"lookups\": ").append(lookups)
+              .append(", \"instructions\": ").append(instructions)
+              .append("}");
+        }
+    }
+
+    private static class Phase {
+        String name;
+        Counters counters = new Counters();
+        long tokens;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Function {
+        String name;
+        int line;
+        int astNodes;
+        int blocks;
+        int loops;
+        List<String> loopReports = new ArrayList<String>();
+        Map<String,Counters> phases = new LinkedHashMap<String,Counters>();
+
+        Function(FnDeclNode fn) {
+            name = fn.name();
+            line = fn.lineNum();
+        }
+
+        Counters phase(String name) {
+            Counters c = phases.get(name);
+            if (c == null) {
+                c = new Counters();
+                phases.put(name, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * A scanner measuring the time and allocations of another one.
+     */
+    private static class TimedScanner implements java_cup.runtime.Scanner {
+        private java_cup.runtime.Scanner scanner;
+        long nanos = 0;
+        long bytes = 0;
+        long tokens = 0;
+
+        TimedScanner(java_cup.runtime.Scanner scanner) {
+            this.scanner = scanner;
+        }
+
+        public java_cup.runtime.Symbol next_token() throws Exception {
+            long t0 = System.nanoTime();
+            long a0 = allocatedBytes();
+            java_cup.runtime.Symbol s = scanner.next_token();
+            bytes += allocatedBytes() - a0;
+            nanos += System.nanoTime() - t0;
+            tokens++;
+            return s;
+        }
+    }
+}
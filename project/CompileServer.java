@@ -0,0 +1,325 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * CompileServer
+ *
+ * A compiler that stays up between compilations, so that a build does not
+ * pay for starting a JVM and warming up the scanner and the parser for
+ * every file it compiles.
+ *
+ * The server listens on a local address: a port number on localhost or the
+ * path of a Unix domain socket.  Every connection is handled on a thread of
+ * its own -- a virtual thread when the runtime provides them -- and may
+ * carry several requests.  Each program is compiled as a separate
+ * Compilation, so an error of any kind in one program is reported to its
+ * client only and does not affect the server.  The client sends the
+ * options that change the generated code with every program (see
+ * Options), so clients with different options can share a server.
+ *
+ * Protocol (ints are big-endian, strings are an int length followed by that
+ * many bytes of UTF-8):
+ *     request  COMPILE options source  reply  status code messages diagnostics
+ *     request  STATS                   reply  OK statistics (latencies, cache)
+ * where options are as given on the command line, e.g. "-O -fno-ssa", and
+ * status is OK, ERRORS (errors were reported, no code was generated) or
+ * FAILED (the compilation was aborted by an internal error, or the options
+ * were bad).
+ */
+public class CompileServer {
+    // request kinds
+    public static final int COMPILE = 'C';
+    public static final int STATS = 'S';
+
+    // reply status
+    public static final int OK = 0;
+    public static final int ERRORS = 1;
+    public static final int FAILED = 2;
+
+    // number of latencies kept for the statistics
+    private static final int NUM_SAMPLES = 1 << 16;
+
+    // the longest string taken from the other end, in bytes
+    private static final int MAX_STRING = 1 << 26;
+
+    private String address;
+    private LatencyStats latencies = new LatencyStats(NUM_SAMPLES);
+
+    public CompileServer(String address) {
+        this.address = address;
+    }
+
+    /**
+     * Accepts connections until the process is stopped.  The latency
+     * statistics are printed when it is.
+     */
+    public void serve() throws IOException {
+        final ServerSocketChannel server;
+        if (isPort(address)) {
+            server = ServerSocketChannel.open();
+        } else {
+            Files.deleteIfExists(Paths.get(address));
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        }
+        server.bind(socketAddress(address));
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                System.err.print(latencies.report() + "\n" + Main.stats());
+                if (!isPort(address)) {
+                    try {
+                        Files.deleteIfExists(Paths.get(address));
+                    } catch (IOException ex) {
+                        // nothing more to do on the way out
+                    }
+                }
+            }
+        });
+
+        ExecutorService threads = newThreadPerTaskExecutor();
+        System.err.println("listening on " + address);
+        while (true) {
+            threads.execute(new Connection(server.accept()));
+        }
+    }
+
+    /**
+     * The requests of one client.
+     */
+    private class Connection implements Runnable {
+        private SocketChannel channel;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                         Channels.newInputStream(channel)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                           Channels.newOutputStream(channel)));
+                int kind;
+                while ((kind = in.read()) != -1) {
+                    if (kind == COMPILE) {
+                        String options = readString(in);
+                        String source = readString(in);
+                        long start = System.nanoTime();
+                        compile(options, source, out);
+                        out.flush();
+                        latencies.add(System.nanoTime() - start);
+                    }
+                    else if (kind == STATS) {
+                        out.writeInt(OK);
+                        writeString(out, latencies.report() + "\n" + Main.stats());
+                        out.flush();
+                    }
+                    else {
+                        break;  // not a client of ours
+                    }
+                }
+            } catch (IOException ex) {
+                // the client went away; nothing to answer
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles source with the given options and writes the reply to out.
+     */
+    private static void compile(String options, String source, DataOutputStream out)
+        throws IOException {
+        ByteArrayOutputStream codeBuf = new ByteArrayOutputStream();
+        ByteArrayOutputStream outBuf = new ByteArrayOutputStream();
+        ByteArrayOutputStream errBuf = new ByteArrayOutputStream();
+        PrintStream msgs = new PrintStream(outBuf, true, "UTF-8");
+        PrintStream diags = new PrintStream(errBuf, true, "UTF-8");
+        Compilation comp = new Compilation(new AsmWriter(codeBuf), msgs, diags);
+
+        int status;
+        try {
+            comp.setOptions(Options.parse(options));
+        } catch (IllegalArgumentException ex) {
+            diags.println("bad options: " + ex.getMessage());
+            out.writeInt(FAILED);
+            writeString(out, "");
+            writeString(out, "");
+            writeString(out, errBuf.toString("UTF-8"));
+            return;
+        }
+        try {
+            if (!Main.compile(comp, new StringReader(source))) {
+                status = FAILED;
+            } else {
+                status = comp.getErr() ? ERRORS : OK;
+            }
+        } catch (RuntimeException ex) {
+            diags.println("internal error: " + ex);
+            status = FAILED;
+        } catch (StackOverflowError ex) {
+            diags.println("internal error: program too deeply nested");
+            status = FAILED;
+        }
+        comp.code().flush();
+
+        out.writeInt(status);
+        writeString(out, codeBuf.toString("UTF-8"));
+        writeString(out, outBuf.toString("UTF-8"));
+        writeString(out, errBuf.toString("UTF-8"));
+    }
+
+    /**
+     * Has the server at address compile the given files with the given
+     * options, writing code, messages and diagnostics as a local
+     * compilation would.  With no files, prints the statistics of the
+     * server.
+     * Returns false if some file could not be read or compiled.
+     */
+    public static boolean compileRemote(String address, Options options,
+                                        String[] files) throws IOException {
+        SocketChannel channel = SocketChannel.open(socketAddress(address));
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                     Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                       Channels.newOutputStream(channel)));
+            if (files.length == 0) {
+                out.writeByte(STATS);
+                out.flush();
+                in.readInt();
+                System.out.print(readString(in));
+                return true;
+            }
+
+            boolean ok = true;
+            for (String filename : files) {
+                String source;
+                try {
+                    source = new String(Files.readAllBytes(Paths.get(filename)),
+                                        StandardCharsets.UTF_8);
+                } catch (IOException ex) {
+                    System.err.println("Error while reading " + filename);
+                    ok = false;
+                    continue;
+                }
+                out.writeByte(COMPILE);
+                writeString(out, options.toString());
+                writeString(out, source);
+                out.flush();
+
+                int status = in.readInt();
+                String code = readString(in);
+                System.out.print(readString(in));
+                System.err.print(readString(in));
+                String name = Main.outputName(filename);
+                try {
+                    Files.write(Paths.get(name), code.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException ex) {
+                    System.err.println("File " + name + " could not be opened for writing.");
+                    ok = false;
+                }
+                ok &= status != FAILED;
+            }
+            return ok;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static boolean isPort(String address) {
+        return address.matches("[0-9]+");
+    }
+
+    private static SocketAddress socketAddress(String address) {
+        if (isPort(address)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                         Integer.parseInt(address));
+        }
+        return UnixDomainSocketAddress.of(address);
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task when the
+     * runtime has virtual threads (Java 21 and later), and a cached pool of
+     * platform threads otherwise.
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Reads a string; a length that is negative or over MAX_STRING is not
+     * from a client or server of ours, and ends the connection.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING) {
+            throw new IOException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Keeps the latencies of the most recent requests and reports their
+     * percentiles.
+     */
+    static class LatencyStats {
+        private long[] samples;  // nanoseconds, used as a ring
+        private int next = 0;
+        private long count = 0;
+
+        LatencyStats(int size) {
+            samples = new long[size];
+        }
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count++;
+        }
+
+        synchronized String report() {
+            int n = (int) Math.min(count, samples.length);
+            if (n == 0) {
+                return "requests: 0";
+            }
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            return String.format("requests: %d  latency (ms) p50: %.3f  p90: %.3f" +
+                                 "  p99: %.3f  max: %.3f",
+                                 count, millis(sorted, 50), millis(sorted, 90),
+                                 millis(sorted, 99), sorted[n - 1] / 1e6);
+        }
+
+        private static double millis(long[] sorted, int percent) {
+            int k = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+            return sorted[Math.max(k, 0)] / 1e6;
+        }
+    }
+}
@@ -2,10 +2,10 @@
  * ErrMsg
  *
  * This class is used to generate warning and fatal error messages.
+ * Messages go to the diagnostic stream of the current compilation.
  */
 class ErrMsg {
-	private static boolean err = false;
-	
+
     /**
      * Generates a fatal error message.
      * @param lineNum line number for error location
@@ -13,8 +13,9 @@ class ErrMsg {
      * @param msg associated message for error
      */
     static void fatal(int lineNum, int charNum, String msg) {
-		err = true;
-        System.err.println(lineNum + ":" + charNum + " ***ERROR*** " + msg);
+		Compilation comp = Compilation.current();
+		comp.setErr();
+        comp.err().println(lineNum + ":" + charNum + " ***ERROR*** " + msg);
     }
 
     /**
@@ -24,13 +25,13 @@ class ErrMsg {
      * @param msg associated message for warning
      */
     static void warn(int lineNum, int charNum, String msg) {
-        System.err.println(lineNum + ":" + charNum + " ***WARNING*** " + msg);
+        Compilation.current().err().println(lineNum + ":" + charNum + " ***WARNING*** " + msg);
     }
-	
+
 	/**
-	 * Returns the err flag.
+	 * Returns the err flag of the current compilation.
 	 */
 	static boolean getErr() {
-		return err;
+		return Compilation.current().getErr();
 	}
 }
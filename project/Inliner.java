@@ -0,0 +1,393 @@
+import java.util.*;
+
+/**
+ * Inliner
+ *
+ * The substitution of the bodies of small functions for their calls, done
+ * on the AST after type checking (see ProgramNode.inline).  A call
+ *     x = f(a, b);
+ * of int f(int p, int q) { int y; ... return e; ... } becomes
+ *     p$1 = a;
+ *     q$2 = b;
+ *     y$3 = 0;
+ *     ... f$4 = e; ...
+ *     x = f$4;
+ * where the locals and formals of f are renamed to new locals of the
+ * caller (see rename), so that they cannot capture or be captured by the
+ * caller's own.  A return is an assignment to the local for the value,
+ * and leaves out the rest of the statements it ends.  Where a return may
+ * be taken in the middle of the body, inside an if or a while, the body
+ * gets a local flag done as well: the return sets it, the statements after
+ * one that may return are put in an if (!done), and a while that may
+ * return tests !done first.
+ *
+ * The bodies are put before the statement the calls are in, so a call is
+ * inlined only if moving it there keeps the order of what is evaluated:
+ * nothing with side effects (see ExpNode.hasSideEffects) and no global,
+ * which the body may write, may be evaluated before it in the statement,
+ * and it must not be in the right-hand side of && or ||, nor in the
+ * condition of a while, which are not always evaluated or evaluated many
+ * times (see the inlineCalls methods of the nodes).
+ *
+ * The functions are done bottom-up, in a depth-first walk of the call
+ * graph: the calls in a function are inlined after the ones in the
+ * functions it calls, so that what is substituted is already inlined
+ * itself.  A function the walk comes back to while doing it is recursive,
+ * and none of its calls are inlined, not even into other functions.
+ * Neither are calls of main, nor of functions with struct locals, which
+ * cannot be set to zero as the prologue does.  The limits are:
+ *     size     the number of AST nodes of a function inlined
+ *     growth   the nodes added to the program by all the inlining, as a
+ *              percentage of its nodes before
+ *     depth    how many functions deep a call may be inlined into
+ *              another inlined body
+ * The counts inline.calls and inline.nodes report the calls inlined and
+ * the nodes they added.
+ */
+class Inliner {
+    // what the copy of a statement does (see StmtNode.inlineCopy)
+    public static final int NO_RETURN = 0;
+    public static final int MAY_RETURN = 1;
+    public static final int RETURNS = 2;
+
+    // the states of a function in the walk
+    private static final int IN_PROGRESS = 1;
+    private static final int DONE = 2;
+
+    private int maxSize;
+    private int maxGrowth;
+    private int maxDepth;
+
+    // the functions by their infos, their states, and the ones being done
+    private Map<SymInfo,FnDeclNode> fns = new HashMap<SymInfo,FnDeclNode>();
+    private Map<FnDeclNode,Integer> states = new HashMap<FnDeclNode,Integer>();
+    private List<FnDeclNode> stack = new ArrayList<FnDeclNode>();
+    private Set<FnDeclNode> recursive = new HashSet<FnDeclNode>();
+
+    // how deep the inlined bodies of a function go, and its size once its
+    // calls are inlined
+    private Map<FnDeclNode,Integer> depths = new HashMap<FnDeclNode,Integer>();
+    private Map<FnDeclNode,Integer> sizes = new HashMap<FnDeclNode,Integer>();
+
+    // the nodes the program may still grow by
+    private int budget;
+
+    // the function whose calls are inlined, the bodies of the calls of
+    // the statement being done, and whether a call in it can no longer be
+    // moved before it: if something that must stay in place was
+    // evaluated (blocked), or a local was read and then assigned, so that
+    // not even the arguments of a call can be moved (stopped)
+    private FnDeclNode caller;
+    private List<StmtNode> before;
+    private boolean blocked;
+    private boolean readLocal;
+    private boolean stopped;
+
+    // for the body being copied: the new locals for the locals and
+    // formals, with their names, the local for the value and the flag
+    private Map<SymInfo,SymInfo> renames;
+    private Map<SymInfo,String> names = new HashMap<SymInfo,String>();
+    private SymInfo result;
+    private SymInfo done;
+    private boolean setsDone;
+    private boolean failed;
+    private int numTemps = 0;
+
+    public Inliner(int maxSize, int maxGrowth, int maxDepth) {
+        this.maxSize = maxSize;
+        this.maxGrowth = maxGrowth;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Inlines the calls in the given functions, the functions of the
+     * program.
+     */
+    public void run(List<FnDeclNode> functions) {
+        int nodes = 0;
+        for (FnDeclNode fn : functions) {
+            if (fn.info() != null) {
+                fns.put(fn.info(), fn);
+            }
+            nodes += fn.numNodes();
+        }
+        budget = (int) ((long) nodes * maxGrowth / 100);
+        for (FnDeclNode fn : functions) {
+            if (!states.containsKey(fn)) {
+                walk(fn);
+            }
+        }
+    }
+
+    /**
+     * Inlines the calls in fn, after the ones in the functions it calls.
+     */
+    private void walk(FnDeclNode fn) {
+        FnDeclNode savedCaller = caller;
+        List<StmtNode> savedBefore = before;
+        boolean savedBlocked = blocked;
+        boolean savedReadLocal = readLocal;
+        boolean savedStopped = stopped;
+        states.put(fn, IN_PROGRESS);
+        stack.add(fn);
+        depths.put(fn, 0);
+        caller = fn;
+        fn.inlineCalls(this);
+        stack.remove(stack.size() - 1);
+        states.put(fn, DONE);
+        sizes.put(fn, fn.numNodes());
+        caller = savedCaller;
+        before = savedBefore;
+        blocked = savedBlocked;
+        readLocal = savedReadLocal;
+        stopped = savedStopped;
+    }
+
+    /**
+     * Starts on the calls of a statement.
+     */
+    public void beginStmt() {
+        before = new ArrayList<StmtNode>();
+        blocked = false;
+        readLocal = false;
+        stopped = false;
+    }
+
+    /**
+     * Ends the statement, adding the bodies of its calls inlined to stmts.
+     */
+    public void endStmt(List<StmtNode> stmts) {
+        stmts.addAll(before);
+        before = null;
+    }
+
+    /**
+     * Reports that the statement evaluated something that must stay in
+     * its place; no later call of it is inlined.
+     */
+    public void block() {
+        blocked = true;
+    }
+
+    /**
+     * Reports that the statement read the variable with the given info.
+     */
+    public void read(SymInfo info) {
+        if (info.isGlobal()) {
+            blocked = true;
+        }
+        else {
+            readLocal = true;
+        }
+    }
+
+    /**
+     * Reports an assignment inside an expression of the statement: if a
+     * local was read before, the calls it is an argument of cannot be
+     * moved either.
+     */
+    public void assigned() {
+        blocked = true;
+        if (readLocal) {
+            stopped = true;
+        }
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * Inlines call if it can be, and returns the expression to use in its
+     * place: the local with its value, or null for a void function, or the
+     * call itself if it is not inlined.  movable is whether the call could
+     * be moved before the statement when it was started, before its
+     * arguments were done.
+     */
+    public ExpNode inline(CallExpNode call, boolean movable) {
+        FnDeclNode callee = fns.get(call.fnInfo());
+        if (!movable || stopped || callee == null || callee.name().equals("main")
+            || !fits(callee)) {
+            blocked = true;
+            return call;
+        }
+        FnInfo info = callee.info();
+        renames = new LinkedHashMap<SymInfo,SymInfo>();
+        result = null;
+        if (!info.getReturnType().isVoidType()) {
+            result = newLocal(info.getReturnType(), callee.name());
+        }
+        done = null;
+        setsDone = false;
+        failed = false;
+        List<StmtNode> body = new ArrayList<StmtNode>();
+        callee.inlineCopy(this, body);
+        if (done != null) {
+            // some return is taken in the middle: the returns set the flag
+            setsDone = true;
+            body.clear();
+            callee.inlineCopy(this, body);
+        }
+        if (failed) {
+            blocked = true;
+            return call;
+        }
+
+        // the formals are set to the arguments in order, and the locals to
+        // zero, as the prologue does; unused arguments without side
+        // effects are left out
+        int line = call.lineNum();
+        int col = call.charNum();
+        Set<SymInfo> formals = new HashSet<SymInfo>();
+        Iterator<ExpNode> args = call.args().iterator();
+        for (IdNode formal : callee.formals()) {
+            ExpNode arg = args.next();
+            formals.add(formal.info());
+            if (renames.containsKey(formal.info()) || arg.hasSideEffects()) {
+                before.add(assign(rename(formal), arg, line, col));
+            }
+        }
+        for (Map.Entry<SymInfo,SymInfo> e : renames.entrySet()) {
+            if (!formals.contains(e.getKey())) {
+                before.add(assign(e.getValue(), zero(e.getValue(), call), line, col));
+            }
+        }
+        if (done != null) {
+            before.add(assign(done, new FalseNode(line, col), line, col));
+        }
+        before.addAll(body);
+
+        for (SymInfo local : renames.values()) {
+            allocate(local);
+        }
+        if (result != null) {
+            allocate(result);
+        }
+        if (done != null) {
+            allocate(done);
+        }
+
+        int size = sizes.get(callee);
+        budget -= size;
+        depths.put(caller, Math.max(depths.get(caller), depths.get(callee) + 1));
+        Compilation comp = Compilation.current();
+        comp.count("inline.calls", 1);
+        comp.count("inline.nodes", size);
+        return result == null ? null : use(result, line, col);
+    }
+
+    /**
+     * Returns true if callee is within the limits and is not recursive;
+     * callee is walked first if it has not been.
+     */
+    private boolean fits(FnDeclNode callee) {
+        Integer state = states.get(callee);
+        if (state == null) {
+            walk(callee);
+        }
+        else if (state == IN_PROGRESS) {
+            // a cycle: every function on it is recursive
+            for (int k = stack.indexOf(callee); k < stack.size(); k++) {
+                recursive.add(stack.get(k));
+            }
+            return false;
+        }
+        if (recursive.contains(callee) || depths.get(callee) + 1 > maxDepth) {
+            return false;
+        }
+        int size = sizes.get(callee);
+        return size <= maxSize && size <= budget;
+    }
+
+    /**
+     * Returns the new local for the local or formal of the function being
+     * copied that id is, named after it; globals and functions are kept.
+     */
+    public SymInfo rename(IdNode id) {
+        SymInfo info = id.info();
+        if (info == null || info.isGlobal() || info instanceof FnInfo) {
+            return info;
+        }
+        if (info instanceof StructInfo) {
+            failed = true;
+            return info;
+        }
+        SymInfo local = renames.get(info);
+        if (local == null) {
+            local = newLocal(info.getType(), id.name());
+            renames.put(info, local);
+        }
+        return local;
+    }
+
+    /**
+     * Returns the name of a new local, or null for any other info.
+     */
+    public String name(SymInfo info) {
+        return names.get(info);
+    }
+
+    /**
+     * Adds the copy of a return at the position of statement at with the
+     * given value, if any, to stmts: the value is assigned to its local,
+     * and the flag is set if any return needs it.
+     */
+    public void returnFrom(ExpNode value, StmtNode at, List<StmtNode> stmts) {
+        if (value != null && result != null) {
+            stmts.add(assign(result, value, at.lineNum(), at.charNum()));
+        }
+        if (setsDone) {
+            stmts.add(assign(done, new TrueNode(at.lineNum(), at.charNum()),
+                             at.lineNum(), at.charNum()));
+        }
+    }
+
+    /**
+     * Returns a test that the function being copied has not returned yet,
+     * at the position of statement at.
+     */
+    public ExpNode notDone(StmtNode at) {
+        if (done == null) {
+            done = newLocal(new BoolType(), "done");
+        }
+        return new NotNode(use(done, at.lineNum(), at.charNum()));
+    }
+
+    /**
+     * Returns a new local of the given type, named prefix$N; it gets its
+     * place in the frame of the caller when the call is inlined.
+     */
+    private SymInfo newLocal(Type type, String prefix) {
+        SymInfo info = new SymInfo(type);
+        // not a C-- identifier, so it cannot clash with one
+        names.put(info, prefix + "$" + ++numTemps);
+        return info;
+    }
+
+    private void allocate(SymInfo local) {
+        FnInfo fnInfo = caller.info();
+        int size = fnInfo.getLocalSize() + local.size();
+        fnInfo.setLocalSize(size);
+        local.setOffSet(-4 - size);
+    }
+
+    /**
+     * Returns a use of local at the given position.
+     */
+    private IdNode use(SymInfo local, int line, int col) {
+        IdNode id = new IdNode(line, col, names.get(local));
+        id.link(local);
+        return id;
+    }
+
+    private StmtNode assign(SymInfo local, ExpNode value, int line, int col) {
+        return new AssignStmtNode(new AssignNode(use(local, line, col), value));
+    }
+
+    private static ExpNode zero(SymInfo local, ExpNode at) {
+        if (local.getType().isBoolType()) {
+            return new FalseNode(at.lineNum(), at.charNum());
+        }
+        return new IntLitNode(at.lineNum(), at.charNum(), 0);
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * An exception class for internal errors of the compiler, i.e. states of
+ * the AST or of the symbol table that the passes do not expect.
+ * It aborts the current compilation only; the caller reports the message
+ * and goes on with the next one.
+ */
+public class InternalErrorException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public InternalErrorException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Interpreter
+ *
+ * The run of a program straight from its AST, after type checking and the
+ * AST passes that are on, instead of generating code for it: the exec
+ * methods of the statements and the value methods of the expressions
+ * carry it out, and come here for the state of the run.
+ *
+ * The variables are words in int arrays, at the places their infos give
+ * them, so that no name is looked up while running.  A global is at its
+ * offset in the globals, which the run lays out from 0 in the order they
+ * are declared.  A local or formal is in the frame of its call on the
+ * frame stack, at slot fp - offset / 4 for its offset from $fp: the frames
+ * are those of the generated code, mirrored to grow up the array.  A call
+ * pushes the actuals in order, so that with n formals the first is at
+ * fp - n, as it is at 4n($fp) in the generated code; fp and fp + 1 stand
+ * for the saved $ra and $fp, and the locals follow, set to zero as the
+ * prologue does.  A field is at the offset of its struct plus its own (see
+ * DotAccessExpNode.fieldOffset).
+ *
+ * cin reads ints separated by white space, and 0 once the input is used
+ * up.  A division by zero or a frame stack of more than MAX_STACK words
+ * stops the run with a runtime error, reported as a fatal error of the
+ * compilation.
+ *
+ * The counts run.stmts and run.calls report the statements executed and
+ * the calls made, calls.F and stmts.F those of the function F.
+ */
+class Interpreter {
+    // the most words the frame stack may take, as many as in the 16 MB
+    // stack of the Simulator
+    private static final int MAX_STACK = 4 << 20;
+
+    /**
+     * A function of the program, with its counts.
+     */
+    private static class Function {
+        FnDeclNode decl;
+        int frameWords;     // the words of its locals
+        long calls = 0;
+        long stmts = 0;
+
+        Function(FnDeclNode decl) {
+            this.decl = decl;
+            frameWords = decl.info().getLocalSize() / 4;
+        }
+    }
+
+    /**
+     * What stops the run.
+     */
+    private static class RuntimeError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RuntimeError(String msg) {
+            super(msg);
+        }
+    }
+
+    private IntReader in;
+    private PrintStream out;
+
+    private int[] globals;
+    private int[] stack = new int[1 << 12];
+    private int fp = 0;
+    private int top = 0;        // the first free slot of the frame stack
+    private int result = 0;     // the value of the last return
+
+    // the functions by their infos, in the order they are declared, and
+    // the one running
+    private Map<SymInfo,Function> fns = new LinkedHashMap<SymInfo,Function>();
+    private Function current;
+
+    /**
+     * Creates a run reading cin from in, which the caller buffers, and
+     * writing cout to out.
+     */
+    public Interpreter(InputStream in, PrintStream out) {
+        this.in = new IntReader(in);
+        this.out = out;
+    }
+
+    /**
+     * Runs main of the program with the given functions and globals, and
+     * reports the counts.
+     */
+    public void run(List<FnDeclNode> functions, List<VarDeclNode> globalDecls) {
+        int size = 0;
+        for (VarDeclNode global : globalDecls) {
+            global.info().setOffSet(size);
+            size += global.info().size();
+        }
+        globals = new int[size / 4];
+        Function main = null;
+        for (FnDeclNode fn : functions) {
+            if (fn.info() != null) {
+                Function f = new Function(fn);
+                fns.put(fn.info(), f);
+                if (fn.name().equals("main")) {
+                    main = f;
+                }
+            }
+        }
+
+        Compilation comp = Compilation.current();
+        try {
+            // main has no actuals: any formals it has are 0
+            int base = top;
+            top += main.decl.formals().size();
+            enter(main, base);
+        } catch (RuntimeError ex) {
+            out.flush();
+            comp.err().println("runtime error: " + ex.getMessage());
+            comp.setErr();
+        } catch (StackOverflowError ex) {
+            out.flush();
+            comp.err().println("runtime error: stack overflow");
+            comp.setErr();
+        }
+        out.flush();
+
+        long stmts = 0;
+        long calls = 0;
+        for (Function f : fns.values()) {
+            stmts += f.stmts;
+            calls += f.calls;
+        }
+        comp.count("run.stmts", stmts);
+        comp.count("run.calls", calls);
+        for (Function f : fns.values()) {
+            if (f.calls != 0) {
+                comp.count("calls." + f.decl.name(), f.calls);
+            }
+        }
+        for (Function f : fns.values()) {
+            if (f.calls != 0) {
+                comp.count("stmts." + f.decl.name(), f.stmts);
+            }
+        }
+    }
+
+    /**
+     * Calls the function with info fn on the actuals args, evaluated in
+     * order in the frame of the caller, and returns what it returns: the
+     * value of its return statement, or 0 if it has none.
+     */
+    public int call(SymInfo fn, List<ExpNode> args) {
+        int base = top;
+        for (ExpNode arg : args) {
+            int val = arg.value(this);
+            reserve(top + 1);
+            stack[top++] = val;
+        }
+        return enter(fns.get(fn), base);
+    }
+
+    /**
+     * Runs f in a new frame above its actuals, which start at slot base.
+     */
+    private int enter(Function f, int base) {
+        int savedFp = fp;
+        Function savedCurrent = current;
+        fp = top;
+        int end = fp + 2 + f.frameWords;
+        reserve(end);
+        Arrays.fill(stack, fp, end, 0);
+        top = end;
+        current = f;
+        f.calls++;
+        boolean returned = f.decl.exec(this);
+        int val = returned ? result : 0;
+        current = savedCurrent;
+        fp = savedFp;
+        top = base;
+        return val;
+    }
+
+    /**
+     * Makes room for the frame stack up to slot end.
+     */
+    private void reserve(int end) {
+        if (end <= stack.length) {
+            return;
+        }
+        if (end > MAX_STACK) {
+            throw new RuntimeError("stack overflow");
+        }
+        stack = Arrays.copyOf(stack, Math.min(Math.max(end, 2 * stack.length), MAX_STACK));
+    }
+
+    public void setResult(int val) {
+        result = val;
+    }
+
+    /**
+     * Returns the word at offset bytes into the variable with the given
+     * info.
+     */
+    public int load(SymInfo info, int offset) {
+        if (info.isGlobal()) {
+            return globals[(info.getOffSet() + offset) >> 2];
+        }
+        return stack[fp - ((info.getOffSet() + offset) >> 2)];
+    }
+
+    /**
+     * Stores val at offset bytes into the variable with the given info.
+     */
+    public void store(SymInfo info, int offset, int val) {
+        if (info.isGlobal()) {
+            globals[(info.getOffSet() + offset) >> 2] = val;
+        }
+        else {
+            stack[fp - ((info.getOffSet() + offset) >> 2)] = val;
+        }
+    }
+
+    /**
+     * Counts a statement executed.
+     */
+    public void step() {
+        current.stmts++;
+    }
+
+    public int divide(int v1, int v2) {
+        if (v2 == 0) {
+            throw new RuntimeError("division by zero");
+        }
+        return v1 / v2;
+    }
+
+    /**
+     * Reads an int for cin; what was written so far is shown first.
+     */
+    public int read() {
+        out.flush();
+        return in.nextInt();
+    }
+
+    public void write(int val) {
+        out.print(val);
+    }
+
+    public void write(String text) {
+        out.print(text);
+    }
+
+    /**
+     * Reads ints separated by white space; 0 at the end of the input.  It
+     * reads one char past every int, so the runs of several programs can
+     * read one input in turn.
+     */
+    private static class IntReader {
+        private InputStream in;
+
+        IntReader(InputStream in) {
+            this.in = in;
+        }
+
+        int nextInt() {
+            try {
+                int ch = in.read();
+                while (ch >= 0 && Character.isWhitespace(ch)) {
+                    ch = in.read();
+                }
+                boolean neg = ch == '-';
+                if (neg) {
+                    ch = in.read();
+                }
+                int n = 0;
+                while (ch >= '0' && ch <= '9') {
+                    n = n * 10 + (ch - '0');
+                    ch = in.read();
+                }
+                return neg ? -n : n;
+            } catch (IOException ex) {
+                return 0;
+            }
+        }
+    }
+}
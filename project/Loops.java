@@ -0,0 +1,403 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Loops
+ *
+ * The optimization of the while loops of a function body, done on the AST
+ * one loop at a time from the outermost loops in (see
+ * WhileStmtNode.optimizeLoops):
+ *     hoist    an expression whose value cannot change while the loop
+ *              runs is computed once, into a new local, before the loop,
+ *              and the loop uses the local instead -- so are the loads of
+ *              globals and of struct fields the loop does not write
+ *     reduce   a product i * c of a basic induction variable i, a local
+ *              the loop only adds constants to, and a literal or
+ *              invariant variable c becomes a new local, set to i * c
+ *              before the loop and increased by c times the step right
+ *              after every step of i
+ *     rotate   the loop tests its condition at the bottom, so that an
+ *              iteration takes one branch instead of a jump and a branch
+ *              (see WhileStmtNode.codeGen)
+ *
+ * An expression is invariant if it has no side effects (see
+ * ExpNode.hasSideEffects), so that evaluating it early cannot trap even
+ * if the loop is never entered, and the loop writes none of its
+ * variables; the variables of a struct are its fields, one per offset.
+ * Since a call may write any global, the globals are invariant only in
+ * loops without calls.  Nothing is hoisted from the branches of if
+ * statements, which may run in few iterations or none, so that the loop
+ * does not pay for computing what it seldom needs.  Hoisting from the
+ * outermost loop in moves an expression out of every loop it is
+ * invariant in at once, and equal expressions share a local.
+ *
+ * The loop is first scanned for what it writes and calls and for its
+ * products through the loopScan methods of the nodes, then rewritten
+ * through the loopRewrite methods.  The new locals are added to the frame
+ * of the function; as they are used in loops, they are the first to be
+ * kept in registers (see FnDeclNode.promote).  What was done to every loop
+ * is reported to the metrics, if any (see CompileMetrics.addLoop).
+ */
+class Loops {
+    private FnDeclNode fn;
+    private FnInfo fnInfo;
+    private int numTemps = 0;
+
+    // what the loop being optimized writes: the variables assigned or
+    // read into, the fields of structs by offset, and the variables it
+    // only adds constants to, with whether any step is not 1 or -1
+    private Set<SymInfo> assigned = new HashSet<SymInfo>();
+    private Map<SymInfo,Set<Integer>> fields = new HashMap<SymInfo,Set<Integer>>();
+    private Set<SymInfo> stepped = new HashSet<SymInfo>();
+    private Set<SymInfo> nonUnit = new HashSet<SymInfo>();
+    private boolean hasCall;
+
+    // stands for the loop being optimized, for the expressions to tell
+    // which loop the invariance they keep is for (see
+    // BinaryExpNode.isInvariant)
+    private Object loop = null;
+
+    // how many branches of if statements the rewrite is in
+    private int branches = 0;
+
+    // the steps of the loop, with their variables and amounts
+    private List<StmtNode> steps = new ArrayList<StmtNode>();
+    private List<SymInfo> stepVars = new ArrayList<SymInfo>();
+    private List<Integer> stepAmounts = new ArrayList<Integer>();
+
+    // the products of two operands in the loop
+    private List<ExpNode> products = new ArrayList<ExpNode>();
+    private List<ExpNode> factors1 = new ArrayList<ExpNode>();
+    private List<ExpNode> factors2 = new ArrayList<ExpNode>();
+
+    // the locals for the hoisted expressions and the reduced products,
+    // and the statements setting them before the loop
+    private Map<List<Object>,SymInfo> hoisted = new HashMap<List<Object>,SymInfo>();
+    private Map<ExpNode,SymInfo> reduced = new IdentityHashMap<ExpNode,SymInfo>();
+    private Map<StmtNode,List<StmtNode>> updates = new IdentityHashMap<StmtNode,List<StmtNode>>();
+    private Map<SymInfo,String> names = new IdentityHashMap<SymInfo,String>();
+    private List<StmtNode> preheader = new ArrayList<StmtNode>();
+    private List<String> hoistedTexts = new ArrayList<String>();
+    private List<String> reducedTexts = new ArrayList<String>();
+
+    /**
+     * Creates the loop optimizer of function fn, whose frame is described
+     * by fnInfo.
+     */
+    public Loops(FnDeclNode fn, FnInfo fnInfo) {
+        this.fn = fn;
+        this.fnInfo = fnInfo;
+    }
+
+    /**
+     * Starts the optimization of a loop.
+     */
+    public void beginLoop() {
+        loop = new Object();
+        assigned.clear();
+        fields.clear();
+        stepped.clear();
+        nonUnit.clear();
+        hasCall = false;
+        steps.clear();
+        stepVars.clear();
+        stepAmounts.clear();
+        products.clear();
+        factors1.clear();
+        factors2.clear();
+        hoisted.clear();
+        reduced.clear();
+        updates.clear();
+        preheader = new ArrayList<StmtNode>();
+        hoistedTexts.clear();
+        reducedTexts.clear();
+    }
+
+    /**
+     * Ends the scan of the loop and chooses the products to reduce.
+     */
+    public void endScan() {
+        Map<List<Object>,SymInfo> temps = new HashMap<List<Object>,SymInfo>();
+        for (int k = 0; k < products.size(); k++) {
+            ExpNode iv = factors1.get(k);
+            ExpNode factor = factors2.get(k);
+            if (!isReducible(iv, factor)) {
+                iv = factors2.get(k);
+                factor = factors1.get(k);
+                if (!isReducible(iv, factor)) {
+                    continue;
+                }
+            }
+            SymInfo ivInfo = ((IdNode)iv).info();
+            Object factorKey = factor.isConstant()
+                ? (Object)factor.constValue() : ((IdNode)factor).info();
+            List<Object> key = Arrays.asList(ivInfo, factorKey);
+            SymInfo temp = temps.get(key);
+            if (temp == null) {
+                ExpNode product = products.get(k);
+                temp = newTemp(new IntType(), "iv");
+                temps.put(key, temp);
+                preheader.add(assign(temp, new TimesNode(copy(iv), copy(factor)), product));
+                reducedTexts.add(text(product));
+                for (int s = 0; s < steps.size(); s++) {
+                    if (stepVars.get(s) == ivInfo) {
+                        addUpdate(steps.get(s), temp, factor, stepAmounts.get(s), product);
+                    }
+                }
+            }
+            reduced.put(products.get(k), temp);
+        }
+    }
+
+    /**
+     * Ends the optimization of the loop that starts at line, and returns
+     * the statements to put before it.
+     */
+    public List<StmtNode> endLoop(int line) {
+        Compilation comp = Compilation.current();
+        comp.count("loops.hoisted", hoistedTexts.size());
+        comp.count("loops.reduced", reducedTexts.size());
+        comp.count("loops.rotated", 1);
+        CompileMetrics metrics = comp.metrics();
+        if (metrics != null) {
+            metrics.addLoop(fn, line, hoistedTexts, reducedTexts);
+        }
+        return preheader;
+    }
+
+    // **********************************************************************
+    // the scan: called by the loopScan methods of the nodes
+    // **********************************************************************
+
+    /**
+     * Records that the loop writes location loc other than by a step.
+     */
+    public void write(ExpNode loc) {
+        if (loc instanceof IdNode) {
+            assigned.add(((IdNode)loc).info());
+        }
+        else if (loc instanceof DotAccessExpNode) {
+            DotAccessExpNode field = (DotAccessExpNode)loc;
+            IdNode root = field.root();
+            if (root != null) {
+                Set<Integer> offsets = fields.get(root.info());
+                if (offsets == null) {
+                    offsets = new HashSet<Integer>();
+                    fields.put(root.info(), offsets);
+                }
+                offsets.add(field.fieldOffset());
+            }
+        }
+    }
+
+    /**
+     * Records that statement stmt adds amount to location loc.
+     */
+    public void step(StmtNode stmt, ExpNode loc, int amount) {
+        if (!(loc instanceof IdNode)) {
+            write(loc);
+            return;
+        }
+        SymInfo info = ((IdNode)loc).info();
+        stepped.add(info);
+        if (amount != 1 && amount != -1) {
+            nonUnit.add(info);
+        }
+        steps.add(stmt);
+        stepVars.add(info);
+        stepAmounts.add(amount);
+    }
+
+    /**
+     * Records that the loop calls a function.
+     */
+    public void call() {
+        hasCall = true;
+    }
+
+    /**
+     * Records that product is the product of exp1 and exp2.
+     */
+    public void product(ExpNode product, ExpNode exp1, ExpNode exp2) {
+        products.add(product);
+        factors1.add(exp1);
+        factors2.add(exp2);
+    }
+
+    /**
+     * Returns the object standing for the loop being optimized.
+     */
+    public Object loop() {
+        return loop;
+    }
+
+    /**
+     * Returns true if the loop does not change the value of variable id.
+     */
+    public boolean isInvariant(IdNode id) {
+        SymInfo info = id.info();
+        if (info.isGlobal() && hasCall) {
+            return false;
+        }
+        return !assigned.contains(info) && !stepped.contains(info);
+    }
+
+    /**
+     * Returns true if the loop does not change the value of field.
+     */
+    public boolean isInvariant(DotAccessExpNode field) {
+        IdNode root = field.root();
+        if (root == null || (root.info().isGlobal() && hasCall)) {
+            return false;
+        }
+        Set<Integer> offsets = fields.get(root.info());
+        return offsets == null || !offsets.contains(field.fieldOffset());
+    }
+
+    /**
+     * Returns true if iv is a basic induction variable of the loop and
+     * factor a literal or an invariant variable it may be multiplied by:
+     * the steps of iv are then c or -c.
+     */
+    private boolean isReducible(ExpNode iv, ExpNode factor) {
+        if (!(iv instanceof IdNode)) {
+            return false;
+        }
+        SymInfo info = ((IdNode)iv).info();
+        if (info.isGlobal() || !info.getType().isIntType()
+            || !stepped.contains(info) || assigned.contains(info)) {
+            return false;
+        }
+        if (factor.isConstant()) {
+            return true;
+        }
+        return factor instanceof IdNode && isInvariant((IdNode)factor)
+            && !nonUnit.contains(info);
+    }
+
+    // **********************************************************************
+    // the rewrite: called by the loopRewrite methods of the nodes
+    // **********************************************************************
+
+    /**
+     * Returns the expression to use in place of the invariant expression
+     * exp: a use of the local it is computed into before the loop, unless
+     * exp is in a branch of an if statement.
+     */
+    public ExpNode hoist(ExpNode exp) {
+        if (branches > 0) {
+            return exp;
+        }
+        Set<SymInfo> reads = new HashSet<SymInfo>();
+        exp.collectReads(reads);
+        String text = text(exp);
+        // the same text with the same variables is the same expression
+        List<Object> key = Arrays.<Object>asList(text, reads);
+        SymInfo temp = hoisted.get(key);
+        if (temp == null) {
+            temp = newTemp(exp.typeCheck(), "inv");
+            hoisted.put(key, temp);
+            preheader.add(assign(temp, exp, exp));
+            hoistedTexts.add(text);
+        }
+        return use(temp, exp);
+    }
+
+    /**
+     * Starts and ends the rewrite of a branch of an if statement.
+     */
+    public void beginBranch() {
+        branches++;
+    }
+
+    public void endBranch() {
+        branches--;
+    }
+
+    /**
+     * Returns the reduced induction variable to use in place of product,
+     * or null if it is not reduced.
+     */
+    public ExpNode reduced(ExpNode product) {
+        SymInfo temp = reduced.get(product);
+        return temp == null ? null : use(temp, product);
+    }
+
+    /**
+     * Returns the statements to put after statement stmt: the updates of
+     * the reduced induction variables if it is a step.
+     */
+    public List<StmtNode> updates(StmtNode stmt) {
+        List<StmtNode> list = updates.get(stmt);
+        return list == null ? new ArrayList<StmtNode>() : list;
+    }
+
+    private void addUpdate(StmtNode stmt, SymInfo temp, ExpNode factor,
+                           int amount, ExpNode at) {
+        ExpNode value;
+        if (factor.isConstant()) {
+            IntLitNode inc = new IntLitNode(at.lineNum(), at.charNum(),
+                                            amount * factor.constValue());
+            value = new PlusNode(use(temp, at), inc);
+        }
+        else if (amount == 1) {
+            value = new PlusNode(use(temp, at), copy(factor));
+        }
+        else {
+            value = new MinusNode(use(temp, at), copy(factor));
+        }
+        List<StmtNode> list = updates.get(stmt);
+        if (list == null) {
+            list = new ArrayList<StmtNode>();
+            updates.put(stmt, list);
+        }
+        list.add(assign(temp, value, at));
+    }
+
+    /**
+     * Returns a new local of the function of the given type.
+     */
+    private SymInfo newTemp(Type type, String prefix) {
+        SymInfo info = new SymInfo(type);
+        int size = fnInfo.getLocalSize() + info.size();
+        fnInfo.setLocalSize(size);
+        info.setOffSet(-4 - size);
+        // not a C-- identifier, so it cannot clash with one
+        names.put(info, prefix + "$" + ++numTemps);
+        return info;
+    }
+
+    /**
+     * Returns a use of local temp at the position of expression at.
+     */
+    private IdNode use(SymInfo temp, ExpNode at) {
+        IdNode id = new IdNode(at.lineNum(), at.charNum(), names.get(temp));
+        id.link(temp);
+        return id;
+    }
+
+    private StmtNode assign(SymInfo temp, ExpNode value, ExpNode at) {
+        return new AssignStmtNode(new AssignNode(use(temp, at), value));
+    }
+
+    /**
+     * Returns a copy of the literal or variable exp.
+     */
+    private static ExpNode copy(ExpNode exp) {
+        if (exp.isConstant()) {
+            return new IntLitNode(exp.lineNum(), exp.charNum(), exp.constValue());
+        }
+        IdNode id = (IdNode)exp;
+        IdNode copy = new IdNode(id.lineNum(), id.charNum(), id.name());
+        copy.link(id.info());
+        return copy;
+    }
+
+    private static String text(ExpNode exp) {
+        StringWriter sw = new StringWriter();
+        PrintWriter p = new PrintWriter(sw);
+        exp.unparse(p, 0);
+        p.flush();
+        return sw.toString();
+    }
+}
@@ -1,22 +1,196 @@
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java_cup.runtime.*;
 
 /**
- * Main program to do the name analysis of C-- language.
+ * Main program to compile C-- programs.
  *
- * The program reads a in-file, creates a scanner and a parser, and
- * calls the parser.  If the parse is successful, the AST is unparsed
- * in a corresponding out-file
+ * Without arguments, the program repeatedly reads the name of an in-file,
+ * creates a scanner and a parser, and calls the parser.  If the parse is
+ * successful and no errors are found, MIPS code is written to the
+ * corresponding .asm file.
+ *
+ * With file arguments (java Main file1.cmm file2.cmm ...), all the given
+ * files are compiled in batch on a pool with one worker per core.  The
+ * messages of every file are printed in the order of the files, so the
+ * output is the same as compiling the files one after another.
+ *
+ * java Main -run file1.cmm ... runs the files one after another with the
+ * interpreter (see Interpreter) instead of generating code for them, after
+ * the AST passes that are on; they read cin from the standard input in
+ * turn and write cout to the standard output.
+ *
+ * java Main -daemon ADDRESS starts a compile server (see CompileServer)
+ * listening on ADDRESS, a port number on localhost or the path of a Unix
+ * domain socket; java Main -connect ADDRESS file1.cmm ... has the files
+ * compiled by that server, with the options that change the generated
+ * code (-O, -fno-PASS and -inline-*) given to -connect, not to -daemon.
+ *
+ * Options:
+ *     -O               optimize the generated code
+ *     -fno-PASS        with -O, leave out the optimization PASS; the passes
+ *                      are: fold (constant folding, see ExpNode.fold),
+ *                      dce (dead code elimination, see
+ *                      FnBodyNode.elimDeadCode), inline (the bodies of
+ *                      small functions for their calls, see Inliner),
+ *                      ssa (constant and copy
+ *                      propagation and dead assignments, see Ssa),
+ *                      loops (invariant code motion, induction
+ *                      variables and loop rotation, see Loops),
+ *                      promote (variables in registers, see
+ *                      FnDeclNode.promote), tail (tail calls, see
+ *                      FnDeclNode.genTailCall), strength (products and
+ *                      quotients by constants without mul and div, see
+ *                      Codegen.genMultiply), peephole (see Peephole)
+ *     -inline-size N   inline only functions of at most N AST nodes
+ *     -inline-growth N let inlining grow the program by at most N percent
+ *     -inline-depth N  inline at most N calls deep into inlined bodies
+ *     -cache DIR       keep compilation results in DIR (see CompileCache)
+ *     -cache-size N    limit the cache to N bytes (suffix k, m or g allowed)
+ *     -run             run the files with the interpreter
+ *     -stats           print statistics at the end of a batch, including
+ *                      the counts reported by the optimization passes and
+ *                      the runs of the interpreter
+ *     -metrics FILE    write per-phase and per-function metrics of every
+ *                      compilation to FILE as JSON (see CompileMetrics)
  */
 
 public class Main {
+    // default size cap of the compilation cache
+    private static final long DEFAULT_CACHE_SIZE = 256L << 20;
+
+    // the compilation cache, if one is used
+    private static CompileCache cache = null;
+
+    // where to write metrics, if they are wanted, and the metrics so far
+    private static String metricsFile = null;
+    private static List<String> metricsReports = new ArrayList<String>();
+
+    // the options that change the generated code, as given on the command
+    // line; every compilation started here gets them
+    private static Options options = new Options();
+
+    // whether to run the programs instead of generating code, the input
+    // they read in turn, and the stack of the thread that runs them, deep
+    // enough for the recursion of the interpreter
+    private static boolean run = false;
+    private static InputStream runInput;
+    private static final long RUN_STACK = 1L << 28;
+
+    // the stack of the threads that compile a batch, deep enough for the
+    // recursion of the passes over deeply nested expressions
+    private static final long COMPILE_STACK = 1L << 28;
+
+    // the counts of the optimization passes over all compilations
+    private static Map<String,Long> totalCounts = new LinkedHashMap<String,Long>();
+
     public static void main(String[] args) throws IOException { // may be thrown by the scanner
+        String daemon = null;
+        String connect = null;
+        String cacheDir = null;
+        long cacheSize = DEFAULT_CACHE_SIZE;
+        boolean stats = false;
+        boolean codeOptions = false;
+
+        int k = 0;
+        while (k < args.length && args[k].startsWith("-")) {
+            String opt = args[k++];
+            if (opt.equals("-stats")) {
+                stats = true;
+                continue;
+            }
+            if (opt.equals("-O")) {
+                options.setOptimize(true);
+                codeOptions = true;
+                continue;
+            }
+            if (opt.equals("-run")) {
+                run = true;
+                continue;
+            }
+            if (opt.startsWith("-fno-")) {
+                options.disable(opt.substring(5));
+                codeOptions = true;
+                continue;
+            }
+            if (k == args.length) {
+                usage("missing value for " + opt);
+            }
+            String value = args[k++];
+            if (opt.equals("-daemon")) {
+                daemon = value;
+            } else if (opt.equals("-connect")) {
+                connect = value;
+            } else if (opt.equals("-cache")) {
+                cacheDir = value;
+            } else if (opt.equals("-cache-size")) {
+                cacheSize = parseSize(value);
+            } else if (opt.equals("-metrics")) {
+                metricsFile = value;
+            } else if (opt.equals("-inline-size")) {
+                options.setInlineSize(parseLimit(opt, value));
+                codeOptions = true;
+            } else if (opt.equals("-inline-growth")) {
+                options.setInlineGrowth(parseLimit(opt, value));
+                codeOptions = true;
+            } else if (opt.equals("-inline-depth")) {
+                options.setInlineDepth(parseLimit(opt, value));
+                codeOptions = true;
+            } else {
+                usage("unknown option " + opt);
+            }
+        }
+        String[] files = Arrays.copyOfRange(args, k, args.length);
+
+        if (run) {
+            if (files.length == 0) {
+                usage("no files to run");
+            }
+            boolean ok = runAll(files);
+            writeMetrics();
+            if (stats) {
+                printStats();
+            }
+            if (!ok) {
+                System.exit(-1);
+            }
+            return;
+        }
+
+        if (connect != null) {
+            if (!CompileServer.compileRemote(connect, options, files)) {
+                System.exit(-1);
+            }
+            return;
+        }
+        if (cacheDir != null) {
+            cache = new CompileCache(cacheDir, cacheSize);
+        }
+        if (daemon != null) {
+            if (codeOptions) {
+                // the clients send their own with every program
+                usage("-O, -fno-PASS and -inline-* are given to -connect, not -daemon");
+            }
+            new CompileServer(daemon).serve();
+            return;
+        }
+        if (files.length > 0) {
+            boolean ok = compileAll(files);
+            writeMetrics();
+            if (stats) {
+                printStats();
+            }
+            if (!ok) {
+                System.exit(-1);
+            }
+            return;
+        }
+
         java.util.Scanner console = new java.util.Scanner(System.in);
         String stop = "stop";
         String filename = readFileName(console,stop);
-        String[] str = filename.split(".cmm");
-        String name = str[0];
-        
+
         while ( ! filename.equals(stop) ) {
             FileReader inFile = null;
             try {
@@ -26,47 +200,503 @@ public class Main {
                 System.exit(-1);
             }
 
+            String name = outputName(filename);
+            AsmWriter outFile = null;
             try {
-                Codegen.p = new PrintWriter(name + ".asm");
-            } catch (FileNotFoundException ex) {
-                System.err.println("File " + filename + ".out could not be opened for writing.");
+                outFile = AsmWriter.open(name);
+            } catch (IOException ex) {
+                System.err.println("File " + name + " could not be opened for writing.");
                 System.exit(-1);
             }
-            try {
-                processInputFile(inFile);
-            }
-            catch (SyntaxErrorException see) {
-                System.out.println("syntax error: parsing aborted");
-            }
+            Compilation comp = new Compilation(outFile, System.out, System.err);
+            comp.setOptions(options);
+            comp.setMetrics(newMetrics(filename));
+            compile(comp, inFile);
             inFile.close();
-            Codegen.p.close();
+            outFile.close();
+            if (comp.metrics() != null) {
+                metricsReports.add(comp.metrics().toJson());
+            }
             filename = readFileName(console,stop);
         }
+        writeMetrics();
     }
 
-    private static void processInputFile(FileReader inFile) {
-        CmmParser P = new CmmParser(new Yylex(inFile));
+    /**
+     * Runs the compilation comp on the program read from inFile, through
+     * the compilation cache if one is used.
+     * Returns false if the compilation was aborted by an internal error.
+     */
+    static boolean compile(Compilation comp, Reader inFile) throws IOException {
+        if (cache != null) {
+            return cache.compile(comp, inFile);
+        }
+        return compileUncached(comp, inFile);
+    }
+
+    /**
+     * Runs the compilation comp on the program read from inFile.
+     * Returns false if the compilation was aborted by an internal error.
+     */
+    static boolean compileUncached(Compilation comp, Reader inFile) {
+        comp.begin();
+        try {
+            processInputFile(inFile);
+        }
+        catch (SyntaxErrorException see) {
+            comp.out().println("syntax error: parsing aborted");
+        }
+        catch (InternalErrorException iee) {
+            comp.setErr();
+            comp.err().println(iee.getMessage());
+            return false;
+        }
+        finally {
+            comp.end();
+            addCounts(comp.counts());
+        }
+        return true;
+    }
+
+    private static void processInputFile(Reader inFile) {
+        CompileMetrics metrics = Compilation.current().metrics();
+        ProgramNode astRoot = compile(inFile, metrics);
+        if (metrics != null) {
+            // after the timed phases, so that none of them pays for it
+            metrics.measureFunctions(astRoot.functions());
+        }
+    }
+
+    /**
+     * Runs the phases on inFile with the options of the current
+     * compilation, measuring them if metrics is not null, and returns the
+     * AST.
+     */
+    private static ProgramNode compile(Reader inFile, CompileMetrics metrics) {
+        java_cup.runtime.Scanner scanner = new Yylex(inFile);
+        if (metrics != null) {
+            scanner = metrics.timeScanner(scanner);
+        }
+        CmmParser P = new CmmParser(scanner);
         Symbol root = null; // the parser will return a Symbol whose value
                             // field is the translation of the root nonterminal
                             // (i.e., of the nonterminal "program")
         try {
+            beginPhase(metrics, "parse");
             root = P.parse(); // do the parse
+            endPhase(metrics);
             //System.out.println ("program parsed correctly.");
         } catch (SyntaxErrorException see) {
             throw see;
         } catch (Exception ex){
-            System.err.println("Exception occured during parse: " + ex);
-            System.exit(-1);
+            throw new InternalErrorException("Exception occured during parse: " + ex);
         }
         ProgramNode astRoot = (ProgramNode) root.value;
+        if (metrics != null) {
+            metrics.setAst(astRoot);
+        }
+        beginPhase(metrics, "nameAnalysis");
         astRoot.nameAnalysis();  // perform name analysis
+        endPhase(metrics);
+        beginPhase(metrics, "typeCheck");
         astRoot.typeCheck();     // type checking
+        endPhase(metrics);
         //astRoot.unparse(outFile, 0); // perform the unparsing
         if(!ErrMsg.getErr()){
+            Compilation comp = Compilation.current();
+            Options opts = comp.options();
+            fold(astRoot, metrics);
+            if (opts.optimizing("inline")) {
+                beginPhase(metrics, "inline");
+                astRoot.inline(new Inliner(opts.inlineSize(), opts.inlineGrowth(),
+                                           opts.inlineDepth()));
+                endPhase(metrics);
+                // the arguments may fold into the bodies
+                fold(astRoot, metrics);
+            }
+            if (opts.optimizing("ssa")) {
+                beginPhase(metrics, "ssa");
+                astRoot.optimizeSsa();
+                endPhase(metrics);
+                // the literals put in may fold away whole conditions
+                fold(astRoot, metrics);
+            }
+            if (opts.optimizing("loops")) {
+                beginPhase(metrics, "loops");
+                astRoot.optimizeLoops();
+                endPhase(metrics);
+            }
+            if (run) {
+                beginPhase(metrics, "run");
+                astRoot.run(new Interpreter(runInput, comp.out()));
+                endPhase(metrics);
+                return astRoot;
+            }
+            if (opts.optimizing("promote")) {
+                beginPhase(metrics, "promote");
+                astRoot.promote();
+                endPhase(metrics);
+            }
+            if (opts.optimizing("tail")) {
+                beginPhase(metrics, "tail");
+                astRoot.markTailCalls();
+                endPhase(metrics);
+            }
+            comp.setReduceStrength(opts.optimizing("strength"));
+            beginPhase(metrics, "codeGen");
             astRoot.codeGen();
+            endPhase(metrics);
+            if (opts.optimizing("peephole")) {
+                beginPhase(metrics, "peephole");
+                new Peephole(comp.mips()).run(comp);
+                endPhase(metrics);
+            }
+            beginPhase(metrics, "emit");
+            comp.mips().print(comp.code());
+            endPhase(metrics);
+        }
+        return astRoot;
+    }
+
+    /**
+     * Runs the fold and dce passes over the program, if they are on,
+     * counting the nodes each takes out.
+     */
+    private static void fold(ProgramNode astRoot, CompileMetrics metrics) {
+        Compilation comp = Compilation.current();
+        Options opts = comp.options();
+        if (opts.optimizing("fold")) {
+            beginPhase(metrics, "fold");
+            int nodes = astRoot.numNodes();
+            astRoot.fold();
+            comp.count("fold.nodes", nodes - astRoot.numNodes());
+            endPhase(metrics);
+        }
+        if (opts.optimizing("dce")) {
+            beginPhase(metrics, "dce");
+            int nodes = astRoot.numNodes();
+            astRoot.elimDeadCode();
+            comp.count("dce.nodes", nodes - astRoot.numNodes());
+            endPhase(metrics);
+        }
+    }
+
+    private static void beginPhase(CompileMetrics metrics, String name) {
+        if (metrics != null) {
+            metrics.beginPhase(name);
+        }
+    }
+
+    private static void endPhase(CompileMetrics metrics) {
+        if (metrics != null) {
+            metrics.endPhase();
+        }
+    }
+
+    /**
+     * Runs the given files one after another with the interpreter, on a
+     * thread with a stack of RUN_STACK bytes.
+     * Returns false if some file could not be read, did not compile or
+     * stopped with a runtime error.
+     */
+    private static boolean runAll(final String[] files) {
+        runInput = new BufferedInputStream(System.in);
+        final boolean[] ok = { true };
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                for (String filename : files) {
+                    ok[0] &= runFile(filename);
+                }
+            }
+        }, "run", RUN_STACK);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
         }
+        System.out.flush();
+        return ok[0];
     }
-    
+
+    private static boolean runFile(String filename) {
+        FileReader inFile = null;
+        try {
+            inFile = new FileReader(filename);
+        } catch (FileNotFoundException ex) {
+            System.err.println("Error while reading " + filename);
+            return false;
+        }
+        Compilation comp = new Compilation(null, System.out, System.err);
+        comp.setOptions(options);
+        comp.setMetrics(newMetrics(filename));
+        boolean ok = compileUncached(comp, inFile) && !comp.getErr();
+        try {
+            inFile.close();
+        } catch (IOException ex) {
+        }
+        if (comp.metrics() != null) {
+            metricsReports.add(comp.metrics().toJson());
+        }
+        return ok;
+    }
+
+    /**
+     * Compiles all the given files on a fixed pool of worker threads with
+     * stacks of COMPILE_STACK bytes, then prints the messages of each file
+     * in order.
+     * Returns false if some file could not be read or written, or its
+     * compilation failed with an internal error.
+     */
+    private static boolean compileAll(String[] files) {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            private int numThreads = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(null, r, "compile-" + ++numThreads, COMPILE_STACK);
+            }
+        });
+        List<Future<BatchResult>> results = new ArrayList<Future<BatchResult>>();
+        for (String filename : files) {
+            results.add(pool.submit(new BatchJob(filename)));
+        }
+
+        // a file whose compilation failed unexpectedly is reported in its
+        // turn, and the files after it are still printed
+        boolean ok = true;
+        try {
+            for (int i = 0; i < files.length; i++) {
+                BatchResult result;
+                try {
+                    result = results.get(i).get();
+                } catch (ExecutionException ex) {
+                    System.err.println("Exception occured during batch compile of " +
+                                       files[i] + ": " + ex.getCause());
+                    ok = false;
+                    continue;
+                }
+                System.out.write(result.out, 0, result.out.length);
+                System.err.write(result.err, 0, result.err.length);
+                ok &= result.ok;
+                if (result.metrics != null) {
+                    metricsReports.add(result.metrics.toJson());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            ok = false;
+        } finally {
+            pool.shutdownNow();
+        }
+        System.out.flush();
+        System.err.flush();
+        return ok;
+    }
+
+    /**
+     * The compilation of one file of a batch.  Messages are kept in memory
+     * until the file's turn comes to print them.
+     */
+    private static class BatchJob implements Callable<BatchResult> {
+        private String filename;
+
+        BatchJob(String filename) {
+            this.filename = filename;
+        }
+
+        public BatchResult call() throws IOException {
+            ByteArrayOutputStream outBuf = new ByteArrayOutputStream();
+            ByteArrayOutputStream errBuf = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(outBuf);
+            PrintStream err = new PrintStream(errBuf);
+            boolean ok = false;
+            CompileMetrics metrics = newMetrics(filename);
+
+            FileReader inFile = null;
+            try {
+                inFile = new FileReader(filename);
+            } catch (FileNotFoundException ex) {
+                err.println("Error while reading " + filename);
+            }
+
+            if (inFile != null) {
+                String name = outputName(filename);
+                AsmWriter outFile = null;
+                try {
+                    outFile = AsmWriter.open(name);
+                } catch (IOException ex) {
+                    err.println("File " + name + " could not be opened for writing.");
+                }
+                if (outFile != null) {
+                    Compilation comp = new Compilation(outFile, out, err);
+                    comp.setOptions(options);
+                    comp.setMetrics(metrics);
+                    try {
+                        ok = compile(comp, inFile);
+                    } catch (StackOverflowError ex) {
+                        err.println("internal error: program too deeply nested");
+                    }
+                    outFile.close();
+                }
+                inFile.close();
+            }
+
+            out.flush();
+            err.flush();
+            return new BatchResult(outBuf.toByteArray(), errBuf.toByteArray(), ok,
+                                   metrics);
+        }
+    }
+
+    private static class BatchResult {
+        final byte[] out;
+        final byte[] err;
+        final boolean ok;
+        final CompileMetrics metrics;  // possibly null
+
+        BatchResult(byte[] out, byte[] err, boolean ok, CompileMetrics metrics) {
+            this.out = out;
+            this.err = err;
+            this.ok = ok;
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Returns new metrics for the compilation of filename, or null if no
+     * metrics are wanted.
+     */
+    private static CompileMetrics newMetrics(String filename) {
+        return metricsFile == null ? null : new CompileMetrics(filename);
+    }
+
+    /**
+     * Writes the metrics collected so far, if they are wanted, as a JSON
+     * array with one element per compilation.
+     */
+    private static void writeMetrics() throws IOException {
+        if (metricsFile == null) {
+            return;
+        }
+        PrintWriter p = new PrintWriter(metricsFile);
+        p.print("[");
+        String sep = "\n";
+        for (String report : metricsReports) {
+            p.print(sep);
+            p.print(report);
+            sep = ",\n";
+        }
+        p.println(metricsReports.isEmpty() ? "]" : "\n]");
+        p.close();
+    }
+
+    private static synchronized void addCounts(Map<String,Long> counts) {
+        for (Map.Entry<String,Long> e : counts.entrySet()) {
+            Long old = totalCounts.get(e.getKey());
+            totalCounts.put(e.getKey(), old == null ? e.getValue() : old + e.getValue());
+        }
+    }
+
+    /**
+     * Returns the statistics of the services in use and the counts of the
+     * optimization passes, one line per service or pass, e.g.
+     *     peephole: push-pop 120, store-load 4, ...
+     */
+    static synchronized String stats() {
+        StringBuilder sb = new StringBuilder();
+        if (cache != null) {
+            sb.append(cache.stats()).append("\n");
+        }
+        String pass = null;
+        for (Map.Entry<String,Long> e : totalCounts.entrySet()) {
+            String name = e.getKey();
+            int dot = name.indexOf('.');
+            String prefix = dot < 0 ? name : name.substring(0, dot);
+            if (!prefix.equals(pass)) {
+                sb.append(pass == null ? "" : "\n").append(prefix).append(":");
+                pass = prefix;
+            }
+            else {
+                sb.append(",");
+            }
+            sb.append(" ").append(name.substring(dot + 1)).append(" ").append(e.getValue());
+        }
+        if (pass != null) {
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static void printStats() {
+        System.out.print(stats());
+        System.out.flush();
+    }
+
+    /**
+     * Parses a size in bytes, optionally followed by k, m or g.
+     */
+    private static long parseSize(String value) {
+        String digits = value.toLowerCase();
+        int shift = 0;
+        if (digits.endsWith("k")) {
+            shift = 10;
+        } else if (digits.endsWith("m")) {
+            shift = 20;
+        } else if (digits.endsWith("g")) {
+            shift = 30;
+        }
+        if (shift != 0) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            return Long.parseLong(digits) << shift;
+        } catch (NumberFormatException ex) {
+            usage("bad size " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the limit given as the value of option opt, a number that
+     * is not negative.
+     */
+    private static int parseLimit(String opt, String value) {
+        try {
+            int limit = Integer.parseInt(value);
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException ex) {
+        }
+        usage("bad value " + value + " for " + opt);
+        return 0;
+    }
+
+    private static void usage(String msg) {
+        System.err.println(msg);
+        System.err.println("usage: java Main [-O] [-fno-PASS] [-cache DIR] [-cache-size N] [-stats]");
+        System.err.println("                 [-inline-size N] [-inline-growth N] [-inline-depth N]");
+        System.err.println("                 [-metrics FILE] [file.cmm ...]");
+        System.err.println("       java Main [-O] [-fno-PASS] [-stats] [-metrics FILE] -run file.cmm ...");
+        System.err.println("       java Main [-cache DIR] [-cache-size N] -daemon ADDRESS");
+        System.err.println("       java Main [-O] [-fno-PASS] [-inline-size N] [-inline-growth N]");
+        System.err.println("                 [-inline-depth N] -connect ADDRESS [file.cmm ...]");
+        System.exit(-1);
+    }
+
+    /**
+     * Returns the name of the .asm file for the given in-file: its name
+     * with the suffix .cmm, if it has one, replaced by .asm.
+     */
+    static String outputName(String filename) {
+        if (filename.endsWith(".cmm")) {
+            filename = filename.substring(0, filename.length() - ".cmm".length());
+        }
+        return filename + ".asm";
+    }
+
     /**
      * To read a valid input file name or the keyword 'stop' from the user
      */
@@ -76,7 +706,7 @@ public class Main {
             System.out.print("file name? ");
             filename = input.nextLine().trim();
             if ( ! filename.equals(stop) ) {
-                File file = new File(filename);	
+                File file = new File(filename);
                 if ( ! file.exists() ) {
                     System.out.println(filename + " not found");
                     filename = null;
@@ -0,0 +1,374 @@
+import java.util.*;
+
+/**
+ * MipsCode
+ *
+ * The code generated for a program, kept in memory until it is written out
+ * as assembly text by print().  Codegen appends to the code of the current
+ * compilation; passes over the code can read and change it in between.
+ *
+ * An instruction has an opcode, up to three operands, flags and an optional
+ * comment.  An operand is a register, an int, or a symbol (a label or the
+ * text of a string literal).  Symbols and comments are kept once in a table
+ * and referred to by number.  Everything is stored in arrays of primitives
+ * indexed by instruction -- about 21 bytes per instruction, a fraction of
+ * the formatted line.
+ *
+ * A pass changes an instruction in place with set() and the set*(i, ...)
+ * methods, and deletes instructions by marking them with remove(); the
+ * marked ones are squeezed out by compact(), which must be called before
+ * the code is printed.
+ */
+class MipsCode {
+    // kinds of operands
+    public static final byte NONE = 0;
+    public static final byte REG = 1;
+    public static final byte IMM = 2;
+    public static final byte SYM = 3;
+
+    // flags
+    public static final byte INDEXED = 1;  // operands 1 and 2 are printed as
+                                           // the address imm(reg)
+    public static final byte LABELED = 2;  // a directive printed after the
+                                           // label in operand 2
+    public static final byte REMOVED = 4;  // deleted, until compact()
+
+    public static final int MAX_OPERANDS = 3;
+
+    // for pretty printing generated code
+    private static final int MAXLEN = 4;
+
+    private byte[] ops = new byte[256];
+    private byte[] flags = new byte[256];
+    private byte[] kinds = new byte[256 * MAX_OPERANDS];
+    private int[] vals = new int[256 * MAX_OPERANDS];
+    private int[] comments = new int[256];
+    private int size = 0;
+
+    private List<String> syms = new ArrayList<String>();
+    private Map<String,Integer> symIndex = new HashMap<String,Integer>();
+
+    /**
+     * Returns the number of instructions.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all instructions.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    // **********************************************************************
+    // appending: add() appends an instruction without operands, the other
+    // methods give the last instruction its next operand, flags or comment
+    // **********************************************************************
+
+    public int add(Opcode op) {
+        if (size == ops.length) {
+            grow();
+        }
+        ops[size] = (byte) op.ordinal();
+        flags[size] = 0;
+        comments[size] = -1;
+        for (int k = 0; k < MAX_OPERANDS; k++) {
+            kinds[size * MAX_OPERANDS + k] = NONE;
+        }
+        return size++;
+    }
+
+    public void addReg(Register r) {
+        addOperand(REG, r.ordinal());
+    }
+
+    public void addImm(int n) {
+        addOperand(IMM, n);
+    }
+
+    public void addSym(String s) {
+        addOperand(SYM, symbol(s));
+    }
+
+    public void setIndexed() {
+        flags[size - 1] |= INDEXED;
+    }
+
+    /**
+     * Makes the last instruction, a directive, be printed after label.
+     */
+    public void setLabel(String label) {
+        kinds[(size - 1) * MAX_OPERANDS + 2] = SYM;
+        vals[(size - 1) * MAX_OPERANDS + 2] = symbol(label);
+        flags[size - 1] |= LABELED;
+    }
+
+    public void setComment(String comment) {
+        comments[size - 1] = comment.isEmpty() ? -1 : symbol(comment);
+    }
+
+    private void addOperand(byte kind, int val) {
+        int base = (size - 1) * MAX_OPERANDS;
+        int k = 0;
+        while (kinds[base + k] != NONE) {
+            k++;
+        }
+        kinds[base + k] = kind;
+        vals[base + k] = val;
+    }
+
+    // **********************************************************************
+    // changing instruction i in place
+    // **********************************************************************
+
+    /**
+     * Makes instruction i an op without operands, flags or comment.
+     */
+    public void set(int i, Opcode op) {
+        ops[i] = (byte) op.ordinal();
+        flags[i] = 0;
+        comments[i] = -1;
+        for (int k = 0; k < MAX_OPERANDS; k++) {
+            kinds[i * MAX_OPERANDS + k] = NONE;
+        }
+    }
+
+    public void setReg(int i, int k, Register r) {
+        kinds[i * MAX_OPERANDS + k] = REG;
+        vals[i * MAX_OPERANDS + k] = r.ordinal();
+    }
+
+    public void setImm(int i, int k, int n) {
+        kinds[i * MAX_OPERANDS + k] = IMM;
+        vals[i * MAX_OPERANDS + k] = n;
+    }
+
+    /**
+     * Makes operand k of instruction i the symbol numbered id.
+     */
+    public void setSym(int i, int k, int id) {
+        kinds[i * MAX_OPERANDS + k] = SYM;
+        vals[i * MAX_OPERANDS + k] = id;
+    }
+
+    /**
+     * Drops operand k of instruction i; it must be the last one.
+     */
+    public void clearOperand(int i, int k) {
+        kinds[i * MAX_OPERANDS + k] = NONE;
+    }
+
+    public void setIndexed(int i, boolean indexed) {
+        if (indexed) {
+            flags[i] |= INDEXED;
+        }
+        else {
+            flags[i] &= ~INDEXED;
+        }
+    }
+
+    /**
+     * Marks instruction i as deleted.
+     */
+    public void remove(int i) {
+        flags[i] |= REMOVED;
+    }
+
+    public boolean isRemoved(int i) {
+        return (flags[i] & REMOVED) != 0;
+    }
+
+    /**
+     * Deletes the instructions marked by remove(), keeping the order of the
+     * others.
+     */
+    public void compact() {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & REMOVED) != 0) {
+                continue;
+            }
+            if (n != i) {
+                ops[n] = ops[i];
+                flags[n] = flags[i];
+                comments[n] = comments[i];
+                System.arraycopy(kinds, i * MAX_OPERANDS, kinds, n * MAX_OPERANDS, MAX_OPERANDS);
+                System.arraycopy(vals, i * MAX_OPERANDS, vals, n * MAX_OPERANDS, MAX_OPERANDS);
+            }
+            n++;
+        }
+        size = n;
+    }
+
+    // **********************************************************************
+    // reading
+    // **********************************************************************
+
+    public Opcode op(int i) {
+        return Opcode.of(ops[i]);
+    }
+
+    /**
+     * Returns the number of operands of instruction i (not counting the
+     * label of a LABELED directive).
+     */
+    public int numOperands(int i) {
+        int max = (flags[i] & LABELED) != 0 ? MAX_OPERANDS - 1 : MAX_OPERANDS;
+        int n = 0;
+        while (n < max && kinds[i * MAX_OPERANDS + n] != NONE) {
+            n++;
+        }
+        return n;
+    }
+
+    public byte kind(int i, int k) {
+        return kinds[i * MAX_OPERANDS + k];
+    }
+
+    public Register reg(int i, int k) {
+        return Register.of(vals[i * MAX_OPERANDS + k]);
+    }
+
+    public int imm(int i, int k) {
+        return vals[i * MAX_OPERANDS + k];
+    }
+
+    /**
+     * Returns the number of the symbol in operand k of instruction i.
+     */
+    public int symId(int i, int k) {
+        return vals[i * MAX_OPERANDS + k];
+    }
+
+    public String sym(int i, int k) {
+        return syms.get(vals[i * MAX_OPERANDS + k]);
+    }
+
+    public boolean isIndexed(int i) {
+        return (flags[i] & INDEXED) != 0;
+    }
+
+    public boolean isLabeled(int i) {
+        return (flags[i] & LABELED) != 0;
+    }
+
+    /**
+     * Returns the comment of instruction i, or null if it has none.
+     */
+    public String comment(int i) {
+        return comments[i] < 0 ? null : syms.get(comments[i]);
+    }
+
+    /**
+     * Returns the number of symbol s, entering it in the table if needed.
+     */
+    public int symbol(String s) {
+        Integer id = symIndex.get(s);
+        if (id == null) {
+            id = syms.size();
+            syms.add(s);
+            symIndex.put(s, id);
+        }
+        return id;
+    }
+
+    public String symbolName(int id) {
+        return syms.get(id);
+    }
+
+    /**
+     * Returns the number of symbols; they are numbered from 0.
+     */
+    public int numSymbols() {
+        return syms.size();
+    }
+
+    // **********************************************************************
+    // print
+    //    write the code as assembly text:
+    //        label:<tab><tab># comment
+    //        <tab>op<pad>arg1, arg2, arg3<tab><tab>#comment
+    //        <tab>op<pad>arg1, imm(reg)<tab>#comment     (indexed)
+    //        <tab>.directive arg
+    //        label:<tab>.directive arg<tab># comment     (labeled)
+    // **********************************************************************
+    public void print(AsmWriter p) {
+        for (int i = 0; i < size; i++) {
+            Opcode op = op(i);
+            int base = i * MAX_OPERANDS;
+            String comment = comment(i);
+            if (op == Opcode.LABEL) {
+                p.print(sym(i, 0));
+                p.print(':');
+                if (comment != null) {
+                    p.print("\t\t# ");
+                    p.print(comment);
+                }
+                p.println();
+                continue;
+            }
+
+            boolean labeled = isLabeled(i);
+            if (labeled) {
+                p.print(sym(i, 2));
+                p.print(':');
+            }
+            p.print('\t');
+            p.print(op);
+            int n = numOperands(i);
+            if (op.isDirective()) {
+                for (int k = 0; k < n; k++) {
+                    p.print(k == 0 ? " " : ", ");
+                    printOperand(p, base + k);
+                }
+            }
+            else if (n > 0) {
+                p.spaces(MAXLEN - op.mnemonic().length() + 2);
+                printOperand(p, base);
+                if (isIndexed(i)) {
+                    p.print(", ");
+                    printOperand(p, base + 2);
+                    p.print('(');
+                    printOperand(p, base + 1);
+                    p.print(')');
+                }
+                else {
+                    for (int k = 1; k < n; k++) {
+                        p.print(", ");
+                        printOperand(p, base + k);
+                    }
+                }
+            }
+            if (comment != null) {
+                p.print(labeled ? "\t# " : isIndexed(i) ? "\t#" : "\t\t#");
+                p.print(comment);
+            }
+            p.println();
+        }
+    }
+
+    private void printOperand(AsmWriter p, int slot) {
+        switch (kinds[slot]) {
+        case REG:
+            p.print(Register.of(vals[slot]));
+            break;
+        case IMM:
+            p.print(vals[slot]);
+            break;
+        default:
+            p.print(syms.get(vals[slot]));
+            break;
+        }
+    }
+
+    private void grow() {
+        int n = ops.length * 2;
+        ops = Arrays.copyOf(ops, n);
+        flags = Arrays.copyOf(flags, n);
+        kinds = Arrays.copyOf(kinds, n * MAX_OPERANDS);
+        vals = Arrays.copyOf(vals, n * MAX_OPERANDS);
+        comments = Arrays.copyOf(comments, n);
+    }
+}
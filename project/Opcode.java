@@ -0,0 +1,70 @@
+/**
+ * The operations of MIPS code: instructions (including the pseudo
+ * instructions of the assembler), directives, and LABEL for the definition
+ * of a label.
+ */
+public enum Opcode {
+    // loads, stores and moves
+    LI("li"), LA("la"), LW("lw"), SW("sw"), MOVE("move"),
+
+    // arithmetic and logic
+    ADDU("addu"), ADDIU("addiu"), SUBU("subu"), MUL("mul"), DIV("div"),
+    MULT("mult"), MFHI("mfhi"), NEG("neg"), AND("and"), ANDI("andi"), OR("or"), ORI("ori"),
+    XOR("xor"), XORI("xori"), NOT("not"), SLL("sll"), SRA("sra"), SRL("srl"),
+
+    // comparisons
+    SEQ("seq"), SNE("sne"), SLT("slt"), SLTI("slti"), SGT("sgt"),
+    SLE("sle"), SGE("sge"),
+
+    // jumps and branches
+    B("b"), J("j"), JAL("jal"), JR("jr"), BEQ("beq"), BNE("bne"),
+    BEQZ("beqz"), BNEZ("bnez"), BLT("blt"), BGT("bgt"), BLE("ble"),
+    BGE("bge"),
+
+    SYSCALL("syscall"), NOP("nop"),
+
+    // directives
+    DATA(".data"), TEXT(".text"), ALIGN(".align"), SPACE(".space"),
+    ASCIIZ(".asciiz"), WORD(".word"), GLOBL(".globl"),
+
+    // the definition of a label
+    LABEL(null);
+
+    private static final Opcode[] values = values();
+
+    private final String mnemonic;
+
+    Opcode(String mnemonic) {
+        this.mnemonic = mnemonic;
+    }
+
+    /**
+     * Returns the opcode with the given ordinal.
+     */
+    public static Opcode of(int ordinal) {
+        return values[ordinal];
+    }
+
+    /**
+     * Returns the name of the operation in assembly code.
+     */
+    public String mnemonic() {
+        return mnemonic;
+    }
+
+    public boolean isDirective() {
+        return mnemonic != null && mnemonic.charAt(0) == '.';
+    }
+
+    /**
+     * Returns true for the operations that are instructions, i.e. neither
+     * directives nor label definitions.
+     */
+    public boolean isInstruction() {
+        return mnemonic != null && mnemonic.charAt(0) != '.';
+    }
+
+    public String toString() {
+        return mnemonic == null ? "label" : mnemonic;
+    }
+}
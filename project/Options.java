@@ -0,0 +1,143 @@
+import java.util.*;
+
+/**
+ * Options
+ *
+ * The options that change the code generated for a program: whether to
+ * optimize, the optimization passes left out, and the limits of the
+ * inliner (see Inliner).  Every Compilation carries its own, so that
+ * compilations with different options can run at the same time, as they
+ * do in a compile server whose clients each send theirs (see
+ * CompileServer).
+ *
+ * toString gives the options in the form they are given on the command
+ * line, with only what differs from the defaults, and parse reads that
+ * form back; it is sent with every request to a compile server and is
+ * part of the key of a cached compilation (see CompileCache).
+ */
+class Options {
+    public static final int DEFAULT_INLINE_SIZE = 60;
+    public static final int DEFAULT_INLINE_GROWTH = 100;
+    public static final int DEFAULT_INLINE_DEPTH = 2;
+
+    private boolean optimize = false;
+    private Set<String> disabled = new TreeSet<String>();
+    private int inlineSize = DEFAULT_INLINE_SIZE;
+    private int inlineGrowth = DEFAULT_INLINE_GROWTH;
+    private int inlineDepth = DEFAULT_INLINE_DEPTH;
+
+    /**
+     * Returns the options given in text, in the form toString gives them.
+     * Throws IllegalArgumentException if some option is unknown or has a
+     * bad value.
+     */
+    public static Options parse(String text) {
+        Options options = new Options();
+        String[] args = text.trim().split(" +");
+        int k = 0;
+        while (k < args.length) {
+            String opt = args[k++];
+            if (opt.isEmpty()) {
+                continue;
+            }
+            if (opt.equals("-O")) {
+                options.setOptimize(true);
+                continue;
+            }
+            if (opt.startsWith("-fno-")) {
+                options.disable(opt.substring(5));
+                continue;
+            }
+            if (k == args.length) {
+                throw new IllegalArgumentException("missing value for " + opt);
+            }
+            String value = args[k++];
+            int limit;
+            try {
+                limit = Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+                limit = -1;
+            }
+            if (limit < 0) {
+                throw new IllegalArgumentException("bad value " + value + " for " + opt);
+            }
+            if (opt.equals("-inline-size")) {
+                options.setInlineSize(limit);
+            } else if (opt.equals("-inline-growth")) {
+                options.setInlineGrowth(limit);
+            } else if (opt.equals("-inline-depth")) {
+                options.setInlineDepth(limit);
+            } else {
+                throw new IllegalArgumentException("unknown option " + opt);
+            }
+        }
+        return options;
+    }
+
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    /**
+     * Leaves out the optimization pass of the given name.
+     */
+    public void disable(String pass) {
+        disabled.add(pass);
+    }
+
+    /**
+     * Returns true if the optimization pass is to be run.
+     */
+    public boolean optimizing(String pass) {
+        return optimize && !disabled.contains(pass);
+    }
+
+    public int inlineSize() {
+        return inlineSize;
+    }
+
+    public void setInlineSize(int size) {
+        inlineSize = size;
+    }
+
+    public int inlineGrowth() {
+        return inlineGrowth;
+    }
+
+    public void setInlineGrowth(int growth) {
+        inlineGrowth = growth;
+    }
+
+    public int inlineDepth() {
+        return inlineDepth;
+    }
+
+    public void setInlineDepth(int depth) {
+        inlineDepth = depth;
+    }
+
+    /**
+     * Returns the options as they would be given on the command line,
+     * leaving out the ones that make no difference: the empty string
+     * without -O.
+     */
+    public String toString() {
+        if (!optimize) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("-O");
+        for (String pass : disabled) {
+            sb.append(" -fno-").append(pass);
+        }
+        if (inlineSize != DEFAULT_INLINE_SIZE) {
+            sb.append(" -inline-size ").append(inlineSize);
+        }
+        if (inlineGrowth != DEFAULT_INLINE_GROWTH) {
+            sb.append(" -inline-growth ").append(inlineGrowth);
+        }
+        if (inlineDepth != DEFAULT_INLINE_DEPTH) {
+            sb.append(" -inline-depth ").append(inlineDepth);
+        }
+        return sb.toString();
+    }
+}
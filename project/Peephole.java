@@ -0,0 +1,666 @@
+import java.util.*;
+
+/**
+ * Peephole
+ *
+ * The peephole optimizer: rewrites short sequences of the generated code
+ * into cheaper ones.  The patterns are
+ *
+ *     push-pop    sw R, 0($sp); subu $sp, $sp, 4  ...  lw S, 4($sp);
+ *                 addu $sp, $sp, 4, where the code in between uses neither
+ *                 $sp nor S, becomes move S, R (or nothing if S is R); the
+ *                 code in between may address the frame above the word
+ *                 pushed from $sp, as leaf functions do, with its offsets
+ *                 made 4 smaller
+ *     store-load  sw R, A; lw S, A becomes sw R, A; move S, R
+ *     li-imm      li R, k ... addu D, X, R becomes addiu D, X, k when R is
+ *                 not used again (likewise subu, slt, and, or, xor)
+ *     jump-next   a jump or branch to a label that follows it is deleted
+ *     move        an instruction computing R followed by move S, R computes
+ *                 S instead when R is not used again; move R, R is deleted
+ *     addr-fold   addu R, B, k; lw X, c(R) becomes lw X, c+k(B) and
+ *                 la R, L; lw X, 0(R) becomes lw X, L when R is not used
+ *                 again (likewise sw)
+ *
+ * "Not used again" is decided by liveness of the registers over the control
+ * flow of the code, computed at the start of every round.  A round tries
+ * the patterns at every instruction; an instruction changed in a round is
+ * not matched again until the next one, so the liveness it sees is still
+ * true.  Rounds are repeated until nothing changes.
+ *
+ * The number of hits of every pattern is counted in the compilation as
+ * peephole.<pattern>.
+ */
+class Peephole {
+    public static final String[] PATTERNS = {
+        "push-pop", "store-load", "li-imm", "jump-next", "move", "addr-fold"
+    };
+    private static final int PUSH_POP = 0;
+    private static final int STORE_LOAD = 1;
+    private static final int LI_IMM = 2;
+    private static final int JUMP_NEXT = 3;
+    private static final int MOVE = 4;
+    private static final int ADDR_FOLD = 5;
+
+    private static final int MAX_ROUNDS = 100;
+
+    // registers live where a function returns, and registers a call may
+    // change
+    private static final int RETURN_LIVE = mask(Register.V0) | mask(Register.SP)
+        | mask(Register.FP) | mask(Register.RA) | mask(Register.GP)
+        | range(Register.S0, Register.S7);
+    private static final int CALL_USES = mask(Register.SP) | mask(Register.FP)
+        | range(Register.A0, Register.A3);
+    private static final int CALL_DEFS = range(Register.T0, Register.T7)
+        | mask(Register.T8) | mask(Register.T9) | range(Register.V0, Register.V1)
+        | range(Register.A0, Register.A3) | mask(Register.RA) | mask(Register.AT);
+
+    private MipsCode code;
+    private int[] hits = new int[PATTERNS.length];
+
+    // per round: whether an instruction is code (an instruction or a label
+    // of the text segment), its position among the code, the registers live
+    // after it, and whether it has been changed in the round
+    private boolean[] isCode;
+    private int[] pos;
+    private int[] liveOut;
+    private boolean[] dirty;
+
+    public Peephole(MipsCode code) {
+        this.code = code;
+    }
+
+    /**
+     * Optimizes the code and counts the hits in comp.
+     */
+    public void run(Compilation comp) {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            analyze();
+            boolean changed = false;
+            for (int i = 0; i < code.size(); i++) {
+                if (isCode[i] && !code.isRemoved(i) && !dirty[i]) {
+                    changed |= pushPop(i) || storeLoad(i) || liImm(i) || jumpNext(i)
+                        || move(i) || addrFold(i);
+                }
+            }
+            code.compact();
+            if (!changed) {
+                break;
+            }
+        }
+        for (int k = 0; k < PATTERNS.length; k++) {
+            comp.count("peephole." + PATTERNS[k], hits[k]);
+        }
+    }
+
+    /**
+     * Returns the number of hits of the patterns, in the order of PATTERNS.
+     */
+    public int[] hits() {
+        return hits;
+    }
+
+    // **********************************************************************
+    // patterns; each returns true if it changed the code at instruction i
+    // **********************************************************************
+
+    private boolean pushPop(int i) {
+        if (!isPush(i)) {
+            return false;
+        }
+        int j = nextCode(i);
+        int used = 0;
+        List<Integer> frame = new ArrayList<Integer>();
+        for (int k = nextCode(j); k >= 0; k = nextCode(k)) {
+            if (dirty[k] || isBarrier(k)) {
+                return false;
+            }
+            if (isPop(k)) {
+                Register r = code.reg(i, 0);
+                Register s = code.reg(k, 0);
+                int l = nextCode(k);
+                if ((used & mask(s)) != 0 || dirty[l]) {
+                    return false;
+                }
+                if (r == s) {
+                    code.remove(i);
+                }
+                else {
+                    code.set(i, Opcode.MOVE);
+                    code.setReg(i, 0, s);
+                    code.setReg(i, 1, r);
+                }
+                code.remove(j);
+                code.remove(k);
+                code.remove(l);
+                for (int f : frame) {
+                    code.setImm(f, 2, code.imm(f, 2) - 4);
+                }
+                markDirty(i, l);
+                hits[PUSH_POP]++;
+                return true;
+            }
+            int regs = uses(k) | defs(k);
+            if ((regs & mask(Register.SP)) != 0) {
+                if (!isFrameAccess(k)) {
+                    return false;
+                }
+                frame.add(k);
+            }
+            used |= regs;
+        }
+        return false;
+    }
+
+    private boolean storeLoad(int i) {
+        if (code.op(i) != Opcode.SW) {
+            return false;
+        }
+        int j = nextCode(i);
+        if (j < 0 || dirty[j] || code.op(j) != Opcode.LW || !sameAddress(i, j)) {
+            return false;
+        }
+        Register r = code.reg(i, 0);
+        Register s = code.reg(j, 0);
+        if (r == s) {
+            code.remove(j);
+        }
+        else {
+            code.set(j, Opcode.MOVE);
+            code.setReg(j, 0, s);
+            code.setReg(j, 1, r);
+        }
+        markDirty(i, j);
+        hits[STORE_LOAD]++;
+        return true;
+    }
+
+    private boolean liImm(int i) {
+        if (code.op(i) != Opcode.LI || code.reg(i, 0) == Register.ZERO) {
+            return false;
+        }
+        Register r = code.reg(i, 0);
+        int k = code.imm(i, 1);
+        for (int j = nextCode(i); j >= 0; j = nextCode(j)) {
+            if (dirty[j] || isBarrier(j)) {
+                return false;
+            }
+            if (((uses(j) | defs(j)) & mask(r)) == 0) {
+                continue;
+            }
+            // the first instruction using r must take it as the operand
+            // that has an immediate form
+            Opcode op = code.op(j);
+            if (code.numOperands(j) != 3 || code.kind(j, 1) != MipsCode.REG
+                || code.kind(j, 2) != MipsCode.REG) {
+                return false;
+            }
+            Register d = code.reg(j, 0);
+            Register x = code.reg(j, 1);
+            Register y = code.reg(j, 2);
+            if (x == r && y != r && isCommutative(op)) {
+                x = y;
+                y = r;
+            }
+            if (x == r || y != r) {
+                return false;
+            }
+            if (d != r && (liveOut[pos[j]] & mask(r)) != 0) {
+                return false;
+            }
+            Opcode imm = immediateForm(op, k);
+            if (imm == null) {
+                return false;
+            }
+            code.set(j, imm);
+            code.setReg(j, 0, d);
+            code.setReg(j, 1, x);
+            code.setImm(j, 2, op == Opcode.SUBU ? -k : k);
+            code.remove(i);
+            markDirty(i, j);
+            hits[LI_IMM]++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean jumpNext(int i) {
+        Opcode op = code.op(i);
+        if (!hasTarget(op)) {
+            return false;
+        }
+        int target = code.symId(i, code.numOperands(i) - 1);
+        for (int j = nextCode(i); j >= 0 && code.op(j) == Opcode.LABEL; j = nextCode(j)) {
+            if (code.symId(j, 0) == target) {
+                code.remove(i);
+                markDirty(i, i);
+                hits[JUMP_NEXT]++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean move(int i) {
+        Opcode op = code.op(i);
+        if (op == Opcode.MOVE && code.reg(i, 0) == code.reg(i, 1)) {
+            code.remove(i);
+            markDirty(i, i);
+            hits[MOVE]++;
+            return true;
+        }
+        if (!isComputation(op) || defs(i) == 0) {
+            return false;
+        }
+        int j = nextCode(i);
+        if (j < 0 || dirty[j] || code.op(j) != Opcode.MOVE) {
+            return false;
+        }
+        Register r = code.reg(i, 0);
+        Register s = code.reg(j, 0);
+        if (code.reg(j, 1) != r || s == r || s == Register.ZERO
+            || (liveOut[pos[j]] & mask(r)) != 0) {
+            return false;
+        }
+        code.setReg(i, 0, s);
+        code.remove(j);
+        markDirty(i, j);
+        hits[MOVE]++;
+        return true;
+    }
+
+    private boolean addrFold(int i) {
+        Opcode op = code.op(i);
+        boolean add = op == Opcode.ADDU && code.numOperands(i) == 3
+            && code.kind(i, 1) == MipsCode.REG && code.kind(i, 2) == MipsCode.IMM;
+        if (!add && op != Opcode.LA) {
+            return false;
+        }
+        int j = nextCode(i);
+        if (j < 0 || dirty[j] || (code.op(j) != Opcode.LW && code.op(j) != Opcode.SW)
+            || !code.isIndexed(j)) {
+            return false;
+        }
+        Register r = code.reg(i, 0);
+        Register x = code.reg(j, 0);
+        if (code.reg(j, 1) != r) {
+            return false;
+        }
+        // r must not be needed after j, unless a load replaces it
+        boolean replaced = code.op(j) == Opcode.LW && x == r;
+        if (code.op(j) == Opcode.SW && x == r
+            || !replaced && (liveOut[pos[j]] & mask(r)) != 0) {
+            return false;
+        }
+        if (add) {
+            long offset = (long) code.imm(i, 2) + code.imm(j, 2);
+            if (!isImm16(offset)) {
+                return false;
+            }
+            code.setReg(j, 1, code.reg(i, 1));
+            code.setImm(j, 2, (int) offset);
+        }
+        else {
+            if (code.imm(j, 2) != 0) {
+                return false;
+            }
+            code.setSym(j, 1, code.symId(i, 1));
+            code.clearOperand(j, 2);
+            code.setIndexed(j, false);
+        }
+        code.remove(i);
+        markDirty(i, j);
+        hits[ADDR_FOLD]++;
+        return true;
+    }
+
+    // **********************************************************************
+    // instructions
+    // **********************************************************************
+
+    private boolean isPush(int i) {
+        if (code.op(i) != Opcode.SW || !isStackSlot(i, 0)) {
+            return false;
+        }
+        int j = nextCode(i);
+        return j >= 0 && !dirty[j] && isStackAdjust(j, Opcode.SUBU);
+    }
+
+    private boolean isPop(int i) {
+        if (code.op(i) != Opcode.LW || !isStackSlot(i, 4)) {
+            return false;
+        }
+        int j = nextCode(i);
+        return j >= 0 && isStackAdjust(j, Opcode.ADDU);
+    }
+
+    private boolean isStackSlot(int i, int offset) {
+        return code.isIndexed(i) && code.reg(i, 1) == Register.SP && code.imm(i, 2) == offset;
+    }
+
+    /**
+     * Returns true if i is lw R, k($sp), sw R, k($sp) or addu R, $sp, k
+     * with R not $sp and k past the word last pushed.
+     */
+    private boolean isFrameAccess(int i) {
+        Opcode op = code.op(i);
+        if (op == Opcode.LW || op == Opcode.SW) {
+            return code.isIndexed(i) && code.reg(i, 1) == Register.SP
+                && code.imm(i, 2) > 4 && code.reg(i, 0) != Register.SP;
+        }
+        return op == Opcode.ADDU && code.numOperands(i) == 3
+            && code.kind(i, 1) == MipsCode.REG && code.reg(i, 1) == Register.SP
+            && code.kind(i, 2) == MipsCode.IMM && code.imm(i, 2) > 4
+            && code.reg(i, 0) != Register.SP;
+    }
+
+    private boolean isStackAdjust(int i, Opcode op) {
+        return code.op(i) == op && code.numOperands(i) == 3
+            && code.kind(i, 0) == MipsCode.REG && code.reg(i, 0) == Register.SP
+            && code.kind(i, 1) == MipsCode.REG && code.reg(i, 1) == Register.SP
+            && code.kind(i, 2) == MipsCode.IMM && code.imm(i, 2) == 4;
+    }
+
+    /**
+     * Returns true if the loads or stores i and j have the same address.
+     */
+    private boolean sameAddress(int i, int j) {
+        if (code.isIndexed(i) != code.isIndexed(j)) {
+            return false;
+        }
+        if (code.isIndexed(i)) {
+            return code.reg(i, 1) == code.reg(j, 1) && code.imm(i, 2) == code.imm(j, 2);
+        }
+        return code.kind(i, 1) == MipsCode.SYM && code.kind(j, 1) == MipsCode.SYM
+            && code.symId(i, 1) == code.symId(j, 1);
+    }
+
+    /**
+     * Returns true for the labels and the instructions that do not simply
+     * continue with the next one.
+     */
+    private boolean isBarrier(int i) {
+        switch (code.op(i)) {
+        case LABEL:
+        case B:
+        case J:
+        case JAL:
+        case JR:
+        case BEQ:
+        case BNE:
+        case BLT:
+        case BGT:
+        case BLE:
+        case BGE:
+        case BEQZ:
+        case BNEZ:
+        case SYSCALL:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns true for the instructions that only compute operand 0 from
+     * the others.
+     */
+    private static boolean isComputation(Opcode op) {
+        switch (op) {
+        case SW:
+        case MULT:
+        case B:
+        case J:
+        case JAL:
+        case JR:
+        case BEQ:
+        case BNE:
+        case BLT:
+        case BGT:
+        case BLE:
+        case BGE:
+        case BEQZ:
+        case BNEZ:
+        case SYSCALL:
+        case NOP:
+        case LABEL:
+            return false;
+        default:
+            return op.isInstruction();
+        }
+    }
+
+    /**
+     * Returns true for the jumps and branches to a label, which is their
+     * last operand.
+     */
+    private static boolean hasTarget(Opcode op) {
+        switch (op) {
+        case B:
+        case J:
+        case BEQ:
+        case BNE:
+        case BLT:
+        case BGT:
+        case BLE:
+        case BGE:
+        case BEQZ:
+        case BNEZ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isCommutative(Opcode op) {
+        return op == Opcode.ADDU || op == Opcode.AND || op == Opcode.OR || op == Opcode.XOR;
+    }
+
+    /**
+     * Returns the form of op with the immediate k as its last operand, or
+     * null if there is none.
+     */
+    private static Opcode immediateForm(Opcode op, int k) {
+        switch (op) {
+        case ADDU:
+            return isImm16(k) ? Opcode.ADDIU : null;
+        case SUBU:
+            return isImm16(-(long) k) ? Opcode.ADDIU : null;
+        case SLT:
+            return isImm16(k) ? Opcode.SLTI : null;
+        case AND:
+            return isUimm16(k) ? Opcode.ANDI : null;
+        case OR:
+            return isUimm16(k) ? Opcode.ORI : null;
+        case XOR:
+            return isUimm16(k) ? Opcode.XORI : null;
+        default:
+            return null;
+        }
+    }
+
+    private static boolean isImm16(long k) {
+        return k >= -32768 && k <= 32767;
+    }
+
+    private static boolean isUimm16(long k) {
+        return k >= 0 && k <= 65535;
+    }
+
+    /**
+     * Returns the registers read by instruction i.
+     */
+    private int uses(int i) {
+        switch (code.op(i)) {
+        case LI:
+        case LA:
+        case B:
+        case J:
+        case NOP:
+        case LABEL:
+            return 0;
+        case JAL:
+            return CALL_USES;
+        case SYSCALL:
+            return mask(Register.V0) | mask(Register.A0);
+        case SW:
+        case MULT:
+        case JR:
+        case BEQ:
+        case BNE:
+        case BLT:
+        case BGT:
+        case BLE:
+        case BGE:
+        case BEQZ:
+        case BNEZ:
+            return regOperands(i, 0);
+        default:
+            return regOperands(i, 1);
+        }
+    }
+
+    /**
+     * Returns the registers written by instruction i.
+     */
+    private int defs(int i) {
+        Opcode op = code.op(i);
+        if (op == Opcode.JAL) {
+            return CALL_DEFS;
+        }
+        if (op == Opcode.SYSCALL) {
+            return mask(Register.V0);
+        }
+        if (!isComputation(op) || code.kind(i, 0) != MipsCode.REG) {
+            return 0;
+        }
+        return mask(code.reg(i, 0));
+    }
+
+    /**
+     * Returns the registers among the operands of instruction i from
+     * operand first on.
+     */
+    private int regOperands(int i, int first) {
+        int regs = 0;
+        for (int k = first; k < code.numOperands(i); k++) {
+            if (code.kind(i, k) == MipsCode.REG) {
+                regs |= mask(code.reg(i, k));
+            }
+        }
+        return regs;
+    }
+
+    private static int mask(Register r) {
+        return r == Register.ZERO ? 0 : 1 << r.ordinal();
+    }
+
+    private static int range(Register first, Register last) {
+        int regs = 0;
+        for (int k = first.ordinal(); k <= last.ordinal(); k++) {
+            regs |= 1 << k;
+        }
+        return regs;
+    }
+
+    // **********************************************************************
+    // analysis
+    // **********************************************************************
+
+    /**
+     * Returns the next instruction or label of the text after i that is not
+     * removed, or -1.
+     */
+    private int nextCode(int i) {
+        for (int j = i + 1; j < code.size(); j++) {
+            if (isCode[j] && !code.isRemoved(j)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private void markDirty(int from, int to) {
+        for (int k = from; k <= to; k++) {
+            dirty[k] = true;
+        }
+    }
+
+    /**
+     * Finds the code and computes the registers live after every
+     * instruction.
+     */
+    private void analyze() {
+        int n = code.size();
+        isCode = new boolean[n];
+        pos = new int[n];
+        dirty = new boolean[n];
+
+        // the code, in order, and the position of every label
+        int m = 0;
+        boolean text = true;
+        for (int i = 0; i < n; i++) {
+            Opcode op = code.op(i);
+            if (op == Opcode.TEXT) {
+                text = true;
+            } else if (op == Opcode.DATA) {
+                text = false;
+            }
+            if (text && (op.isInstruction() || op == Opcode.LABEL)) {
+                isCode[i] = true;
+                pos[i] = m++;
+            }
+        }
+        int[] index = new int[m];
+        int[] labelPos = new int[code.numSymbols()];
+        java.util.Arrays.fill(labelPos, -1);
+        for (int i = 0; i < n; i++) {
+            if (isCode[i]) {
+                index[pos[i]] = i;
+                if (code.op(i) == Opcode.LABEL) {
+                    labelPos[code.symId(i, 0)] = pos[i];
+                }
+            }
+        }
+
+        int[] use = new int[m];
+        int[] def = new int[m];
+        int[] target = new int[m];
+        boolean[] falls = new boolean[m];
+        for (int p = 0; p < m; p++) {
+            int i = index[p];
+            Opcode op = code.op(i);
+            use[p] = uses(i);
+            def[p] = defs(i);
+            target[p] = -1;
+            falls[p] = op != Opcode.B && op != Opcode.J && op != Opcode.JR;
+            if (hasTarget(op)) {
+                target[p] = labelPos[code.symId(i, code.numOperands(i) - 1)];
+            }
+        }
+
+        // backward data flow until nothing changes
+        int[] liveIn = new int[m];
+        int[] out = new int[m];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int p = m - 1; p >= 0; p--) {
+                int live = code.op(index[p]) == Opcode.JR ? RETURN_LIVE : 0;
+                if (falls[p] && p + 1 < m) {
+                    live |= liveIn[p + 1];
+                }
+                if (target[p] >= 0) {
+                    live |= liveIn[target[p]];
+                }
+                out[p] = live;
+                int in = use[p] | (live & ~def[p]);
+                if (in != liveIn[p]) {
+                    liveIn[p] = in;
+                    changed = true;
+                }
+            }
+        }
+        liveOut = out;
+    }
+}
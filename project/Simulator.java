@@ -0,0 +1,987 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Simulator
+ *
+ * Runs the MIPS assembly written by the compiler.  The program is loaded
+ * from its text: the .data directives are laid out in a data segment
+ * starting at 0x10010000, the instructions of .text are decoded once into
+ * arrays, and execution starts at main with $sp at the top of a stack
+ * segment ending at 0x7ffff000.  Memory is flat and word-addressed; the
+ * loads and stores of the compiler are all word-sized and aligned.
+ *
+ * Every line of assembly counts as one instruction, including the pseudo
+ * instructions that SPIM expands into several machine instructions.  Loads,
+ * stores, branches taken and the instructions executed in every function
+ * (the code from a label _f or main up to the next such label) are counted
+ * too.  The cycles are an estimate (see cost): one for every machine
+ * instruction a line expands into, and the latency of the R3000 multiply
+ * and divide unit for mul, mult and div, which the next use of the result
+ * waits for.
+ *
+ * The instructions are those of Opcode; the syscalls are 1 (print int),
+ * 4 (print string), 5 (read int), 10 (exit) and 11 (print char).
+ *
+ * usage: java Simulator [-stats] [-stack BYTES] [-limit N] file.asm
+ */
+class Simulator {
+    private static final int DATA_BASE = 0x10010000;
+    private static final int STACK_END = 0x7ffff000;  // just above the stack
+    private static final int EXIT_ADDR = 0x00400000;  // $ra of main
+
+    private static final int DEFAULT_STACK = 16 << 20;
+
+    // the cycles a product or quotient takes in the R3000 multiply and
+    // divide unit before mflo or mfhi can read it, beyond the instruction
+    private static final int MUL_LATENCY = 11;
+    private static final int DIV_LATENCY = 34;
+
+    // decoded text: for instruction i its opcode, registers a and b,
+    // operand c, which is a register if cReg[i] or else an immediate or an
+    // address, and the index of the instruction it jumps to, if any
+    private Opcode[] ops;
+    private int[] a;
+    private int[] b;
+    private int[] c;
+    private boolean[] cReg;
+    private int[] target;
+    private int[] fnOf;                 // function of each instruction
+    private int[] cost;                 // cycles of each instruction
+    private int numInsns = 0;
+    private List<String> fnNames = new ArrayList<String>();
+
+    // memory: the data segment and the stack, one int per word
+    private int[] data = new int[1024];
+    private int dataSize = 0;           // bytes
+    private int[] stack;
+    private int stackBase;              // lowest address of the stack
+
+    private final int[] regs = new int[32];
+    private int hi;
+    private int lo;
+
+    // counters
+    private long executed = 0;
+    private long cycles = 0;
+    private long loads = 0;
+    private long stores = 0;
+    private long taken = 0;
+    private long[] perFunction;
+
+    private long limit = Long.MAX_VALUE;
+
+    /**
+     * Loads the program in the assembly text src with a stack of
+     * stackBytes bytes.
+     */
+    public Simulator(String src, int stackBytes) {
+        stack = new int[stackBytes / 4];
+        stackBase = STACK_END - stackBytes;
+        new Loader(src).load();
+        perFunction = new long[fnNames.size()];
+    }
+
+    /**
+     * Stops execution with an error after n instructions.
+     */
+    public void setLimit(long n) {
+        limit = n;
+    }
+
+    public long executed() {
+        return executed;
+    }
+
+    public long cycles() {
+        return cycles;
+    }
+
+    public long loads() {
+        return loads;
+    }
+
+    public long stores() {
+        return stores;
+    }
+
+    public long branchesTaken() {
+        return taken;
+    }
+
+    /**
+     * Runs the program from main until it exits, reading ints from in and
+     * writing to out.  Returns normally if the program exits; a runtime
+     * error is thrown as a SimulatorException.
+     */
+    public void run(InputStream in, PrintStream out) {
+        IntReader reader = new IntReader(in);
+        Arrays.fill(regs, 0);
+        regs[Register.SP.ordinal()] = STACK_END - 4;
+        regs[Register.RA.ordinal()] = EXIT_ADDR;
+        int pc = entry("main");
+        try {
+            while (true) {
+                if (executed >= limit) {
+                    throw new SimulatorException("instruction limit of " + limit + " reached");
+                }
+                executed++;
+                cycles += cost[pc];
+                perFunction[fnOf[pc]]++;
+                int next = pc + 1;
+                int ra = a[pc];
+                int vb = regs[b[pc]];
+                int vc = cReg[pc] ? regs[c[pc]] : c[pc];
+                switch (ops[pc]) {
+                case LI:
+                case LA:
+                    set(ra, vc);
+                    break;
+                case MOVE:
+                    set(ra, vb);
+                    break;
+                case LW:
+                    loads++;
+                    set(ra, loadWord(vb + vc));
+                    break;
+                case SW:
+                    stores++;
+                    storeWord(vb + vc, regs[ra]);
+                    break;
+                case ADDU:
+                case ADDIU:
+                    set(ra, vb + vc);
+                    break;
+                case SUBU:
+                    set(ra, vb - vc);
+                    break;
+                case MUL:
+                    set(ra, vb * vc);
+                    break;
+                case MULT:
+                    long product = (long) regs[ra] * vb;
+                    hi = (int) (product >>> 32);
+                    lo = (int) product;
+                    break;
+                case MFHI:
+                    set(ra, hi);
+                    break;
+                case DIV:
+                    if (vc == 0) {
+                        throw new SimulatorException("division by zero");
+                    }
+                    set(ra, vb / vc);
+                    break;
+                case NEG:
+                    set(ra, -vb);
+                    break;
+                case AND:
+                case ANDI:
+                    set(ra, vb & vc);
+                    break;
+                case OR:
+                case ORI:
+                    set(ra, vb | vc);
+                    break;
+                case XOR:
+                case XORI:
+                    set(ra, vb ^ vc);
+                    break;
+                case NOT:
+                    set(ra, ~vb);
+                    break;
+                case SLL:
+                    set(ra, vb << vc);
+                    break;
+                case SRA:
+                    set(ra, vb >> vc);
+                    break;
+                case SRL:
+                    set(ra, vb >>> vc);
+                    break;
+                case SEQ:
+                    set(ra, vb == vc ? 1 : 0);
+                    break;
+                case SNE:
+                    set(ra, vb != vc ? 1 : 0);
+                    break;
+                case SLT:
+                case SLTI:
+                    set(ra, vb < vc ? 1 : 0);
+                    break;
+                case SGT:
+                    set(ra, vb > vc ? 1 : 0);
+                    break;
+                case SLE:
+                    set(ra, vb <= vc ? 1 : 0);
+                    break;
+                case SGE:
+                    set(ra, vb >= vc ? 1 : 0);
+                    break;
+                case B:
+                case J:
+                    next = jump(target[pc]);
+                    break;
+                case JAL:
+                    regs[Register.RA.ordinal()] = address(next);
+                    next = jump(target[pc]);
+                    break;
+                case JR:
+                    if (regs[ra] == EXIT_ADDR) {
+                        return;
+                    }
+                    next = jump(index(regs[ra]));
+                    break;
+                case BEQ:
+                    if (regs[ra] == vc) {
+                        next = jump(target[pc]);
+                    }
+                    break;
+                case BNE:
+                    if (regs[ra] != vc) {
+                        next = jump(target[pc]);
+                    }
+                    break;
+                case BLT:
+                    if (regs[ra] < vc) {
+                        next = jump(target[pc]);
+                    }
+                    break;
+                case BGT:
+                    if (regs[ra] > vc) {
+                        next = jump(target[pc]);
+                    }
+                    break;
+                case BLE:
+                    if (regs[ra] <= vc) {
+                        next = jump(target[pc]);
+                    }
+                    break;
+                case BGE:
+                    if (regs[ra] >= vc) {
+                        next = jump(target[pc]);
+                    }
+                    break;
+                case BEQZ:
+                    if (regs[ra] == 0) {
+                        next = jump(target[pc]);
+                    }
+                    break;
+                case BNEZ:
+                    if (regs[ra] != 0) {
+                        next = jump(target[pc]);
+                    }
+                    break;
+                case SYSCALL:
+                    if (!syscall(reader, out)) {
+                        return;
+                    }
+                    break;
+                case NOP:
+                    break;
+                default:
+                    throw new SimulatorException("cannot execute " + ops[pc]);
+                }
+                pc = next;
+                if (pc >= numInsns) {
+                    throw new SimulatorException("execution ran past the end of the text");
+                }
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    private void set(int r, int value) {
+        if (r != 0) {
+            regs[r] = value;
+        }
+    }
+
+    private int jump(int target) {
+        taken++;
+        return target;
+    }
+
+    /**
+     * Returns false for exit.
+     */
+    private boolean syscall(IntReader reader, PrintStream out) {
+        int a0 = regs[Register.A0.ordinal()];
+        switch (regs[Register.V0.ordinal()]) {
+        case 1:
+            out.print(a0);
+            return true;
+        case 4:
+            for (int addr = a0; ; addr++) {
+                int ch = loadByte(addr);
+                if (ch == 0) {
+                    break;
+                }
+                out.write(ch);
+            }
+            return true;
+        case 5:
+            regs[Register.V0.ordinal()] = reader.nextInt();
+            return true;
+        case 10:
+            return false;
+        case 11:
+            out.write(a0 & 0xff);
+            return true;
+        default:
+            throw new SimulatorException("unknown syscall " + regs[Register.V0.ordinal()]);
+        }
+    }
+
+    // **********************************************************************
+    // memory
+    // **********************************************************************
+
+    private int loadWord(int addr) {
+        if ((addr & 3) != 0) {
+            throw new SimulatorException("unaligned address " + hex(addr));
+        }
+        if (addr >= stackBase && addr < STACK_END) {
+            return stack[(addr - stackBase) >>> 2];
+        }
+        if (addr >= DATA_BASE && addr - DATA_BASE < dataSize) {
+            return data[(addr - DATA_BASE) >>> 2];
+        }
+        throw badAddress(addr);
+    }
+
+    private void storeWord(int addr, int value) {
+        if ((addr & 3) != 0) {
+            throw new SimulatorException("unaligned address " + hex(addr));
+        }
+        if (addr >= stackBase && addr < STACK_END) {
+            stack[(addr - stackBase) >>> 2] = value;
+        }
+        else if (addr >= DATA_BASE && addr - DATA_BASE < dataSize) {
+            data[(addr - DATA_BASE) >>> 2] = value;
+        }
+        else {
+            throw badAddress(addr);
+        }
+    }
+
+    private int loadByte(int addr) {
+        int word = loadWord(addr & ~3);
+        return (word >>> (8 * (addr & 3))) & 0xff;
+    }
+
+    private SimulatorException badAddress(int addr) {
+        if (addr < stackBase && addr >= stackBase - (1 << 20)) {
+            return new SimulatorException("stack overflow");
+        }
+        return new SimulatorException("bad address " + hex(addr));
+    }
+
+    private static String hex(int addr) {
+        return String.format("0x%08x", addr);
+    }
+
+    // text addresses: instruction i is at EXIT_ADDR + 4 + 4 * i
+    private static int address(int index) {
+        return EXIT_ADDR + 4 + 4 * index;
+    }
+
+    private int index(int addr) {
+        int i = (addr - EXIT_ADDR - 4) >> 2;
+        if (i < 0 || i >= numInsns || address(i) != addr) {
+            throw new SimulatorException("jump to bad address " + hex(addr));
+        }
+        return i;
+    }
+
+    private int entry(String name) {
+        Integer i = textLabels.get(name);
+        if (i == null) {
+            throw new SimulatorException("no " + name + " label");
+        }
+        return i;
+    }
+
+    // **********************************************************************
+    // statistics
+    // **********************************************************************
+
+    /**
+     * Returns the counters, one per line, followed by the instructions
+     * executed per function, most first.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("instructions   ").append(executed).append("\n");
+        sb.append("cycles         ").append(cycles).append("\n");
+        sb.append("loads          ").append(loads).append("\n");
+        sb.append("stores         ").append(stores).append("\n");
+        sb.append("branches taken ").append(taken).append("\n");
+        Integer[] order = new Integer[fnNames.size()];
+        for (int k = 0; k < order.length; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return Long.compare(perFunction[y], perFunction[x]);
+            }
+        });
+        for (int k : order) {
+            if (perFunction[k] != 0) {
+                sb.append(String.format("  %-12s %d%n", fnNames.get(k), perFunction[k]));
+            }
+        }
+        return sb.toString();
+    }
+
+    // **********************************************************************
+    // loading
+    // **********************************************************************
+
+    private Map<String,Integer> textLabels = new HashMap<String,Integer>();
+    private Map<String,Integer> dataLabels = new HashMap<String,Integer>();
+
+    /**
+     * Loads the program in two passes: the first lays out the data and
+     * finds the labels, the second decodes the instructions.
+     */
+    private class Loader {
+        private String[] lines;
+        private int lineNum;
+
+        Loader(String src) {
+            lines = src.split("\n", -1);
+        }
+
+        void load() {
+            for (int pass = 1; pass <= 2; pass++) {
+                boolean text = true;
+                dataSize = 0;
+                numInsns = 0;
+                for (lineNum = 0; lineNum < lines.length; lineNum++) {
+                    String line = stripComment(lines[lineNum]).trim();
+                    int colon = labelEnd(line);
+                    while (colon > 0) {
+                        String label = line.substring(0, colon).trim();
+                        if (pass == 1) {
+                            defineLabel(label, text);
+                        }
+                        line = line.substring(colon + 1).trim();
+                        colon = labelEnd(line);
+                    }
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if (line.startsWith(".")) {
+                        text = directive(line, text, pass);
+                    }
+                    else if (!text) {
+                        throw error("instruction in the data segment");
+                    }
+                    else if (pass == 1) {
+                        numInsns++;
+                    }
+                    else {
+                        instruction(line);
+                    }
+                }
+                if (pass == 1) {
+                    allocate(numInsns, dataSize);
+                }
+            }
+        }
+
+        private void allocate(int insns, int bytes) {
+            int n = Math.max(insns, 1);
+            ops = new Opcode[n];
+            a = new int[n];
+            b = new int[n];
+            c = new int[n];
+            cReg = new boolean[n];
+            target = new int[n];
+            fnOf = new int[n];
+            cost = new int[n];
+            data = new int[(bytes + 3) / 4];
+            if (fnNames.isEmpty()) {
+                fnNames.add("(none)");
+            }
+            // the function of every instruction
+            int fn = 0;
+            int[] starts = new int[n + 1];
+            Arrays.fill(starts, -1);
+            for (int k = 0; k < fnNames.size(); k++) {
+                Integer at = textLabels.get(fnNames.get(k));
+                if (at != null && starts[at] < 0) {
+                    starts[at] = k;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (starts[i] >= 0) {
+                    fn = starts[i];
+                }
+                fnOf[i] = fn;
+            }
+        }
+
+        private void defineLabel(String label, boolean text) {
+            if (textLabels.containsKey(label) || dataLabels.containsKey(label)) {
+                throw error("label " + label + " defined twice");
+            }
+            if (text) {
+                textLabels.put(label, numInsns);
+                if (label.equals("main") || label.startsWith("_")) {
+                    fnNames.add(label);
+                }
+            }
+            else {
+                dataLabels.put(label, DATA_BASE + dataSize);
+            }
+        }
+
+        /**
+         * Handles a directive; returns true if the text segment is current
+         * after it.
+         */
+        private boolean directive(String line, boolean text, int pass) {
+            int space = firstSpace(line);
+            String dir = space < 0 ? line : line.substring(0, space);
+            String arg = space < 0 ? "" : line.substring(space).trim();
+            if (dir.equals(".text")) {
+                return true;
+            }
+            if (dir.equals(".data")) {
+                return false;
+            }
+            if (dir.equals(".globl") || dir.equals(".global")) {
+                return text;
+            }
+            if (text) {
+                throw error(dir + " in the text segment");
+            }
+            if (dir.equals(".align")) {
+                int align = 1 << parseInt(arg);
+                dataSize = (dataSize + align - 1) & -align;
+            }
+            else if (dir.equals(".space")) {
+                dataSize += parseInt(arg);
+            }
+            else if (dir.equals(".word")) {
+                dataSize = (dataSize + 3) & -4;
+                for (String w : arg.split(",")) {
+                    if (pass == 2) {
+                        data[dataSize >> 2] = parseInt(w.trim());
+                    }
+                    dataSize += 4;
+                }
+            }
+            else if (dir.equals(".asciiz")) {
+                byte[] bytes = parseString(arg);
+                for (byte ch : bytes) {
+                    if (pass == 2) {
+                        data[dataSize >> 2] |= (ch & 0xff) << (8 * (dataSize & 3));
+                    }
+                    dataSize++;
+                }
+                dataSize++;  // the terminating 0
+            }
+            else {
+                throw error("unknown directive " + dir);
+            }
+            return false;
+        }
+
+        private void instruction(String line) {
+            int i = numInsns++;
+            int space = firstSpace(line);
+            String name = space < 0 ? line : line.substring(0, space);
+            Opcode op = mnemonics.get(name);
+            if (op == null) {
+                throw error("unknown instruction " + name);
+            }
+            ops[i] = op;
+            String[] args = space < 0 ? new String[0] : line.substring(space).trim().split("\\s*,\\s*");
+            switch (op) {
+            case LI:
+                expect(args, 2);
+                a[i] = reg(args[0]);
+                c[i] = parseInt(args[1]);
+                break;
+            case LA:
+                expect(args, 2);
+                a[i] = reg(args[0]);
+                c[i] = dataAddress(args[1]);
+                break;
+            case LW:
+            case SW:
+                expect(args, 2);
+                a[i] = reg(args[0]);
+                int paren = args[1].indexOf('(');
+                if (paren >= 0) {
+                    String base = args[1].substring(paren + 1, args[1].length() - 1);
+                    b[i] = reg(base.trim());
+                    String off = args[1].substring(0, paren).trim();
+                    c[i] = off.isEmpty() ? 0 : parseInt(off);
+                }
+                else {
+                    c[i] = dataAddress(args[1]);
+                }
+                break;
+            case MOVE:
+            case NEG:
+            case NOT:
+                expect(args, 2);
+                a[i] = reg(args[0]);
+                b[i] = reg(args[1]);
+                break;
+            case B:
+            case J:
+            case JAL:
+                expect(args, 1);
+                target[i] = textLabel(args[0]);
+                break;
+            case JR:
+            case MFHI:
+                expect(args, 1);
+                a[i] = reg(args[0]);
+                break;
+            case MULT:
+                expect(args, 2);
+                a[i] = reg(args[0]);
+                b[i] = reg(args[1]);
+                break;
+            case BEQZ:
+            case BNEZ:
+                expect(args, 2);
+                a[i] = reg(args[0]);
+                target[i] = textLabel(args[1]);
+                break;
+            case BEQ:
+            case BNE:
+            case BLT:
+            case BGT:
+            case BLE:
+            case BGE:
+                expect(args, 3);
+                a[i] = reg(args[0]);
+                operandC(i, args[1]);
+                target[i] = textLabel(args[2]);
+                break;
+            case SYSCALL:
+            case NOP:
+                expect(args, 0);
+                break;
+            default:
+                // rd, rs, rt or rd, rs, imm
+                expect(args, 3);
+                a[i] = reg(args[0]);
+                b[i] = reg(args[1]);
+                operandC(i, args[2]);
+                break;
+            }
+            cost[i] = cost(i);
+        }
+
+        /**
+         * Returns the cycles of instruction i: the machine instructions SPIM
+         * expands it into, where an immediate that does not fit in 16 bits
+         * is first put in $at with lui and ori, and the latency of the
+         * multiply and divide unit.
+         */
+        private int cost(int i) {
+            boolean imm = !cReg[i];
+            boolean big = imm && (c[i] < -32768 || c[i] > 32767);
+            switch (ops[i]) {
+            case LI:
+                return c[i] >= -32768 && c[i] <= 0xffff ? 1 : 2;
+            case LA:
+                return 2;
+            case LW:
+            case SW:
+                // a label is an address in the data segment: lui $at first
+                return big ? 2 : 1;
+            case MUL:
+                // mult and mflo
+                return (big ? 4 : 2) + MUL_LATENCY;
+            case MULT:
+                return 1 + MUL_LATENCY;
+            case DIV:
+                // the test for zero, div and mflo
+                return (big ? 5 : 3) + DIV_LATENCY;
+            case SEQ:
+            case SNE:
+            case SGT:
+            case SLE:
+            case SGE:
+            case BEQ:
+            case BNE:
+            case BLT:
+            case BGT:
+            case BLE:
+            case BGE:
+                return base(ops[i]) + (imm && c[i] != 0 ? (big ? 2 : 1) : 0);
+            default:
+                return big ? 3 : 1;
+            }
+        }
+
+        /**
+         * Returns the machine instructions of op with register operands.
+         */
+        private int base(Opcode op) {
+            switch (op) {
+            case SEQ:
+            case SLE:
+            case SGE:
+                return 3;
+            case SNE:
+            case BLT:
+            case BGT:
+            case BLE:
+            case BGE:
+                return 2;
+            default:
+                return 1;
+            }
+        }
+
+        private void operandC(int i, String arg) {
+            if (arg.startsWith("$")) {
+                c[i] = reg(arg);
+                cReg[i] = true;
+            }
+            else {
+                c[i] = parseInt(arg);
+            }
+        }
+
+        private void expect(String[] args, int n) {
+            if (args.length != n) {
+                throw error("expected " + n + " operands");
+            }
+        }
+
+        private int reg(String name) {
+            Integer r = registers.get(name);
+            if (r == null) {
+                throw error("bad register " + name);
+            }
+            return r;
+        }
+
+        private int textLabel(String label) {
+            Integer i = textLabels.get(label);
+            if (i == null) {
+                throw error("undefined label " + label);
+            }
+            return i;
+        }
+
+        /**
+         * The address of label or label+offset in the data segment.
+         */
+        private int dataAddress(String arg) {
+            int offset = 0;
+            int plus = arg.indexOf('+');
+            if (plus > 0) {
+                offset = parseInt(arg.substring(plus + 1).trim());
+                arg = arg.substring(0, plus).trim();
+            }
+            Integer addr = dataLabels.get(arg);
+            if (addr == null) {
+                throw error("undefined label " + arg);
+            }
+            return addr + offset;
+        }
+
+        private int parseInt(String s) {
+            try {
+                if (s.startsWith("0x")) {
+                    return (int) Long.parseLong(s.substring(2), 16);
+                }
+                return (int) Long.parseLong(s);
+            } catch (NumberFormatException ex) {
+                throw error("bad number " + s);
+            }
+        }
+
+        private byte[] parseString(String s) {
+            if (s.length() < 2 || s.charAt(0) != '"' || s.charAt(s.length() - 1) != '"') {
+                throw error("bad string " + s);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int k = 1; k < s.length() - 1; k++) {
+                char ch = s.charAt(k);
+                if (ch == '\\' && k + 1 < s.length() - 1) {
+                    ch = s.charAt(++k);
+                    switch (ch) {
+                    case 'n': ch = '\n'; break;
+                    case 't': ch = '\t'; break;
+                    case '0': ch = '\0'; break;
+                    default: break;
+                    }
+                }
+                bytes.write(ch);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Returns the index of the colon ending a label at the start of line,
+         * or -1.
+         */
+        private int labelEnd(String line) {
+            for (int k = 0; k < line.length(); k++) {
+                char ch = line.charAt(k);
+                if (ch == ':') {
+                    return k;
+                }
+                if (!(Character.isLetterOrDigit(ch) || ch == '_' || ch == '.' || ch == '$')) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private int firstSpace(String line) {
+            for (int k = 0; k < line.length(); k++) {
+                if (Character.isWhitespace(line.charAt(k))) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        private String stripComment(String line) {
+            boolean quoted = false;
+            for (int k = 0; k < line.length(); k++) {
+                char ch = line.charAt(k);
+                if (ch == '\\' && quoted) {
+                    k++;
+                }
+                else if (ch == '"') {
+                    quoted = !quoted;
+                }
+                else if (ch == '#' && !quoted) {
+                    return line.substring(0, k);
+                }
+            }
+            return line;
+        }
+
+        private SimulatorException error(String msg) {
+            return new SimulatorException("line " + (lineNum + 1) + ": " + msg);
+        }
+    }
+
+    private static final Map<String,Opcode> mnemonics = new HashMap<String,Opcode>();
+    private static final Map<String,Integer> registers = new HashMap<String,Integer>();
+    static {
+        for (Opcode op : Opcode.values()) {
+            if (op.isInstruction()) {
+                mnemonics.put(op.mnemonic(), op);
+            }
+        }
+        for (Register r : Register.values()) {
+            registers.put(r.toString(), r.ordinal());
+            registers.put("$" + r.ordinal(), r.ordinal());
+        }
+        registers.put("$s8", Register.FP.ordinal());
+    }
+
+    /**
+     * Reads the ints of syscall 5, separated by white space; 0 at the end
+     * of the input.
+     */
+    private static class IntReader {
+        private InputStream in;
+
+        IntReader(InputStream in) {
+            this.in = new BufferedInputStream(in);
+        }
+
+        int nextInt() {
+            try {
+                int ch = in.read();
+                while (ch >= 0 && Character.isWhitespace(ch)) {
+                    ch = in.read();
+                }
+                boolean neg = ch == '-';
+                if (neg) {
+                    ch = in.read();
+                }
+                int n = 0;
+                while (ch >= '0' && ch <= '9') {
+                    n = n * 10 + (ch - '0');
+                    ch = in.read();
+                }
+                return neg ? -n : n;
+            } catch (IOException ex) {
+                return 0;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean stats = false;
+        int stackBytes = DEFAULT_STACK;
+        long limit = Long.MAX_VALUE;
+        int k = 0;
+        while (k < args.length && args[k].startsWith("-")) {
+            String opt = args[k++];
+            if (opt.equals("-stats")) {
+                stats = true;
+            } else if (opt.equals("-stack") && k < args.length) {
+                stackBytes = Integer.parseInt(args[k++]);
+            } else if (opt.equals("-limit") && k < args.length) {
+                limit = Long.parseLong(args[k++]);
+            } else {
+                usage();
+            }
+        }
+        if (k != args.length - 1) {
+            usage();
+        }
+        String src = new String(Files.readAllBytes(Paths.get(args[k])), StandardCharsets.UTF_8);
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+        Simulator sim;
+        try {
+            sim = new Simulator(src, stackBytes);
+        } catch (SimulatorException ex) {
+            System.err.println(args[k] + ": " + ex.getMessage());
+            System.exit(2);
+            return;
+        }
+        sim.setLimit(limit);
+        int status = 0;
+        try {
+            sim.run(System.in, out);
+        } catch (SimulatorException ex) {
+            out.flush();
+            System.err.println("runtime error: " + ex.getMessage());
+            status = 1;
+        }
+        if (stats) {
+            System.err.print(sim.report());
+        }
+        System.exit(status);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java Simulator [-stats] [-stack BYTES] [-limit N] file.asm");
+        System.exit(2);
+    }
+}
+
+/**
+ * An error found while loading or running a program in the Simulator.
+ */
+class SimulatorException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    SimulatorException(String msg) {
+        super(msg);
+    }
+}
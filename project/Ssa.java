@@ -0,0 +1,1030 @@
+import java.util.*;
+
+/**
+ * Ssa
+ *
+ * The static single assignment form of a function body, laid over its
+ * control-flow graph (see Cfg) rather than built by rewriting it, and the
+ * optimizations done with it:
+ *     constants  sparse conditional constant propagation (Wegman and
+ *                Zadeck): a use of a variable that has the same constant
+ *                value on every path that can be taken becomes a literal,
+ *                and the branches that cannot be taken are not followed
+ *     copies     after x = y, a use of x where y still has the value it
+ *                had then becomes a use of y
+ *     dead       an assignment or increment whose value is never used, not
+ *                even through a phi, is removed
+ * and the choice of the variables kept in registers (see promote).
+ *
+ * The variables are the int and bool locals and formals, and the int and
+ * bool fields of local structs; globals may be changed by any call and are
+ * left alone.  Every assignment, increment or read of a variable makes a
+ * new value of it, and a phi value is made where values of it meet, at the
+ * blocks in the iterated dominance frontier of its definitions (Cytron et
+ * al.).  At the entry a local has the value 0, as the prologue zeroes it,
+ * and a formal an unknown one.  Values are numbered and their properties
+ * kept in arrays, like the blocks of the graph.
+ *
+ * The values are found by walking the dominator tree, keeping the current
+ * value of every variable, and visiting the statements of each block and
+ * the condition it ends with in the order they are evaluated: the ssaVisit
+ * methods of the nodes report their uses and definitions through use,
+ * assign, increment and read, and call beginMaybe and endMaybe around the
+ * right operand of && and ||, which may not be evaluated -- a value
+ * defined there is merged with the one before, like a phi.
+ *
+ * The results go back into the AST through the ssaRewrite methods of the
+ * nodes, which ask for the replacement of every use and whether a
+ * statement is dead.  The variables keep their names, so nothing needs to
+ * be done to leave SSA form: the phis are never materialized.
+ */
+class Ssa {
+    // the lattice of constant propagation: TOP (no value seen yet), an int
+    // constant, or BOTTOM (not constant)
+    public static final long TOP = Long.MAX_VALUE;
+    public static final long BOTTOM = Long.MIN_VALUE;
+
+    // kinds of values
+    private static final byte ENTRY = 0;
+    private static final byte PHI = 1;
+    private static final byte ASSIGN = 2;
+    private static final byte INC = 3;
+    private static final byte READ = 4;
+    private static final byte MAYDEF = 5;
+
+    // what the nodes are visited for: finding the variables and where they
+    // are defined, renaming, or weighing the variables for promote
+    private static final int COLLECT = 0;
+    private static final int RENAME = 1;
+    private static final int WEIGH = 2;
+
+    // the least weight of a local worth a register: each of its uses and
+    // definitions saves a load or store, and the register costs a save, a
+    // restore and zeroing it at the entry; a formal needs one more, as it
+    // is loaded at the entry where a local in the frame is zeroed anyway
+    private static final int MIN_WEIGHT = 4;
+
+    private Cfg cfg;
+    private int numStmts;
+    private int[] stmtBlocks;
+    private int mode;
+
+    // the block and site being visited; the sites are the statements and
+    // then the conditions of the blocks, the condition of block b being
+    // site numStmts + b
+    private int block;
+    private int site;
+    private int weight;
+
+    // variables
+    private int numVars = 0;
+    private Map<SymInfo,Map<Integer,Integer>> varIndex =
+        new HashMap<SymInfo,Map<Integer,Integer>>();
+    private SymInfo[] varInfos = new SymInfo[8];
+    private String[] varNames = new String[8];
+    private boolean[] varBools = new boolean[8];
+    private boolean[] varScalars = new boolean[8];
+    private boolean[] varFormals = new boolean[8];
+    private long[] varWeights = new long[8];
+
+    // the definitions found by COLLECT: variable defVars[k] in block
+    // defBlocks[k]
+    private int numDefs = 0;
+    private int[] defVars = new int[16];
+    private int[] defBlocks = new int[16];
+
+    // values: a PHI has its operands, one per predecessor of its block, at
+    // phiArgs[args[v]..]; an INC adds incs[v] to value args[v]; a MAYDEF
+    // merges args[v] (before) and args2[v] (after); an ASSIGN has its
+    // right-hand side in exps[v].  stmts[v] is the statement that can be
+    // left out if the value is dead, copyRoots[v] the value it is a copy
+    // of, or -1.  The values defined by a site are siteDefStart[s] ..
+    // siteDefEnd[s] - 1, and the phis of a block are linked by phiNexts
+    // from blockPhis[b].
+    private int numValues = 0;
+    private byte[] kinds = new byte[16];
+    private int[] vars = new int[16];
+    private int[] blocks = new int[16];
+    private int[] args = new int[16];
+    private int[] args2 = new int[16];
+    private int[] incs = new int[16];
+    private ExpNode[] exps = new ExpNode[16];
+    private StmtNode[] stmts = new StmtNode[16];
+    private int[] copyRoots = new int[16];
+    private int[] phiNexts = new int[16];
+    private int numPhiArgs = 0;
+    private int[] phiArgs = new int[16];
+    private int[] blockPhis;
+    private int[] siteDefStart;
+    private int[] siteDefEnd;
+
+    // uses: the node (null for the operand of an increment and the values
+    // merged by a MAYDEF, which cannot be replaced), its value and site,
+    // the value whose definition it is part of if that can be left out
+    // (or -1), and the value it is a copy of that is still current there
+    // (or -1)
+    private int numUses = 0;
+    private ExpNode[] useNodes = new ExpNode[16];
+    private int[] useValues = new int[16];
+    private int[] useSites = new int[16];
+    private int[] useOwners = new int[16];
+    private int[] useCopies = new int[16];
+    private Map<ExpNode,Integer> useIndex = new IdentityHashMap<ExpNode,Integer>();
+
+    // renaming: the current value of every variable, and the log of the
+    // values replaced, to undo them when leaving a block
+    private int[] current;
+    private int numLog = 0;
+    private int[] logVars = new int[16];
+    private int[] logValues = new int[16];
+    private int[] maybeMarks = new int[4];
+    private int numMaybe = 0;
+    private int[] maybeSeen;
+    private int maybeStamp = 0;
+
+    // constant propagation
+    private long[] lattice;
+    private boolean[] execBlocks;
+    private boolean[] execEdges;
+
+    // the results
+    private Map<ExpNode,ExpNode> replacements = new IdentityHashMap<ExpNode,ExpNode>();
+    private Set<StmtNode> dead = Collections.newSetFromMap(new IdentityHashMap<StmtNode,Boolean>());
+
+    public Ssa(Cfg cfg) {
+        this.cfg = cfg;
+        numStmts = cfg.numStmts();
+        stmtBlocks = new int[numStmts];
+        for (int b = 0; b < cfg.numBlocks(); b++) {
+            for (int i = cfg.first(b); i < cfg.end(b); i++) {
+                stmtBlocks[i] = b;
+            }
+        }
+        blockPhis = new int[cfg.numBlocks()];
+        Arrays.fill(blockPhis, -1);
+        siteDefStart = new int[numStmts + cfg.numBlocks()];
+        siteDefEnd = new int[numStmts + cfg.numBlocks()];
+    }
+
+    // **********************************************************************
+    // the optimizations
+    // **********************************************************************
+
+    /**
+     * Builds the SSA form, propagates the constants and copies and finds
+     * the dead statements; the ssaRewrite methods of the nodes then carry
+     * out the results.  The number of uses replaced by constants and by
+     * copies and of statements found dead are counted in the compilation
+     * as ssa.constants, ssa.copies and ssa.dead.
+     */
+    public void optimize() {
+        build();
+        propagate();
+        int constants = 0;
+        int copies = 0;
+        int[] replaced = new int[numUses];
+        for (int u = 0; u < numUses; u++) {
+            if (useNodes[u] == null || !execBlocks[siteBlock(useSites[u])]) {
+                continue;
+            }
+            ExpNode loc = useNodes[u];
+            long value = lattice[useValues[u]];
+            int x = vars[useValues[u]];
+            if (isConstant(value)) {
+                ExpNode lit;
+                if (!varBools[x]) {
+                    lit = new IntLitNode(loc.lineNum(), loc.charNum(), (int) value);
+                }
+                else if (value != Codegen.FALSE) {
+                    lit = new TrueNode(loc.lineNum(), loc.charNum());
+                }
+                else {
+                    lit = new FalseNode(loc.lineNum(), loc.charNum());
+                }
+                replacements.put(loc, lit);
+                replaced[u] = 1;
+                constants++;
+            }
+            else if (useCopies[u] >= 0) {
+                int y = vars[useCopies[u]];
+                IdNode id = new IdNode(loc.lineNum(), loc.charNum(), varNames[y]);
+                id.link(varInfos[y]);
+                replacements.put(loc, id);
+                replaced[u] = 2;
+                copies++;
+            }
+        }
+        findDead(replaced);
+        Compilation comp = Compilation.current();
+        comp.count("ssa.constants", constants);
+        comp.count("ssa.copies", copies);
+        comp.count("ssa.dead", dead.size());
+    }
+
+    /**
+     * Returns the expression to use in place of the use loc of a variable:
+     * a literal, another variable, or loc itself.
+     */
+    public ExpNode replacement(ExpNode loc) {
+        ExpNode exp = replacements.get(loc);
+        return exp == null ? loc : exp;
+    }
+
+    /**
+     * Returns true if the statement is to be left out.
+     */
+    public boolean isDead(StmtNode stmt) {
+        return dead.contains(stmt);
+    }
+
+    /**
+     * Returns the int and bool locals and formals worth keeping in a
+     * register, at most max of them, the most used first; a use or
+     * definition in a loop weighs 8 times one outside it.
+     */
+    public List<SymInfo> promote(int max) {
+        mode = WEIGH;
+        for (int b = 0; b < cfg.numBlocks(); b++) {
+            if (cfg.isReachable(b)) {
+                int l = cfg.loopOf(b);
+                weight = 1 << (3 * Math.min(l < 0 ? 0 : cfg.loopDepth(l), 6));
+                visitBlock(b);
+            }
+        }
+        Integer[] order = new Integer[numVars];
+        for (int x = 0; x < numVars; x++) {
+            order[x] = x;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return Long.compare(varWeights[y], varWeights[x]);
+            }
+        });
+        List<SymInfo> promoted = new ArrayList<SymInfo>();
+        for (int k = 0; k < numVars && promoted.size() < max; k++) {
+            int x = order[k];
+            if (varScalars[x]
+                && varWeights[x] >= MIN_WEIGHT + (varFormals[x] ? 1 : 0)) {
+                promoted.add(varInfos[x]);
+            }
+        }
+        return promoted;
+    }
+
+    // **********************************************************************
+    // building
+    // **********************************************************************
+
+    private void build() {
+        mode = COLLECT;
+        for (int b = 0; b < cfg.numBlocks(); b++) {
+            visitBlock(b);
+        }
+        // the value of variable x at the entry is value x
+        for (int x = 0; x < numVars; x++) {
+            newValue(ENTRY, x, 0);
+        }
+        placePhis();
+        mode = RENAME;
+        rename();
+    }
+
+    /**
+     * Visits the statements of block b and the condition it ends with.
+     */
+    private void visitBlock(int b) {
+        block = b;
+        for (int i = cfg.first(b); i < cfg.end(b); i++) {
+            site = i;
+            siteDefStart[i] = numValues;
+            cfg.stmt(i).ssaVisit(this);
+            siteDefEnd[i] = numValues;
+        }
+        if (cfg.kind(b) == Cfg.BRANCH) {
+            site = numStmts + b;
+            siteDefStart[site] = numValues;
+            cfg.cond(b).ssaVisit(this);
+            siteDefEnd[site] = numValues;
+        }
+    }
+
+    private int siteBlock(int s) {
+        return s < numStmts ? stmtBlocks[s] : s - numStmts;
+    }
+
+    /**
+     * Places the phis: a block where control from two definitions of a
+     * variable meets -- in the dominance frontier of one of them, found as
+     * by Cooper, Harvey and Kennedy -- gets a phi for it, which is a
+     * definition too.
+     */
+    private void placePhis() {
+        int n = cfg.numBlocks();
+        int[] dfStart = new int[n + 1];
+        int[] dfs = new int[0];
+        int[] stamp = new int[n];
+        for (int pass = 0; pass < 2; pass++) {
+            Arrays.fill(stamp, -1);
+            int[] fill = pass == 0 ? null : Arrays.copyOf(dfStart, n);
+            for (int b = 0; b < n; b++) {
+                if (cfg.numPreds(b) < 2 || !cfg.isReachable(b)) {
+                    continue;
+                }
+                for (int j = 0; j < cfg.numPreds(b); j++) {
+                    int r = cfg.pred(b, j);
+                    if (!cfg.isReachable(r)) {
+                        continue;
+                    }
+                    while (r != cfg.idom(b) && stamp[r] != b) {
+                        stamp[r] = b;
+                        if (pass == 0) {
+                            dfStart[r + 1]++;
+                        }
+                        else {
+                            dfs[fill[r]++] = b;
+                        }
+                        r = cfg.idom(r);
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int b = 0; b < n; b++) {
+                    dfStart[b + 1] += dfStart[b];
+                }
+                dfs = new int[dfStart[n]];
+            }
+        }
+
+        // the blocks defining each variable, by variable
+        int[] defStart = new int[numVars + 1];
+        for (int k = 0; k < numDefs; k++) {
+            defStart[defVars[k] + 1]++;
+        }
+        for (int x = 0; x < numVars; x++) {
+            defStart[x + 1] += defStart[x];
+        }
+        int[] defs = new int[numDefs];
+        int[] fill = Arrays.copyOf(defStart, numVars);
+        for (int k = 0; k < numDefs; k++) {
+            defs[fill[defVars[k]]++] = defBlocks[k];
+        }
+
+        int[] hasPhi = new int[n];
+        int[] onWork = new int[n];
+        Arrays.fill(hasPhi, -1);
+        Arrays.fill(onWork, -1);
+        int[] work = new int[n];
+        for (int x = 0; x < numVars; x++) {
+            int top = 0;
+            for (int k = defStart[x]; k < defStart[x + 1]; k++) {
+                int b = defs[k];
+                if (onWork[b] != x) {
+                    onWork[b] = x;
+                    work[top++] = b;
+                }
+            }
+            while (top > 0) {
+                int b = work[--top];
+                for (int k = dfStart[b]; k < dfStart[b + 1]; k++) {
+                    int d = dfs[k];
+                    if (hasPhi[d] == x) {
+                        continue;
+                    }
+                    hasPhi[d] = x;
+                    int v = newValue(PHI, x, d);
+                    args[v] = numPhiArgs;
+                    numPhiArgs += cfg.numPreds(d);
+                    phiArgs = grow(phiArgs, numPhiArgs);
+                    Arrays.fill(phiArgs, args[v], numPhiArgs, -1);
+                    phiNexts[v] = blockPhis[d];
+                    blockPhis[d] = v;
+                    if (onWork[d] != x) {
+                        onWork[d] = x;
+                        work[top++] = d;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives every use its value, walking the dominator tree from the entry
+     * without recursion; the stack holds ~b to leave block b.
+     */
+    private void rename() {
+        current = new int[numVars];
+        for (int x = 0; x < numVars; x++) {
+            current[x] = x;
+        }
+        maybeSeen = new int[numVars];
+        int n = cfg.numBlocks();
+        if (n == 0) {
+            return;
+        }
+        int[] marks = new int[n];
+        int[] stack = new int[2 * n];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int e = stack[--top];
+            if (e < 0) {
+                undo(marks[~e]);
+                continue;
+            }
+            int b = e;
+            marks[b] = numLog;
+            stack[top++] = ~b;
+            for (int v = blockPhis[b]; v >= 0; v = phiNexts[v]) {
+                setCurrent(vars[v], v);
+            }
+            visitBlock(b);
+            for (int k = 0; k < cfg.numSuccs(b); k++) {
+                int s = cfg.succ(b, k);
+                for (int j = 0; j < cfg.numPreds(s); j++) {
+                    if (cfg.pred(s, j) != b) {
+                        continue;
+                    }
+                    for (int v = blockPhis[s]; v >= 0; v = phiNexts[v]) {
+                        phiArgs[args[v] + j] = current[vars[v]];
+                    }
+                }
+            }
+            for (int k = 0; k < cfg.numDomChildren(b); k++) {
+                stack[top++] = cfg.domChild(b, k);
+            }
+        }
+    }
+
+    private void setCurrent(int x, int v) {
+        logVars = grow(logVars, numLog);
+        logValues = grow(logValues, numLog);
+        logVars[numLog] = x;
+        logValues[numLog] = current[x];
+        numLog++;
+        current[x] = v;
+    }
+
+    private void undo(int mark) {
+        while (numLog > mark) {
+            numLog--;
+            current[logVars[numLog]] = logValues[numLog];
+        }
+    }
+
+    // **********************************************************************
+    // what the nodes report
+    // **********************************************************************
+
+    /**
+     * Returns the number of the variable that is the int or bool local or
+     * formal info, or -1 if it is not one.
+     */
+    public int scalarVar(SymInfo info, String name) {
+        if (info == null || info.isGlobal() || info instanceof FnInfo) {
+            return -1;
+        }
+        Type type = info.getType();
+        if (!type.isIntType() && !type.isBoolType()) {
+            return -1;
+        }
+        return var(info, 0, name, type.isBoolType(), true);
+    }
+
+    /**
+     * Returns the number of the variable that is the int or bool field at
+     * the given offset in the local struct root, or -1 if it is not one.
+     */
+    public int fieldVar(SymInfo root, int offset, String name, Type type) {
+        if (root == null || root.isGlobal() || root.getOffSet() > 0) {
+            return -1;
+        }
+        if (!type.isIntType() && !type.isBoolType()) {
+            return -1;
+        }
+        return var(root, offset, name, type.isBoolType(), false);
+    }
+
+    private int var(SymInfo info, int offset, String name, boolean isBool,
+                    boolean isScalar) {
+        Map<Integer,Integer> fields = varIndex.get(info);
+        if (fields == null) {
+            fields = new HashMap<Integer,Integer>();
+            varIndex.put(info, fields);
+        }
+        Integer x = fields.get(offset);
+        if (x != null) {
+            return x;
+        }
+        if (numVars == varInfos.length) {
+            int len = 2 * numVars;
+            varInfos = Arrays.copyOf(varInfos, len);
+            varNames = Arrays.copyOf(varNames, len);
+            varBools = Arrays.copyOf(varBools, len);
+            varScalars = Arrays.copyOf(varScalars, len);
+            varFormals = Arrays.copyOf(varFormals, len);
+            varWeights = Arrays.copyOf(varWeights, len);
+        }
+        varInfos[numVars] = info;
+        varNames[numVars] = name;
+        varBools[numVars] = isBool;
+        varScalars[numVars] = isScalar;
+        varFormals[numVars] = info.getOffSet() > 0;
+        fields.put(offset, numVars);
+        return numVars++;
+    }
+
+    /**
+     * Reports a use of the value of the variable at location loc.
+     */
+    public void use(ExpNode loc) {
+        int x = loc.ssaVar(this);
+        if (x >= 0) {
+            addUse(x, current == null ? -1 : current[x], loc);
+        }
+    }
+
+    /**
+     * Reports the assignment of rhs to the location lhs, made by the
+     * statement stmt, or by an assignment inside an expression if stmt is
+     * null.  The right-hand side is visited here.
+     */
+    public void assign(ExpNode lhs, ExpNode rhs, StmtNode stmt) {
+        int x = lhs.ssaVar(this);
+        boolean removable = stmt != null && x >= 0 && !rhs.hasSideEffects();
+        int firstUse = numUses;
+        rhs.ssaVisit(this);
+        if (x < 0) {
+            return;
+        }
+        int v = def(x, ASSIGN, removable ? stmt : null);
+        if (mode != RENAME) {
+            return;
+        }
+        exps[v] = rhs;
+        if (removable) {
+            for (int u = firstUse; u < numUses; u++) {
+                useOwners[u] = v;
+            }
+        }
+        if (numUses == firstUse + 1 && useNodes[firstUse] == rhs
+            && varScalars[vars[useValues[firstUse]]]) {
+            copyRoots[v] = useCopies[firstUse] >= 0 ? useCopies[firstUse]
+                                                     : useValues[firstUse];
+        }
+    }
+
+    /**
+     * Reports the statement stmt adding delta to the location loc.
+     */
+    public void increment(ExpNode loc, int delta, StmtNode stmt) {
+        int x = loc.ssaVar(this);
+        if (x < 0) {
+            return;
+        }
+        int u = addUse(x, current == null ? -1 : current[x], null);
+        int v = def(x, INC, stmt);
+        if (mode == RENAME) {
+            incs[v] = delta;
+            args[v] = useValues[u];
+            useOwners[u] = v;
+        }
+    }
+
+    /**
+     * Reports reading a value from the input into the location loc.
+     */
+    public void read(ExpNode loc) {
+        int x = loc.ssaVar(this);
+        if (x >= 0) {
+            def(x, READ, null);
+        }
+    }
+
+    /**
+     * Called before and after visiting code that may not be evaluated.
+     */
+    public void beginMaybe() {
+        if (mode == RENAME) {
+            maybeMarks = grow(maybeMarks, numMaybe);
+            maybeMarks[numMaybe++] = numLog;
+        }
+    }
+
+    public void endMaybe() {
+        if (mode != RENAME) {
+            return;
+        }
+        int mark = maybeMarks[--numMaybe];
+        int end = numLog;
+        maybeStamp++;
+        for (int k = mark; k < end; k++) {
+            int x = logVars[k];
+            if (maybeSeen[x] == maybeStamp) {
+                continue;
+            }
+            maybeSeen[x] = maybeStamp;
+            int before = addUse(x, logValues[k], null);
+            int after = addUse(x, current[x], null);
+            int v = def(x, MAYDEF, null);
+            args[v] = useValues[before];
+            args2[v] = useValues[after];
+            useOwners[before] = v;
+            useOwners[after] = v;
+        }
+    }
+
+    /**
+     * Returns the lattice value of the use loc during constant propagation
+     * (see ExpNode.evalLattice).
+     */
+    public long lattice(ExpNode loc) {
+        Integer u = useIndex.get(loc);
+        if (u == null) {
+            return BOTTOM;
+        }
+        return lattice[useValues[u]];
+    }
+
+    /**
+     * Records a use of value v of variable x, returning its number (or -1
+     * if uses are not recorded).
+     */
+    private int addUse(int x, int v, ExpNode loc) {
+        if (mode == WEIGH) {
+            varWeights[x] += weight;
+        }
+        if (mode != RENAME) {
+            return -1;
+        }
+        int u = numUses++;
+        useNodes = grow(useNodes, u);
+        useValues = grow(useValues, u);
+        useSites = grow(useSites, u);
+        useOwners = grow(useOwners, u);
+        useCopies = grow(useCopies, u);
+        useNodes[u] = loc;
+        useValues[u] = v;
+        useSites[u] = site;
+        useOwners[u] = -1;
+        int r = copyRoots[v];
+        useCopies[u] = r >= 0 && current[vars[r]] == r ? r : -1;
+        if (loc != null) {
+            useIndex.put(loc, u);
+        }
+        return u;
+    }
+
+    /**
+     * Records a definition of variable x, returning the new value (or -1
+     * if values are not made yet).
+     */
+    private int def(int x, byte kind, StmtNode stmt) {
+        if (mode == WEIGH) {
+            varWeights[x] += weight;
+            return -1;
+        }
+        if (mode == COLLECT) {
+            defVars = grow(defVars, numDefs);
+            defBlocks = grow(defBlocks, numDefs);
+            defVars[numDefs] = x;
+            defBlocks[numDefs] = block;
+            numDefs++;
+            return -1;
+        }
+        int v = newValue(kind, x, block);
+        stmts[v] = stmt;
+        setCurrent(x, v);
+        return v;
+    }
+
+    private int newValue(byte kind, int x, int b) {
+        int v = numValues++;
+        if (v == kinds.length) {
+            int len = 2 * v;
+            kinds = Arrays.copyOf(kinds, len);
+            vars = Arrays.copyOf(vars, len);
+            blocks = Arrays.copyOf(blocks, len);
+            args = Arrays.copyOf(args, len);
+            args2 = Arrays.copyOf(args2, len);
+            incs = Arrays.copyOf(incs, len);
+            exps = Arrays.copyOf(exps, len);
+            stmts = Arrays.copyOf(stmts, len);
+            copyRoots = Arrays.copyOf(copyRoots, len);
+            phiNexts = Arrays.copyOf(phiNexts, len);
+        }
+        kinds[v] = kind;
+        vars[v] = x;
+        blocks[v] = b;
+        args[v] = -1;
+        args2[v] = -1;
+        copyRoots[v] = -1;
+        phiNexts[v] = -1;
+        return v;
+    }
+
+    // **********************************************************************
+    // constant propagation
+    // **********************************************************************
+
+    public static boolean isConstant(long value) {
+        return value != TOP && value != BOTTOM;
+    }
+
+    /**
+     * Returns the meet of two lattice values.
+     */
+    public static long meet(long a, long b) {
+        if (a == TOP || a == b) {
+            return b;
+        }
+        if (b == TOP) {
+            return a;
+        }
+        return BOTTOM;
+    }
+
+    // the users of every value: sites, and phis as -1 - p
+    private static final int NO_USER = Integer.MIN_VALUE;
+    private int[] userStart;
+    private int[] users;
+
+    // the blocks and values whose users are still to be visited
+    private int[] blockWork;
+    private int numBlockWork = 0;
+    private int[] valueWork;
+    private int numValueWork = 0;
+    private boolean[] onValueWork;
+
+    /**
+     * Finds the lattice value of every value and the blocks and edges that
+     * can be executed, starting from the entry: a block is visited when
+     * the first edge into it is found executable, and a site or phi again
+     * whenever a value it uses changes.
+     */
+    private void propagate() {
+        // a site or phi using a value more than once is on its list of
+        // users once, so that it is evaluated once when the value changes;
+        // the uses of a site are together, so its last use of a value is
+        // enough to tell
+        userStart = new int[numValues + 1];
+        int[] last = new int[numValues];
+        Arrays.fill(last, NO_USER);
+        for (int u = 0; u < numUses; u++) {
+            if (isNewUser(last, useValues[u], useSites[u])) {
+                userStart[useValues[u] + 1]++;
+            }
+        }
+        for (int v = 0; v < numValues; v++) {
+            if (kinds[v] == PHI) {
+                int nargs = cfg.numPreds(blocks[v]);
+                for (int j = 0; j < nargs; j++) {
+                    int a = phiArgs[args[v] + j];
+                    if (a >= 0 && isNewUser(last, a, -1 - v)) {
+                        userStart[a + 1]++;
+                    }
+                }
+            }
+        }
+        for (int v = 0; v < numValues; v++) {
+            userStart[v + 1] += userStart[v];
+        }
+        users = new int[userStart[numValues]];
+        int[] fill = Arrays.copyOf(userStart, numValues);
+        Arrays.fill(last, NO_USER);
+        for (int u = 0; u < numUses; u++) {
+            if (isNewUser(last, useValues[u], useSites[u])) {
+                users[fill[useValues[u]]++] = useSites[u];
+            }
+        }
+        for (int v = 0; v < numValues; v++) {
+            if (kinds[v] == PHI) {
+                int nargs = cfg.numPreds(blocks[v]);
+                for (int j = 0; j < nargs; j++) {
+                    int a = phiArgs[args[v] + j];
+                    if (a >= 0 && isNewUser(last, a, -1 - v)) {
+                        users[fill[a]++] = -1 - v;
+                    }
+                }
+            }
+        }
+
+        int n = cfg.numBlocks();
+        lattice = new long[numValues];
+        Arrays.fill(lattice, TOP);
+        for (int x = 0; x < numVars; x++) {
+            lattice[x] = evalValue(x);
+        }
+        execBlocks = new boolean[n];
+        execEdges = new boolean[2 * n];
+        blockWork = new int[n];
+        valueWork = new int[numValues];
+        onValueWork = new boolean[numValues];
+        if (n == 0) {
+            return;
+        }
+        execBlocks[0] = true;
+        blockWork[numBlockWork++] = 0;
+        while (numBlockWork > 0 || numValueWork > 0) {
+            if (numBlockWork > 0) {
+                int b = blockWork[--numBlockWork];
+                for (int p = blockPhis[b]; p >= 0; p = phiNexts[p]) {
+                    evalPhi(p);
+                }
+                for (int i = cfg.first(b); i < cfg.end(b); i++) {
+                    evalSite(i);
+                }
+                if (cfg.kind(b) == Cfg.BRANCH) {
+                    evalSite(numStmts + b);
+                }
+                else if (cfg.numSuccs(b) > 0) {
+                    markEdge(b, 0);
+                }
+                continue;
+            }
+            int v = valueWork[--numValueWork];
+            onValueWork[v] = false;
+            for (int k = userStart[v]; k < userStart[v + 1]; k++) {
+                int s = users[k];
+                if (s < 0) {
+                    if (execBlocks[blocks[-1 - s]]) {
+                        evalPhi(-1 - s);
+                    }
+                }
+                else if (execBlocks[siteBlock(s)]) {
+                    evalSite(s);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns false if s was the last user found of value v, and otherwise
+     * makes it the last one and returns true.
+     */
+    private static boolean isNewUser(int[] last, int v, int s) {
+        if (last[v] == s) {
+            return false;
+        }
+        last[v] = s;
+        return true;
+    }
+
+    private void markEdge(int b, int k) {
+        if (execEdges[2 * b + k]) {
+            return;
+        }
+        execEdges[2 * b + k] = true;
+        int s = cfg.succ(b, k);
+        if (!execBlocks[s]) {
+            execBlocks[s] = true;
+            blockWork[numBlockWork++] = s;
+        }
+        else {
+            for (int p = blockPhis[s]; p >= 0; p = phiNexts[p]) {
+                evalPhi(p);
+            }
+        }
+    }
+
+    private boolean isExecutable(int b, int s) {
+        return (execEdges[2 * b] && cfg.succ(b, 0) == s)
+            || (cfg.numSuccs(b) == 2 && execEdges[2 * b + 1] && cfg.succ(b, 1) == s);
+    }
+
+    /**
+     * A phi is the meet of its operands along the executable edges.
+     */
+    private void evalPhi(int p) {
+        int b = blocks[p];
+        long value = TOP;
+        for (int j = 0; j < cfg.numPreds(b); j++) {
+            int a = phiArgs[args[p] + j];
+            if (a >= 0 && isExecutable(cfg.pred(b, j), b)) {
+                value = meet(value, lattice[a]);
+            }
+        }
+        setLattice(p, value);
+    }
+
+    /**
+     * Evaluates the values defined at site s, and for a condition marks
+     * the edges it may take.
+     */
+    private void evalSite(int s) {
+        for (int v = siteDefStart[s]; v < siteDefEnd[s]; v++) {
+            setLattice(v, evalValue(v));
+        }
+        if (s >= numStmts) {
+            int b = s - numStmts;
+            long value = cfg.cond(b).evalLattice(this);
+            if (value == BOTTOM) {
+                markEdge(b, 0);
+                markEdge(b, 1);
+            }
+            else if (value != TOP) {
+                markEdge(b, value != Codegen.FALSE ? 0 : 1);
+            }
+        }
+    }
+
+    private long evalValue(int v) {
+        switch (kinds[v]) {
+        case ENTRY:
+            return varFormals[vars[v]] ? BOTTOM : 0;
+        case ASSIGN:
+            return exps[v].evalLattice(this);
+        case INC:
+            long a = lattice[args[v]];
+            return isConstant(a) ? (long) (int) (a + incs[v]) : a;
+        case MAYDEF:
+            return meet(lattice[args[v]], lattice[args2[v]]);
+        default:
+            return BOTTOM;
+        }
+    }
+
+    private void setLattice(int v, long value) {
+        value = meet(lattice[v], value);
+        if (value != lattice[v]) {
+            lattice[v] = value;
+            if (!onValueWork[v]) {
+                onValueWork[v] = true;
+                valueWork[numValueWork++] = v;
+            }
+        }
+    }
+
+    // **********************************************************************
+    // dead code
+    // **********************************************************************
+
+    /**
+     * Finds the statements whose values are dead: a value is live if it
+     * is used outside a definition that can be left out, or by a live
+     * value.  replaced[u] is 1 if use u becomes a literal and 2 if a copy.
+     */
+    private void findDead(int[] replaced) {
+        int[] ownedStart = new int[numValues + 1];
+        for (int u = 0; u < numUses; u++) {
+            if (useOwners[u] >= 0) {
+                ownedStart[useOwners[u] + 1]++;
+            }
+        }
+        for (int v = 0; v < numValues; v++) {
+            ownedStart[v + 1] += ownedStart[v];
+        }
+        int[] owned = new int[ownedStart[numValues]];
+        int[] fill = Arrays.copyOf(ownedStart, numValues);
+        for (int u = 0; u < numUses; u++) {
+            if (useOwners[u] >= 0) {
+                owned[fill[useOwners[u]]++] = u;
+            }
+        }
+
+        boolean[] live = new boolean[numValues];
+        int[] work = new int[numValues];
+        int top = 0;
+        for (int u = 0; u < numUses; u++) {
+            if (useOwners[u] < 0) {
+                top = markUse(u, replaced, live, work, top);
+            }
+        }
+        while (top > 0) {
+            int v = work[--top];
+            if (kinds[v] == PHI) {
+                for (int j = 0; j < cfg.numPreds(blocks[v]); j++) {
+                    int a = phiArgs[args[v] + j];
+                    if (a >= 0 && !live[a]) {
+                        live[a] = true;
+                        work[top++] = a;
+                    }
+                }
+            }
+            for (int k = ownedStart[v]; k < ownedStart[v + 1]; k++) {
+                top = markUse(owned[k], replaced, live, work, top);
+            }
+        }
+        for (int v = 0; v < numValues; v++) {
+            if (stmts[v] != null && !live[v]) {
+                dead.add(stmts[v]);
+            }
+        }
+    }
+
+    private int markUse(int u, int[] replaced, boolean[] live, int[] work, int top) {
+        int v = replaced[u] == 0 ? useValues[u] : replaced[u] == 2 ? useCopies[u] : -1;
+        if (v >= 0 && !live[v]) {
+            live[v] = true;
+            work[top++] = v;
+        }
+        return top;
+    }
+
+    private static int[] grow(int[] a, int n) {
+        return n < a.length ? a : Arrays.copyOf(a, 2 * a.length + 2);
+    }
+
+    private static ExpNode[] grow(ExpNode[] a, int n) {
+        return n < a.length ? a : Arrays.copyOf(a, 2 * a.length + 2);
+    }
+}
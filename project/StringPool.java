@@ -0,0 +1,70 @@
+import java.util.*;
+
+/**
+ * StringPool
+ *
+ * The string literals of a compilation, each kept once however often it
+ * occurs: StringLitNode asks for the label of its literal (see label), and
+ * the distinct literals are emitted together after the globals in the one
+ * data section, once the functions are done (see codeGen and
+ * ProgramNode.codeGen), in the order they first occurred.
+ *
+ * The counts strings.distinct, strings.uses and strings.saved report the
+ * literals emitted, the occurrences that refer to them, and the bytes of
+ * data the occurrences after the first no longer take.
+ */
+class StringPool {
+    // the label of every literal, as written in the source with its quotes
+    private Map<String,String> labels = new LinkedHashMap<String,String>();
+    private int uses = 0;
+    private long saved = 0;
+
+    /**
+     * Returns the label of the literal lit, a new one the first time.
+     */
+    public String label(String lit) {
+        uses++;
+        String label = labels.get(lit);
+        if (label == null) {
+            label = Codegen.nextLabel();
+            labels.put(lit, label);
+        }
+        else {
+            saved += size(lit);
+        }
+        return label;
+    }
+
+    public boolean isEmpty() {
+        return labels.isEmpty();
+    }
+
+    /**
+     * Generates the literals, in the data section.
+     */
+    public void codeGen() {
+        Compilation comp = Compilation.current();
+        comp.count("strings.distinct", labels.size());
+        comp.count("strings.uses", uses);
+        comp.count("strings.saved", saved);
+        for (Map.Entry<String,String> e : labels.entrySet()) {
+            Codegen.genLabel(e.getValue());
+            Codegen.generate(Opcode.ASCIIZ, e.getKey());
+        }
+    }
+
+    /**
+     * Returns the bytes the literal lit takes, with its terminating 0: an
+     * escape sequence is one byte.
+     */
+    private static int size(String lit) {
+        int bytes = 1;
+        for (int k = 1; k < lit.length() - 1; k++) {
+            if (lit.charAt(k) == '\\') {
+                k++;
+            }
+            bytes++;
+        }
+        return bytes;
+    }
+}
@@ -7,6 +7,8 @@ import java.util.*;
 public class SymInfo {
     private Type type;
     private int offset;
+    private boolean global = false;
+    private Register register = null;
 
     public SymInfo(Type type) {
         this.type = type;
@@ -27,6 +29,45 @@ public class SymInfo {
     public int getOffSet() {
         return offset;
     }
+
+    /**
+     * Marks a variable declared at the outermost scope; its storage is a
+     * label in the data segment rather than an offset from $fp.
+     */
+    public void setGlobal() {
+        global = true;
+    }
+
+    public boolean isGlobal() {
+        return global;
+    }
+
+    /**
+     * Keeps a local or formal in register reg instead of its place in the
+     * frame (see FnDeclNode.promote); null if it stays in the frame.
+     */
+    public void setRegister(Register reg) {
+        register = reg;
+    }
+
+    public Register getRegister() {
+        return register;
+    }
+
+    /**
+     * Returns the number of bytes taken by a variable with this info.
+     */
+    public int size() {
+        return 4;
+    }
+
+    /**
+     * Returns the multiple of bytes the address of a variable with this
+     * info must be.
+     */
+    public int alignment() {
+        return 4;
+    }
 }
 
 /**
@@ -108,17 +149,30 @@ class StructInfo extends SymInfo {
     public IdNode getStructType() {
         return structType;
     }    
+
+    public int size() {
+        return ((StructDefInfo)structType.info()).getSize();
+    }
+
+    public int alignment() {
+        return ((StructDefInfo)structType.info()).getAlignment();
+    }
 }
 
 /**
  * The StructDefInfo class is a subclass of the Sym class just for the 
  * definition of a struct type. 
  * Each StructDefInfo contains a symbol table to hold information about its 
- * fields.
+ * fields, and their layout: the fields are added in the order they are
+ * declared (see addField), each at the next offset its alignment allows,
+ * and the struct is as aligned as its most aligned field.  A field of a
+ * struct type takes the size and alignment of that struct.
  */
 class StructDefInfo extends SymInfo {
     // new fields
     private SymTable symTab;
+    private int size = 0;
+    private int alignment = 1;
     
     public StructDefInfo(SymTable table) {
         super(new StructDefType());
@@ -128,4 +182,31 @@ class StructDefInfo extends SymInfo {
     public SymTable getSymTable() {
         return symTab;
     }
+
+    /**
+     * Lays out field after the fields added before, setting its offset.
+     */
+    public void addField(SymInfo field) {
+        int align = field.alignment();
+        size = align(size, align);
+        field.setOffSet(size);
+        size += field.size();
+        alignment = Math.max(alignment, align);
+    }
+
+    /**
+     * Returns the size in bytes of a variable of this struct type, padded
+     * so that consecutive ones stay aligned.
+     */
+    public int getSize() {
+        return align(size, alignment);
+    }
+
+    public int getAlignment() {
+        return alignment;
+    }
+
+    private static int align(int offset, int align) {
+        return (offset + align - 1) / align * align;
+    }
 }
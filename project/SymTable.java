@@ -7,6 +7,7 @@ import java.util.*;
 public class SymTable {
 
     private List<Map<String,SymInfo>> bindings;
+    private int frameSize = 0;  // bytes of locals of the current function
 
     /**
      * Create a Symbol Table with one empty scope
@@ -43,6 +44,7 @@ public class SymTable {
     public SymInfo lookupLocal(String name) {
         if ( bindings.isEmpty() )
             throw new EmptySymTableException();
+        Compilation.current().countLookup();
         return bindings.get(0).get(name);
     }
 
@@ -52,6 +54,7 @@ public class SymTable {
     public SymInfo lookupGlobal(String name) {
         if ( bindings.isEmpty() )
             throw new EmptySymTableException();
+        Compilation.current().countLookup();
         for ( Map<String,SymInfo> map : bindings )  {
             SymInfo info = map.get(name);
             if ( info != null )
@@ -82,4 +85,28 @@ public class SymTable {
     public int numMap(){
         return bindings.size();
     }
+
+    /**
+     * Start laying out the locals of a function
+     */
+    public void beginFrame() {
+        frameSize = 0;
+    }
+
+    /**
+     * Reserve 'size' bytes for a local of the current function and return
+     * its offset from $fp.  The first local is at -8($fp), below the saved
+     * $ra and $fp.
+     */
+    public int allocLocal(int size) {
+        frameSize += size;
+        return -4 - frameSize;
+    }
+
+    /**
+     * Return the number of bytes of locals of the current function
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
 }
@@ -105,7 +105,7 @@ import java.util.*;
 // ASTnode class (base class for all other kinds of nodes)
 // **********************************************************************
 
-abstract class ASTnode { 
+abstract class ASTnode implements Cloneable { 
     // every subclass must provide an unparse operation
     abstract public void unparse(PrintWriter p, int indent);
 
@@ -113,6 +113,30 @@ abstract class ASTnode {
     protected void doIndent(PrintWriter p, int indent) {
         for (int k=0; k<indent; k++) p.print(" ");
     }
+
+    // the number of nodes in the tree rooted at this node; every subclass
+    // with kids adds theirs
+    public int numNodes() {
+        return 1;
+    }
+
+    protected static int numNodes(List<? extends ASTnode> nodes) {
+        int n = 0;
+        for (ASTnode node : nodes) {
+            n += node.numNodes();
+        }
+        return n;
+    }
+
+    // a copy of this node with the same kids, for the inlineCopy methods
+    // to replace with copies of their own
+    protected ASTnode shallowCopy() {
+        try {
+            return (ASTnode)clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new InternalErrorException("unexpected CloneNotSupportedException in ASTnode.shallowCopy");
+        }
+    }
 }
 
 // **********************************************************************
@@ -133,7 +157,7 @@ class ProgramNode extends ASTnode {
     public void nameAnalysis() {
         SymTable symTab = new SymTable();
         myDeclList.nameAnalysis(symTab);
-        if(!mainExist){
+        if(!myDeclList.hasMain()){
             ErrMsg.fatal(0,0,"No main function");
         }
     }
@@ -149,12 +173,146 @@ class ProgramNode extends ASTnode {
         myDeclList.unparse(p, indent);
     }
 
+    public int numNodes() {
+        return 1 + myDeclList.numNodes();
+    }
+
+    /**
+     * fold
+     * fold the constant expressions of the program (see ExpNode.fold)
+     */
+    public void fold() {
+        myDeclList.fold();
+    }
+
+    /**
+     * elimDeadCode
+     * remove the dead and unreachable code of every function (see
+     * FnBodyNode.elimDeadCode)
+     */
+    public void elimDeadCode() {
+        myDeclList.elimDeadCode();
+    }
+
+    /**
+     * inline
+     * substitute the bodies of small functions for their calls (see
+     * Inliner)
+     */
+    public void inline(Inliner inliner) {
+        inliner.run(myDeclList.functions());
+    }
+
+    /**
+     * optimizeSsa
+     * propagate the constants and copies and remove the dead assignments
+     * of every function (see Ssa)
+     */
+    public void optimizeSsa() {
+        myDeclList.optimizeSsa();
+    }
+
+    /**
+     * optimizeLoops
+     * hoist the invariant code out of the loops of every function, reduce
+     * their induction variables and rotate them (see Loops)
+     */
+    public void optimizeLoops() {
+        myDeclList.optimizeLoops();
+    }
+
+    /**
+     * promote
+     * choose the variables of every function kept in registers (see
+     * FnDeclNode.promote)
+     */
+    public void promote() {
+        myDeclList.promote();
+    }
+
+    /**
+     * markTailCalls
+     * find the returns of every function that can be compiled as tail
+     * calls (see FnDeclNode.markTailCalls)
+     */
+    public void markTailCalls() {
+        myDeclList.markTailCalls();
+    }
+
+    /**
+     * functions
+     * Return the functions of the program, in the order they are declared.
+     */
+    public List<FnDeclNode> functions() {
+        return myDeclList.functions();
+    }
+
+    /**
+     * run
+     * run the program with interp instead of generating code for it (see
+     * Interpreter)
+     */
+    public void run(Interpreter interp) {
+        interp.run(myDeclList.functions(), myDeclList.globals());
+    }
+
+    /**
+     * codeGen
+     * generate the functions in one text section, then one data section
+     * with the globals (see genGlobals) and the string literals the
+     * functions use (see StringPool)
+     */
     public void codeGen(){
+        Codegen.generate(Opcode.TEXT);
         myDeclList.codeGen();
+        List<VarDeclNode> globals = myDeclList.globals();
+        StringPool strings = Compilation.current().strings();
+        if (!globals.isEmpty() || !strings.isEmpty()) {
+            Codegen.generate(Opcode.DATA);
+            genGlobals(globals);
+            strings.codeGen();
+        }
+    }
+
+    /**
+     * genGlobals
+     * lay the globals out one after the other from the start of the data
+     * section, the most aligned ones first, so that no padding is needed
+     * when their sizes are multiples of their alignments, and otherwise
+     * in the order they are declared.  The counts data.globals,
+     * data.bytes and data.padding report them.
+     */
+    private void genGlobals(List<VarDeclNode> globals) {
+        List<VarDeclNode> sorted = new ArrayList<VarDeclNode>(globals);
+        Collections.sort(sorted, new Comparator<VarDeclNode>() {
+            public int compare(VarDeclNode a, VarDeclNode b) {
+                return b.info().alignment() - a.info().alignment();
+            }
+        });
+        int offset = 0;
+        int padding = 0;
+        if (!sorted.isEmpty()) {
+            int align = sorted.get(0).info().alignment();
+            Codegen.generate(Opcode.ALIGN, 31 - Integer.numberOfLeadingZeros(align));
+        }
+        for (VarDeclNode global : sorted) {
+            SymInfo info = global.info();
+            int pad = (info.alignment() - offset % info.alignment()) % info.alignment();
+            if (pad != 0) {
+                Codegen.generate(Opcode.SPACE, pad);
+                offset += pad;
+                padding += pad;
+            }
+            global.genGlobal(offset);
+            offset += info.size();
+        }
+        Compilation comp = Compilation.current();
+        comp.count("data.globals", sorted.size());
+        comp.count("data.bytes", offset);
+        comp.count("data.padding", padding);
     }
     // 1 kid ///
     private DeclListNode myDeclList;
-    static boolean mainExist = false;
 }
 
 class DeclListNode extends ASTnode {
@@ -169,26 +327,30 @@ class DeclListNode extends ASTnode {
     public void nameAnalysis(SymTable symTab) {
         // nameAnalysis(symTab, symTab);
         for (DeclNode node : myDecls) {
-            SymInfo info =  node.nameAnalysis(symTab);
-            if(info != null)
-                size += (-info.getOffSet());
+            node.nameAnalysis(symTab);
         }
     }
     
     /**
      * nameAnalysis inside a struct definition
      * Given a symbol table structSymTab and a global symbol table globalTab
-     * process all of the decls in the list.
+     * process all of the decls in the list, laying each field out in the
+     * struct (see StructDefInfo.addField).  Return the info of the struct.
      */    
-    public void nameAnalysis(SymTable structSymTab, SymTable globalTab) {
+    public StructDefInfo nameAnalysis(SymTable structSymTab, SymTable globalTab) {
+        StructDefInfo def = new StructDefInfo(structSymTab);
         for (DeclNode node : myDecls) {
             if (node instanceof VarDeclNode) {
-                ((VarDeclNode)node).nameAnalysis(structSymTab, globalTab);
+                SymInfo info = ((VarDeclNode)node).nameAnalysis(structSymTab, globalTab);
+                if (info != null) {
+                    def.addField(info);
+                }
             } else {
                 // this should never happen
                 node.nameAnalysis(globalTab);
             }
         }
+        return def;
     }    
         
     /**
@@ -207,8 +369,47 @@ class DeclListNode extends ASTnode {
                 ((DeclNode)it.next()).unparse(p, indent);
             }
         } catch (NoSuchElementException ex) {
-            System.err.println("unexpected NoSuchElementException in DeclListNode.print");
-            System.exit(-1);
+            throw new InternalErrorException("unexpected NoSuchElementException in DeclListNode.print");
+        }
+    }
+
+    public int numNodes() {
+        return 1 + numNodes(myDecls);
+    }
+
+    public void fold() {
+        for (DeclNode node : myDecls) {
+            node.fold();
+        }
+    }
+
+    public void elimDeadCode() {
+        for (DeclNode node : myDecls) {
+            node.elimDeadCode();
+        }
+    }
+
+    public void optimizeSsa() {
+        for (DeclNode node : myDecls) {
+            node.optimizeSsa();
+        }
+    }
+
+    public void optimizeLoops() {
+        for (DeclNode node : myDecls) {
+            node.optimizeLoops();
+        }
+    }
+
+    public void promote() {
+        for (DeclNode node : myDecls) {
+            node.promote();
+        }
+    }
+
+    public void markTailCalls() {
+        for (DeclNode node : myDecls) {
+            node.markTailCalls();
         }
     }
 
@@ -217,13 +418,48 @@ class DeclListNode extends ASTnode {
             node.codeGen();
         }
     }
-    public int getSize() {
-        return size;
+
+    /**
+     * Return the global variables declared in this list, in order.
+     */
+    public List<VarDeclNode> globals() {
+        List<VarDeclNode> vars = new ArrayList<VarDeclNode>();
+        for (DeclNode node : myDecls) {
+            if (node instanceof VarDeclNode && ((VarDeclNode)node).global) {
+                vars.add((VarDeclNode)node);
+            }
+        }
+        return vars;
+    }
+
+    /**
+     * Return the functions declared in this list, in order.
+     */
+    public List<FnDeclNode> functions() {
+        List<FnDeclNode> fns = new ArrayList<FnDeclNode>();
+        for (DeclNode node : myDecls) {
+            if (node instanceof FnDeclNode) {
+                fns.add((FnDeclNode)node);
+            }
+        }
+        return fns;
+    }
+
+    /**
+     * Return true if a function named main is declared in this list.
+     */
+    public boolean hasMain() {
+        for (DeclNode node : myDecls) {
+            if (node instanceof FnDeclNode &&
+                ((FnDeclNode)node).name().equals("main")) {
+                return true;
+            }
+        }
+        return false;
     }
     
     // list of kids (DeclNodes)
     private List<DeclNode> myDecls;
-    private int size = 0;
 }
 
 class FormalsListNode extends ASTnode {
@@ -237,14 +473,20 @@ class FormalsListNode extends ASTnode {
      * for each formal decl in the list
      *     process the formal decl
      *     if there was no error, add type of formal decl to list
+     *     and give it its offset from $fp
+     * The caller pushes the actuals in order, so the last one is just
+     * above the saved $ra at 0($fp).
      */
     public List<Type> nameAnalysis(SymTable symTab) {
         List<Type> typeList = new LinkedList<Type>();
+        int offset = 4 * myFormals.size();
         for (FormalDeclNode node : myFormals) {
             SymInfo info = node.nameAnalysis(symTab);
             if (info != null) {
                 typeList.add(info.getType());
+                info.setOffSet(offset);
             }
+            offset -= 4;
         }
         return typeList;
     }    
@@ -255,6 +497,17 @@ class FormalsListNode extends ASTnode {
     public int length() {
         return myFormals.size();
     }
+
+    /**
+     * Return the ids of the formals, in order.
+     */
+    public List<IdNode> ids() {
+        List<IdNode> ids = new ArrayList<IdNode>();
+        for (FormalDeclNode node : myFormals) {
+            ids.add(node.idNode());
+        }
+        return ids;
+    }
     
     public void unparse(PrintWriter p, int indent) {
         Iterator<FormalDeclNode> it = myFormals.iterator();
@@ -267,6 +520,10 @@ class FormalsListNode extends ASTnode {
         } 
     }
 
+    public int numNodes() {
+        return 1 + numNodes(myFormals);
+    }
+
     // list of kids (FormalDeclNodes)
     private List<FormalDeclNode> myFormals;
 }
@@ -300,12 +557,64 @@ class FnBodyNode extends ASTnode {
         myStmtList.unparse(p, indent);
     }
 
+    public int numNodes() {
+        return 1 + myDeclList.numNodes() + myStmtList.numNodes();
+    }
+
+    public void fold() {
+        myStmtList.fold();
+    }
+
+    public void buildCfg(Cfg cfg) {
+        myStmtList.buildCfg(cfg);
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        myStmtList.ssaRewrite(ssa);
+    }
+
+    public void optimizeLoops(Loops loops) {
+        myStmtList.optimizeLoops(loops);
+    }
+
+    public void inlineCalls(Inliner inliner) {
+        myStmtList.inlineCalls(inliner);
+    }
+
+    public void markTailCalls(FnDeclNode fn) {
+        myStmtList.markTailCalls(fn);
+    }
+
+    public boolean hasCall() {
+        return myStmtList.hasCall();
+    }
+
+    public boolean exec(Interpreter interp) {
+        return myStmtList.exec(interp);
+    }
+
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        return myStmtList.inlineCopy(inliner, stmts);
+    }
+
+    /**
+     * elimDeadCode
+     * Remove the unreachable code, then the assignments to locals that are
+     * never read, until there are none left: leaving one out may leave
+     * the variables on its right-hand side unread.
+     */
+    public void elimDeadCode() {
+        myStmtList.elimDeadCode();
+        Set<SymInfo> reads = new HashSet<SymInfo>();
+        do {
+            reads.clear();
+            myStmtList.collectReads(reads);
+        } while (myStmtList.elimDeadStores(reads) > 0);
+    }
+
     public void codeGen() {
         myStmtList.codeGen();
     }
-    public int getSize(){
-        return myDeclList.getSize();
-    }
 
     // 2 kids
     private DeclListNode myDeclList;
@@ -343,6 +652,212 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    public int numNodes() {
+        return 1 + numNodes(myStmts);
+    }
+
+    public void fold() {
+        for (StmtNode node : myStmts) {
+            node.fold();
+        }
+    }
+
+    public void buildCfg(Cfg cfg) {
+        for (StmtNode node : myStmts) {
+            node.buildCfg(cfg);
+        }
+    }
+
+    /**
+     * elimDeadCode
+     * Remove the unreachable code from the list, and return false if
+     * control never gets to its end.
+     */
+    public boolean elimDeadCode() {
+        List<StmtNode> stmts = new LinkedList<StmtNode>();
+        boolean reachable = elimDeadCode(stmts);
+        myStmts = stmts;
+        return reachable;
+    }
+
+    /**
+     * elimDeadCode
+     * Add what is left of the statements to the list stmts instead (see
+     * StmtNode.elimDeadCode); the statements after one that control
+     * never gets past are left out with a warning.
+     */
+    public boolean elimDeadCode(List<StmtNode> stmts) {
+        Iterator<StmtNode> it = myStmts.iterator();
+        while (it.hasNext()) {
+            if (!it.next().elimDeadCode(stmts)) {
+                if (it.hasNext()) {
+                    StmtNode next = it.next();
+                    ErrMsg.warn(next.lineNum(), next.charNum(), "Unreachable code");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * elimDeadStores
+     * Remove the assignments to locals that are not in the set reads (see
+     * StmtNode.elimDeadStores), and return how many were removed.
+     */
+    public int elimDeadStores(Set<SymInfo> reads) {
+        List<StmtNode> stmts = new LinkedList<StmtNode>();
+        int removed = 0;
+        for (StmtNode node : myStmts) {
+            removed += node.elimDeadStores(reads, stmts);
+        }
+        myStmts = stmts;
+        return removed;
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        for (StmtNode node : myStmts) {
+            node.collectReads(reads);
+        }
+    }
+
+    /**
+     * ssaRewrite
+     * Rewrite the statements as decided by ssa, leaving out the dead ones.
+     */
+    public void ssaRewrite(Ssa ssa) {
+        Iterator<StmtNode> it = myStmts.iterator();
+        while (it.hasNext()) {
+            StmtNode node = it.next();
+            if (ssa.isDead(node)) {
+                it.remove();
+            }
+            else {
+                node.ssaRewrite(ssa);
+            }
+        }
+    }
+
+    /**
+     * optimizeLoops
+     * Optimize the loops in the statements, putting the statements that
+     * compute what is hoisted out of a loop before it.
+     */
+    public void optimizeLoops(Loops loops) {
+        ListIterator<StmtNode> it = myStmts.listIterator();
+        while (it.hasNext()) {
+            StmtNode node = it.next();
+            List<StmtNode> before = node.optimizeLoops(loops);
+            if (!before.isEmpty()) {
+                it.previous();
+                for (StmtNode stmt : before) {
+                    it.add(stmt);
+                }
+                it.next();
+            }
+        }
+    }
+
+    public void loopScan(Loops loops) {
+        for (StmtNode node : myStmts) {
+            node.loopScan(loops);
+        }
+    }
+
+    /**
+     * inlineCalls
+     * Inline the calls in the statements, putting the bodies before the
+     * statements they are in (see StmtNode.inlineCalls).
+     */
+    public void inlineCalls(Inliner inliner) {
+        List<StmtNode> stmts = new LinkedList<StmtNode>();
+        for (StmtNode node : myStmts) {
+            node.inlineCalls(inliner, stmts);
+        }
+        myStmts = stmts;
+    }
+
+    public void markTailCalls(FnDeclNode fn) {
+        for (StmtNode node : myStmts) {
+            node.markTailCalls(fn);
+        }
+    }
+
+    public boolean hasCall() {
+        for (StmtNode node : myStmts) {
+            if (node.hasCall()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * inlineCopy
+     * Add the copies of the statements for the body being inlined to the
+     * list stmts (see StmtNode.inlineCopy), and return whether they always
+     * return, may return or never do.  The statements after a return are
+     * left out, and the ones after a statement that may return are put in
+     * an if statement testing that it did not.
+     */
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        return inlineCopy(inliner, myStmts.iterator(), stmts);
+    }
+
+    private int inlineCopy(Inliner inliner, Iterator<StmtNode> it,
+                           List<StmtNode> stmts) {
+        while (it.hasNext()) {
+            StmtNode node = it.next();
+            int returns = node.inlineCopy(inliner, stmts);
+            if (returns == Inliner.RETURNS) {
+                return returns;
+            }
+            if (returns == Inliner.MAY_RETURN) {
+                if (!it.hasNext()) {
+                    return returns;
+                }
+                List<StmtNode> rest = new LinkedList<StmtNode>();
+                int restReturns = inlineCopy(inliner, it, rest);
+                stmts.add(new IfStmtNode(inliner.notDone(node),
+                                         new DeclListNode(new LinkedList<DeclNode>()),
+                                         new StmtListNode(rest)));
+                return restReturns == Inliner.RETURNS ? restReturns : returns;
+            }
+        }
+        return Inliner.NO_RETURN;
+    }
+
+    /**
+     * loopRewrite
+     * Rewrite the statements as decided by loops, putting the updates of
+     * the reduced induction variables after the steps.
+     */
+    public void loopRewrite(Loops loops) {
+        ListIterator<StmtNode> it = myStmts.listIterator();
+        while (it.hasNext()) {
+            StmtNode node = it.next();
+            node.loopRewrite(loops);
+            for (StmtNode update : loops.updates(node)) {
+                it.add(update);
+            }
+        }
+    }
+
+    /**
+     * exec
+     * run the statements in order until one returns; return true if one
+     * did
+     */
+    public boolean exec(Interpreter interp) {
+        for (StmtNode node : myStmts) {
+            interp.step();
+            if (node.exec(interp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void codeGen() {
         for(StmtNode node : myStmts) {
             node.codeGen();
@@ -386,8 +901,7 @@ class ExpListNode extends ASTnode {
                 k++;
             }
         } catch (NoSuchElementException e) {
-            System.err.println("unexpected NoSuchElementException in ExpListNode.typeCheck");
-            System.exit(-1);
+            throw new InternalErrorException("unexpected NoSuchElementException in ExpListNode.typeCheck");
         }
     }
     
@@ -402,30 +916,126 @@ class ExpListNode extends ASTnode {
         } 
     }
 
+    public int numNodes() {
+        return 1 + numNodes(myExps);
+    }
+
     public int size() {
         return myExps.size();
     }
 
-    // list of kids (ExpNodes)
-    private List<ExpNode> myExps;
-}
-
-// **********************************************************************
-// DeclNode and its subclasses
-// **********************************************************************
-
-abstract class DeclNode extends ASTnode {
     /**
-     * Note: a formal decl needs to return an info
+     * Return the expressions of the list.
      */
-    abstract public SymInfo nameAnalysis(SymTable symTab);
+    public List<ExpNode> exps() {
+        return myExps;
+    }
 
-    // default version of typeCheck for non-function decls
-    public void typeCheck() { }   
-    public void codeGen() { } 
-}
+    public void fold() {
+        ListIterator<ExpNode> it = myExps.listIterator();
+        while (it.hasNext()) {
+            it.set(it.next().fold());
+        }
+    }
 
-class VarDeclNode extends DeclNode {
+    public void collectReads(Set<SymInfo> reads) {
+        for (ExpNode node : myExps) {
+            node.collectReads(reads);
+        }
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        for (ExpNode node : myExps) {
+            node.ssaVisit(ssa);
+        }
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        ListIterator<ExpNode> it = myExps.listIterator();
+        while (it.hasNext()) {
+            it.set(it.next().ssaRewrite(ssa));
+        }
+    }
+
+    public void loopScan(Loops loops) {
+        for (ExpNode node : myExps) {
+            node.loopScan(loops);
+        }
+    }
+
+    public void loopRewrite(Loops loops) {
+        ListIterator<ExpNode> it = myExps.listIterator();
+        while (it.hasNext()) {
+            it.set(it.next().loopRewrite(loops));
+        }
+    }
+
+    public void inlineCalls(Inliner inliner) {
+        ListIterator<ExpNode> it = myExps.listIterator();
+        while (it.hasNext()) {
+            it.set(it.next().inlineCalls(inliner));
+        }
+    }
+
+    public ExpListNode inlineCopy(Inliner inliner) {
+        List<ExpNode> exps = new LinkedList<ExpNode>();
+        for (ExpNode node : myExps) {
+            exps.add(node.inlineCopy(inliner));
+        }
+        return new ExpListNode(exps);
+    }
+
+    /**
+     * codeGen
+     * push the values of the expressions in order
+     */
+    public void codeGen() {
+        for (ExpNode node : myExps) {
+            node.codeGen();
+        }
+    }
+
+    // list of kids (ExpNodes)
+    private List<ExpNode> myExps;
+}
+
+// **********************************************************************
+// DeclNode and its subclasses
+// **********************************************************************
+
+abstract class DeclNode extends ASTnode {
+    /**
+     * Note: a formal decl needs to return an info
+     */
+    abstract public SymInfo nameAnalysis(SymTable symTab);
+
+    // default version of typeCheck for non-function decls
+    public void typeCheck() { }   
+    public void codeGen() { } 
+
+    /**
+     * fold
+     * Default version for declarations without code
+     */
+    public void fold() { }
+
+    /**
+     * elimDeadCode
+     * Default version for declarations without code
+     */
+    public void elimDeadCode() { }
+
+    /**
+     * optimizeSsa, optimizeLoops, promote, markTailCalls
+     * Default versions for declarations without code
+     */
+    public void optimizeSsa() { }
+    public void optimizeLoops() { }
+    public void promote() { }
+    public void markTailCalls() { }
+}
+
+class VarDeclNode extends DeclNode {
     public VarDeclNode(TypeNode type, IdNode id, int size) {
         myType = type;
         myId = id;
@@ -491,10 +1101,10 @@ class VarDeclNode extends DeclNode {
             myId.link(info);
             if(symTab.numMap() == 1){
                 global = true;
-                info.setOffSet(4);
+                info.setGlobal();
             }
             else{
-                info.setOffSet(-4);
+                info.setOffSet(symTab.allocLocal(info.size()));
             }
         }
         
@@ -555,12 +1165,35 @@ class VarDeclNode extends DeclNode {
         p.println(";");
     }
 
+    public int numNodes() {
+        return 1 + myType.numNodes() + myId.numNodes();
+    }
+
+    /**
+     * codeGen
+     * nothing: the globals are laid out together after the functions
+     * (see ProgramNode.codeGen), and the locals are in the frame
+     */
     public void codeGen() {
-        if(global) {
-            Codegen.generate(".data");
-            Codegen.generate(".align 2");
-            Codegen.generateLabeled("_" + myId.name(), ".space " + myId.info().getOffSet(), "");
-        }
+    }
+
+    /**
+     * Return the info of the variable.
+     */
+    public SymInfo info() {
+        return myId.info();
+    }
+
+    /**
+     * genGlobal
+     * reserve the space of the global at offset bytes into the data
+     * section, with the offset and the type in the comment as its entry
+     * in the symbol map
+     */
+    public void genGlobal(int offset) {
+        SymInfo info = myId.info();
+        Codegen.generateLabeled("_" + myId.name(), Opcode.SPACE,
+                                "+" + offset + " " + info.getType(), info.size());
     }
     // 3 kids
     private TypeNode myType;
@@ -582,6 +1215,35 @@ class FnDeclNode extends DeclNode {
         myBody = body;
     }
 
+    /**
+     * Return the name of this function.
+     */
+    public String name() {
+        return myId.name();
+    }
+
+    /**
+     * Return the line number of the name of this function.
+     */
+    public int lineNum() {
+        return myId.lineNum();
+    }
+
+    /**
+     * Return the symbol of this function, or null if it is multiply
+     * declared.
+     */
+    public FnInfo info() {
+        return (FnInfo)myId.info();
+    }
+
+    /**
+     * Return the ids of the formals of this function, in order.
+     */
+    public List<IdNode> formals() {
+        return myFormalsList.ids();
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -596,11 +1258,12 @@ class FnDeclNode extends DeclNode {
      *     exit scope
      */
     public SymInfo nameAnalysis(SymTable symTab) {
+        CompileMetrics metrics = Compilation.current().metrics();
+        if (metrics != null) {
+            metrics.beginFunction(this);
+        }
         String name = myId.name();
         FnInfo info = null;
-        if(name.equals("main")){
-            ProgramNode.mainExist = true;
-        }
 
         SymInfo dup = symTab.lookupLocal(name);
 
@@ -616,6 +1279,7 @@ class FnDeclNode extends DeclNode {
         }
         
         symTab.addScope();  // add a new scope for locals and params
+        symTab.beginFrame();
         
         // process the formals
         List<Type> typeList = myFormalsList.nameAnalysis(symTab);
@@ -624,10 +1288,14 @@ class FnDeclNode extends DeclNode {
         }
         
         myBody.nameAnalysis(symTab); // process the function body
+        myDeclaredSize = symTab.getFrameSize();
         if(info != null){
-            info.setLocalSize(myBody.getSize());
+            info.setLocalSize(myDeclaredSize);
         }
         symTab.removeScope();  // exit scope
+        if (metrics != null) {
+            metrics.endFunction();
+        }
         return null;
     }    
        
@@ -635,7 +1303,14 @@ class FnDeclNode extends DeclNode {
      * typeCheck
      */
     public void typeCheck() {
+        CompileMetrics metrics = Compilation.current().metrics();
+        if (metrics != null) {
+            metrics.beginFunction(this);
+        }
         myBody.typeCheck(myType.type());
+        if (metrics != null) {
+            metrics.endFunction();
+        }
     }
     
     public void unparse(PrintWriter p, int indent) {
@@ -650,46 +1325,308 @@ class FnDeclNode extends DeclNode {
         p.println("}\n");
     }
 
+    public int numNodes() {
+        return 1 + myType.numNodes() + myId.numNodes() + myFormalsList.numNodes()
+            + myBody.numNodes();
+    }
+
+    /**
+     * buildCfg
+     * Return the control-flow graph of the body.
+     */
+    public Cfg buildCfg() {
+        Cfg cfg = new Cfg();
+        myBody.buildCfg(cfg);
+        cfg.finish();
+        return cfg;
+    }
+
+    public void fold() {
+        myBody.fold();
+    }
+
+    public void elimDeadCode() {
+        myBody.elimDeadCode();
+    }
+
+    /**
+     * optimizeSsa
+     * build the SSA form of the body and carry out the optimizations
+     * found with it
+     */
+    public void optimizeSsa() {
+        Ssa ssa = new Ssa(buildCfg());
+        ssa.optimize();
+        myBody.ssaRewrite(ssa);
+    }
+
+    /**
+     * optimizeLoops
+     * optimize the loops of the body (see Loops), adding the locals they
+     * need to the frame
+     */
+    public void optimizeLoops() {
+        myBody.optimizeLoops(new Loops(this, (FnInfo)myId.info()));
+    }
+
+    /**
+     * inlineCalls
+     * inline the calls in the body (see Inliner)
+     */
+    public void inlineCalls(Inliner inliner) {
+        myBody.inlineCalls(inliner);
+    }
+
+    /**
+     * exec
+     * run the body in the frame of a call set up by interp (see
+     * Interpreter.call); return true if a return statement ended it
+     */
+    public boolean exec(Interpreter interp) {
+        return myBody.exec(interp);
+    }
+
+    /**
+     * inlineCopy
+     * add the copy of the body for a call being inlined to stmts (see
+     * StmtListNode.inlineCopy)
+     */
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        return myBody.inlineCopy(inliner, stmts);
+    }
+
+    /**
+     * promote
+     * keep the most used int and bool locals and formals in the saved
+     * registers $s0-$s7 instead of the frame (see Ssa.promote): the
+     * prologue saves the registers below the locals and loads the formals
+     * into theirs, and the epilogue restores them
+     */
+    public void promote() {
+        myPromoted = new Ssa(buildCfg()).promote(Codegen.NUM_SAVED);
+        for (int k = 0; k < myPromoted.size(); k++) {
+            myPromoted.get(k).setRegister(Codegen.saved(k));
+        }
+        Compilation.current().count("promote.vars", myPromoted.size());
+    }
+
+    /**
+     * markTailCalls
+     * mark the returns of a call as tail calls (see genTailCall) if the
+     * function called is this one, or one that takes as many arguments, so
+     * that they fit where ours were; main, which has no caller to return
+     * to, makes none
+     */
+    public void markTailCalls() {
+        if (!name().equals("main") && info() != null) {
+            myBody.markTailCalls(this);
+        }
+    }
+
+    /**
+     * Return true if the call can be made a tail call of this function.
+     */
+    public boolean isTailCall(CallExpNode call) {
+        FnInfo callee = call.fnInfo();
+        if (callee == info()) {
+            return true;
+        }
+        return callee != null && !call.fnId().name().equals("main")
+            && callee.getNumParams() == info().getNumParams();
+    }
+
+    /**
+     * genTailCall
+     * return call as a tail call: the actuals are evaluated and stored in
+     * the place of our formals.  A call of this function then sets the
+     * locals to zero again and jumps back to the start of the body, so
+     * that the recursion is a loop.  A call of another function leaves
+     * our frame as the epilogue does and jumps to it, so that it returns
+     * straight to our caller, which pops the actuals.
+     */
+    public void genTailCall(CallExpNode call) {
+        boolean self = call.fnInfo() == info();
+        List<ExpNode> args = call.args();
+        List<IdNode> formals = formals();
+        int n = args.size();
+
+        // the actuals go into the temporaries if they fit and no call
+        // clobbers them, onto the stack otherwise; an actual that is the
+        // formal it is stored into is left alone
+        boolean inTemps = n <= Codegen.NUM_TEMPS;
+        for (int k = 0; k < n && inTemps; k++) {
+            ExpNode arg = args.get(k);
+            inTemps = (k == 0 || !arg.hasCall())
+                && k + arg.regNeed() <= Codegen.NUM_TEMPS;
+        }
+        boolean[] same = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            ExpNode arg = args.get(k);
+            same[k] = self && arg instanceof IdNode
+                && ((IdNode)arg).info() == formals.get(k).info();
+            if (inTemps) {
+                if (!same[k]) {
+                    arg.genValue(k);
+                }
+            }
+            else {
+                arg.codeGen();
+            }
+        }
+        for (int k = n - 1; k >= 0; k--) {
+            Register reg = Codegen.T0;
+            if (inTemps) {
+                reg = Codegen.tmp(k);
+            }
+            else {
+                Codegen.genPop(reg);
+            }
+            if (same[k]) {
+                continue;
+            }
+            if (self) {
+                formals.get(k).genStore(reg, Codegen.V1);
+            }
+            else {
+                Codegen.generateFrame(Opcode.SW, reg, 4 * (n - k));
+            }
+        }
+
+        if (self) {
+            genZeroLocals();
+            Codegen.generate(Opcode.B, myBodyLabel);
+            Compilation.current().count("tail.self", 1);
+        }
+        else {
+            genRestore();
+            Codegen.generate(Opcode.J, call.fnId().fnLabel());
+            Compilation.current().count("tail.calls", 1);
+        }
+    }
+
     public void codeGen() {
+        CompileMetrics metrics = Compilation.current().metrics();
+        if (metrics != null) {
+            metrics.beginFunction(this);
+        }
         String name = myId.name();
         if(name.equals("main")){
+            Codegen.generate(Opcode.GLOBL, "main");
             Codegen.genLabel("main");
             Codegen.genLabel("__start");
         }
         else{
-            Codegen.generate(".text");
             Codegen.genLabel("_" + name);
         }
-        Codegen.genPush(Codegen.RA);
-        Codegen.genPush(Codegen.FP);
-        Codegen.generate("addu", Codegen.FP, Codegen.SP, 8);
         FnInfo info = (FnInfo)myId.info();
+        int localSize = 0;
         if(info != null) {
-            int localSize = info.getLocalSize();
-            if(localSize != 0){
-                Codegen.generate("subu", Codegen.SP, Codegen.SP, localSize);
+            localSize = info.getLocalSize();
+        }
+        int frameSize = localSize + 4 * myPromoted.size();
+        mySavedBase = -8 - localSize;
+        if(!myBody.hasCall()) {
+            // a leaf: $ra is never changed, and the frame is addressed from
+            // $sp, which moves only if there are locals or saved registers
+            myFrameSize = 0;
+            if(frameSize != 0){
+                myFrameSize = 8 + frameSize;
+                Codegen.generate(Opcode.SUBU, Codegen.SP, Codegen.SP, myFrameSize);
+            }
+            Codegen.setFrame(myFrameSize);
+            Compilation.current().count("frame.leaf", 1);
+        }
+        else {
+            myFrameSize = -1;
+            Codegen.generateIndexed(Opcode.SW, Codegen.RA, Codegen.SP, 0);
+            Codegen.generateIndexed(Opcode.SW, Codegen.FP, Codegen.SP, -4);
+            Codegen.generate(Opcode.MOVE, Codegen.FP, Codegen.SP);
+            Codegen.generate(Opcode.SUBU, Codegen.SP, Codegen.SP, 8 + frameSize);
+            Codegen.setFrame(-1);
+        }
+        for (int k = 0; k < myPromoted.size(); k++) {
+            SymInfo var = myPromoted.get(k);
+            Codegen.generateFrame(Opcode.SW, var.getRegister(), mySavedBase - 4 * k);
+            if (var.getOffSet() > 0) {
+                Codegen.generateFrame(Opcode.LW, var.getRegister(), var.getOffSet());
             }
         }
+        genZeroLocals();
         String label = Codegen.nextLabel();
+        Codegen.setReturnLabel(label);
+        myBodyLabel = Codegen.nextLabel();
+        Codegen.genLabel(myBodyLabel);
         myBody.codeGen();
         Codegen.genLabel(label);
-        Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, 0); 
-        Codegen.generate("move", Codegen.T0, Codegen.FP);
-        Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4);
-        Codegen.generate("move", Codegen.SP, Codegen.T0);
+        genRestore();
         if(name.equals("main")){
-            Codegen.generate("li", Codegen.V0, 10);
-            Codegen.generate("syscall");
+            Codegen.generate(Opcode.LI, Codegen.V0, 10);
+            Codegen.generate(Opcode.SYSCALL);
         }
         else{
-            Codegen.generate("jr", Codegen.RA);
+            Codegen.generate(Opcode.JR, Codegen.RA);
+        }
+        if (metrics != null) {
+            metrics.endFunction();
+        }
+    }
+    /**
+     * genZeroLocals
+     * set the declared locals to zero, in the frame or in their registers;
+     * the locals added by the optimizations after them are always set
+     * before they are used
+     */
+    private void genZeroLocals() {
+        Map<Integer,Register> inRegs = new HashMap<Integer,Register>();
+        for (SymInfo var : myPromoted) {
+            inRegs.put(var.getOffSet(), var.getRegister());
+        }
+        for (int offset = -8; offset > -8 - myDeclaredSize; offset -= 4) {
+            Register reg = inRegs.get(offset);
+            if (reg == null) {
+                Codegen.generateFrame(Opcode.SW, Codegen.ZERO, offset);
+            }
+            else {
+                Codegen.generate(Opcode.MOVE, reg, Codegen.ZERO);
+            }
+        }
+    }
+
+    /**
+     * genRestore
+     * restore the saved registers, and $ra, $fp and $sp of our caller as
+     * far as they were changed; $sp goes back first, and the old $fp is
+     * read from just below it, where nothing has been stored since
+     */
+    private void genRestore() {
+        for (int k = 0; k < myPromoted.size(); k++) {
+            Codegen.generateFrame(Opcode.LW, myPromoted.get(k).getRegister(), mySavedBase - 4 * k);
+        }
+        if (myFrameSize < 0) {
+            Codegen.generateIndexed(Opcode.LW, Codegen.RA, Codegen.FP, 0);
+            Codegen.generate(Opcode.MOVE, Codegen.SP, Codegen.FP);
+            Codegen.generateIndexed(Opcode.LW, Codegen.FP, Codegen.SP, -4);
+        }
+        else if (myFrameSize > 0) {
+            Codegen.generate(Opcode.ADDU, Codegen.SP, Codegen.SP, myFrameSize);
         }
     }
+
     // 4 kids
     private TypeNode myType;
     private IdNode myId;
     private FormalsListNode myFormalsList;
     private FnBodyNode myBody;
+    // the variables kept in registers (see promote)
+    private List<SymInfo> myPromoted = new ArrayList<SymInfo>();
+    // the bytes of the locals declared in the body
+    private int myDeclaredSize = 0;
+    // where the saved registers start below $fp, the label of the start
+    // of the body, and the bytes of the frame below the place $fp points
+    // to if it is addressed from $sp, or -1 (see codeGen)
+    private int mySavedBase = 0;
+    private String myBodyLabel;
+    private int myFrameSize = -1;
 }
 
 class FormalDeclNode extends DeclNode {
@@ -738,6 +1675,17 @@ class FormalDeclNode extends DeclNode {
         p.print(myId.name());
     }
 
+    public int numNodes() {
+        return 1 + myType.numNodes() + myId.numNodes();
+    }
+
+    /**
+     * Return the id of this formal.
+     */
+    public IdNode idNode() {
+        return myId;
+    }
+
     // 2 kids
     private TypeNode myType;
     private IdNode myId;
@@ -773,11 +1721,10 @@ class StructDeclNode extends DeclNode {
 
         SymTable structSymTab = new SymTable();
         
-        // process the fields of the struct
-        myDeclList.nameAnalysis(structSymTab, symTab);
+        // process the fields of the struct, laying them out
+        StructDefInfo info = myDeclList.nameAnalysis(structSymTab, symTab);
         
         if (!badDecl) {
-            StructDefInfo info = new StructDefInfo(structSymTab);
             symTab.addDecl(name, info);
             myId.link(info);
         }
@@ -796,6 +1743,10 @@ class StructDeclNode extends DeclNode {
 
     }
 
+    public int numNodes() {
+        return 1 + myId.numNodes() + myDeclList.numNodes();
+    }
+
     // 2 kids
     private IdNode myId;
     private DeclListNode myDeclList;
@@ -878,6 +1829,10 @@ class StructNode extends TypeNode {
         p.print("struct ");
         p.print(myId.name());
     }
+
+    public int numNodes() {
+        return 1 + myId.numNodes();
+    }
     
     // 1 kid
     private IdNode myId;
@@ -891,61 +1846,297 @@ abstract class StmtNode extends ASTnode {
     abstract public void nameAnalysis(SymTable symTab);
     abstract public void typeCheck(Type retType);
     abstract public void codeGen();
-}
 
-class AssignStmtNode extends StmtNode {
-    public AssignStmtNode(AssignNode assign) {
-        myAssign = assign;
-    }
+    /**
+     * exec
+     * Run the statement in the program run by interp (see Interpreter);
+     * return true if it executed a return statement.
+     */
+    abstract public boolean exec(Interpreter interp);
 
     /**
-     * nameAnalysis
-     * Given a symbol table symTab, perform name analysis on this node's child
+     * fold
+     * Default version for statements without expressions to fold
      */
-    public void nameAnalysis(SymTable symTab) {
-        myAssign.nameAnalysis(symTab);
-    }
-    
+    public void fold() { }
+
     /**
-     * typeCheck
+     * Return the line and char number of the statement, for messages.
      */
-    public void typeCheck(Type retType) {
-        myAssign.typeCheck();
-    }
-    
-    public void unparse(PrintWriter p, int indent) {
-        doIndent(p, indent);
-        myAssign.unparse(p, -1); // no parentheses
-        p.println(";");
-    }
+    abstract public int lineNum();
+    abstract public int charNum();
 
-    public void codeGen() {
-        myAssign.codeGen();
+    /**
+     * buildCfg
+     * Add the statement to the control-flow graph being built (see Cfg);
+     * this default version is for statements without control flow
+     */
+    public void buildCfg(Cfg cfg) {
+        cfg.add(this);
     }
-    // 1 kid
-    private AssignNode myAssign;
-}
 
-class PostIncStmtNode extends StmtNode {
-    public PostIncStmtNode(ExpNode exp) {
-        myExp = exp;
+    /**
+     * elimDeadCode
+     * Remove the unreachable code inside the statement, and add what is
+     * left of it to the list stmts -- nothing if it never does anything,
+     * the statements of the branch taken if its condition is constant.
+     * Return false if control never gets past the statement.  This
+     * default version is for statements without statements inside.
+     */
+    public boolean elimDeadCode(List<StmtNode> stmts) {
+        stmts.add(this);
+        return true;
     }
-    
+
     /**
-     * nameAnalysis
-     * Given a symbol table symTab, perform name analysis on this node's child
+     * elimDeadStores
+     * Add the statement to the list stmts, leaving out the assignments to
+     * locals that are not in the set reads (see collectReads), and return
+     * the number of assignments left out.
      */
-    public void nameAnalysis(SymTable symTab) {
-        myExp.nameAnalysis(symTab);
+    public int elimDeadStores(Set<SymInfo> reads, List<StmtNode> stmts) {
+        stmts.add(this);
+        return 0;
     }
-    
+
     /**
-     * typeCheck
+     * collectReads
+     * Add the variables whose values the statement uses to the set reads
      */
-    public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
-        if (!type.isErrorType() && !type.isIntType()) {
+    abstract public void collectReads(Set<SymInfo> reads);
+
+    /**
+     * ssaVisit
+     * Report the uses and definitions of variables made by the statement
+     * to ssa (see Ssa).  This default version is for the statements with
+     * control flow, which are not in the blocks of the graph: their
+     * conditions are visited by Ssa itself.
+     */
+    public void ssaVisit(Ssa ssa) { }
+
+    /**
+     * ssaRewrite
+     * Replace the uses of variables in the statement as decided by ssa;
+     * this default version is for statements without uses
+     */
+    public void ssaRewrite(Ssa ssa) { }
+
+    /**
+     * optimizeLoops
+     * Optimize the loops in the statement (see Loops), and return the
+     * statements to put before it; this default version is for
+     * statements without statements inside
+     */
+    public List<StmtNode> optimizeLoops(Loops loops) {
+        return new ArrayList<StmtNode>();
+    }
+
+    /**
+     * loopScan
+     * Report what the statement writes and calls, and its products, to
+     * loops (see Loops)
+     */
+    abstract public void loopScan(Loops loops);
+
+    /**
+     * loopRewrite
+     * Rewrite the expressions of the statement as decided by loops; this
+     * default version is for statements that only write a location
+     */
+    public void loopRewrite(Loops loops) { }
+
+    /**
+     * inlineCalls
+     * Inline the calls in the statement (see Inliner), adding their bodies
+     * to the list stmts, then what is left of the statement; this default
+     * version is for statements without calls
+     */
+    public void inlineCalls(Inliner inliner, List<StmtNode> stmts) {
+        stmts.add(this);
+    }
+
+    /**
+     * inlineCopy
+     * Add the copy of the statement for the body of a function being
+     * inlined to the list stmts, with the locals renamed and the returns
+     * replaced (see Inliner), and return whether it always returns
+     * (Inliner.RETURNS), may return (Inliner.MAY_RETURN) or never does
+     * (Inliner.NO_RETURN)
+     */
+    abstract public int inlineCopy(Inliner inliner, List<StmtNode> stmts);
+
+    /**
+     * markTailCalls
+     * Mark the returns in the statement that are tail calls of fn (see
+     * FnDeclNode.markTailCalls); this default version is for statements
+     * without returns
+     */
+    public void markTailCalls(FnDeclNode fn) { }
+
+    /**
+     * hasCall
+     * Return whether the statement calls a function anywhere in it (see
+     * FnDeclNode.codeGen); this default version is for statements without
+     * calls
+     */
+    public boolean hasCall() {
+        return false;
+    }
+
+    // the declarations of the statements of a copy, which has none
+    protected static DeclListNode noDecls() {
+        return new DeclListNode(new LinkedList<DeclNode>());
+    }
+}
+
+class AssignStmtNode extends StmtNode {
+    public AssignStmtNode(AssignNode assign) {
+        myAssign = assign;
+    }
+
+    /**
+     * nameAnalysis
+     * Given a symbol table symTab, perform name analysis on this node's child
+     */
+    public void nameAnalysis(SymTable symTab) {
+        myAssign.nameAnalysis(symTab);
+    }
+    
+    /**
+     * typeCheck
+     */
+    public void typeCheck(Type retType) {
+        myAssign.typeCheck();
+    }
+    
+    public void unparse(PrintWriter p, int indent) {
+        doIndent(p, indent);
+        myAssign.unparse(p, -1); // no parentheses
+        p.println(";");
+    }
+
+    public int numNodes() {
+        return 1 + myAssign.numNodes();
+    }
+
+    public void fold() {
+        myAssign.fold();
+    }
+
+    public int lineNum() {
+        return myAssign.lineNum();
+    }
+
+    public int charNum() {
+        return myAssign.charNum();
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        myAssign.collectReads(reads);
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        ssa.assign(myAssign.lhs(), myAssign.rhs(), this);
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        myAssign.ssaRewrite(ssa);
+    }
+
+    /**
+     * loopScan
+     * x = x + c and x = x - c are steps of x
+     */
+    public void loopScan(Loops loops) {
+        ExpNode lhs = myAssign.lhs();
+        Integer amount = null;
+        if (lhs instanceof IdNode) {
+            amount = myAssign.rhs().stepOf(((IdNode)lhs).info());
+        }
+        if (amount != null) {
+            loops.step(this, lhs, amount);
+        }
+        else {
+            myAssign.loopScan(loops);
+        }
+    }
+
+    public void loopRewrite(Loops loops) {
+        myAssign.loopRewrite(loops);
+    }
+
+    public void inlineCalls(Inliner inliner, List<StmtNode> stmts) {
+        inliner.beginStmt();
+        myAssign.inlineCalls(inliner);
+        inliner.endStmt(stmts);
+        stmts.add(this);
+    }
+
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        stmts.add(new AssignStmtNode((AssignNode)myAssign.inlineCopy(inliner)));
+        return Inliner.NO_RETURN;
+    }
+
+    /**
+     * elimDeadStores
+     * an assignment to a local that is never read is left out, but the
+     * right-hand side is still evaluated if it has side effects
+     */
+    public int elimDeadStores(Set<SymInfo> reads, List<StmtNode> stmts) {
+        if (!myAssign.isDeadStore(reads)) {
+            stmts.add(this);
+            return 0;
+        }
+        ExpNode rhs = myAssign.rhs();
+        if (rhs instanceof AssignNode) {
+            return 1 + new AssignStmtNode((AssignNode)rhs).elimDeadStores(reads, stmts);
+        }
+        if (rhs instanceof CallExpNode) {
+            stmts.add(new CallStmtNode((CallExpNode)rhs));
+        }
+        else if (rhs.hasSideEffects()) {
+            stmts.add(this);
+            return 0;
+        }
+        return 1;
+    }
+
+    public boolean exec(Interpreter interp) {
+        myAssign.value(interp);
+        return false;
+    }
+
+    public void codeGen() {
+        myAssign.genAssign(0);
+    }
+
+    public boolean hasCall() {
+        return myAssign.hasCall();
+    }
+    // 1 kid
+    private AssignNode myAssign;
+}
+
+class PostIncStmtNode extends StmtNode {
+    public PostIncStmtNode(ExpNode exp) {
+        myExp = exp;
+    }
+    
+    /**
+     * nameAnalysis
+     * Given a symbol table symTab, perform name analysis on this node's child
+     */
+    public void nameAnalysis(SymTable symTab) {
+        myExp.nameAnalysis(symTab);
+    }
+    
+    /**
+     * typeCheck
+     */
+    public void typeCheck(Type retType) {
+        Type type = myExp.typeCheck();
+        
+        if (!type.isErrorType() && !type.isIntType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                          "Arithmetic operator applied to non-numeric operand");
         }
@@ -956,8 +2147,55 @@ class PostIncStmtNode extends StmtNode {
         myExp.unparse(p, 0);
         p.println("++;");
     }
+
+    public int numNodes() {
+        return 1 + myExp.numNodes();
+    }
+
+    public int lineNum() {
+        return myExp.lineNum();
+    }
+
+    public int charNum() {
+        return myExp.charNum();
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        if (!(myExp instanceof IdNode)) {
+            myExp.collectReads(reads);
+        }
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        ssa.increment(myExp, 1, this);
+    }
+
+    public void loopScan(Loops loops) {
+        loops.step(this, myExp, 1);
+    }
+
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        stmts.add(new PostIncStmtNode(myExp.inlineCopy(inliner)));
+        return Inliner.NO_RETURN;
+    }
+
+    public int elimDeadStores(Set<SymInfo> reads, List<StmtNode> stmts) {
+        if (myExp.isDeadStore(reads)) {
+            return 1;
+        }
+        stmts.add(this);
+        return 0;
+    }
+
+    public boolean exec(Interpreter interp) {
+        myExp.store(interp, myExp.value(interp) + 1);
+        return false;
+    }
+
     public void codeGen() {
-        
+        myExp.genValue(0);
+        Codegen.generate(Opcode.ADDU, Codegen.T0, Codegen.T0, 1);
+        myExp.genStore(Codegen.T0, Codegen.T1);
     }
     // 1 kid
     private ExpNode myExp;
@@ -993,8 +2231,55 @@ class PostDecStmtNode extends StmtNode {
         myExp.unparse(p, 0);
         p.println("--;");
     }
+
+    public int numNodes() {
+        return 1 + myExp.numNodes();
+    }
+
+    public int lineNum() {
+        return myExp.lineNum();
+    }
+
+    public int charNum() {
+        return myExp.charNum();
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        if (!(myExp instanceof IdNode)) {
+            myExp.collectReads(reads);
+        }
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        ssa.increment(myExp, -1, this);
+    }
+
+    public void loopScan(Loops loops) {
+        loops.step(this, myExp, -1);
+    }
+
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        stmts.add(new PostDecStmtNode(myExp.inlineCopy(inliner)));
+        return Inliner.NO_RETURN;
+    }
+
+    public int elimDeadStores(Set<SymInfo> reads, List<StmtNode> stmts) {
+        if (myExp.isDeadStore(reads)) {
+            return 1;
+        }
+        stmts.add(this);
+        return 0;
+    }
+
+    public boolean exec(Interpreter interp) {
+        myExp.store(interp, myExp.value(interp) - 1);
+        return false;
+    }
+
     public void codeGen() {
-        
+        myExp.genValue(0);
+        Codegen.generate(Opcode.SUBU, Codegen.T0, Codegen.T0, 1);
+        myExp.genStore(Codegen.T0, Codegen.T1);
     }
     // 1 kid
     private ExpNode myExp;
@@ -1018,6 +2303,7 @@ class ReadStmtNode extends StmtNode {
      */
     public void typeCheck(Type retType) {
         Type type = myExp.typeCheck();
+        myType = type;
         
         if (type.isFnType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
@@ -1041,11 +2327,69 @@ class ReadStmtNode extends StmtNode {
         myExp.unparse(p, 0);
         p.println(";");
     }
+
+    public int numNodes() {
+        return 1 + myExp.numNodes();
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        if (!(myExp instanceof IdNode)) {
+            myExp.collectReads(reads);
+        }
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        ssa.read(myExp);
+    }
+
+    public void loopScan(Loops loops) {
+        loops.write(myExp);
+    }
+
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        ReadStmtNode copy = (ReadStmtNode)shallowCopy();
+        copy.myExp = myExp.inlineCopy(inliner);
+        stmts.add(copy);
+        return Inliner.NO_RETURN;
+    }
+
+    /**
+     * codeGen
+     * read an int with syscall 5 and store it; a bool is true if the
+     * number read is not 0
+     */
+    public int lineNum() {
+        return myExp.lineNum();
+    }
+
+    public int charNum() {
+        return myExp.charNum();
+    }
+
+    /**
+     * exec
+     * a bool read is true for any value but 0, as in codeGen
+     */
+    public boolean exec(Interpreter interp) {
+        int val = interp.read();
+        if (myType.isBoolType() && val != Codegen.FALSE) {
+            val = Codegen.TRUE;
+        }
+        myExp.store(interp, val);
+        return false;
+    }
+
     public void codeGen() {
-        
+        Codegen.generate(Opcode.LI, Codegen.V0, 5);
+        Codegen.generate(Opcode.SYSCALL);
+        if (myType.isBoolType()) {
+            Codegen.generate(Opcode.SNE, Codegen.V0, Codegen.V0, Codegen.ZERO);
+        }
+        myExp.genStore(Codegen.V0, Codegen.T0);
     }
     // 1 kid (actually can only be an IdNode or an ArrayExpNode)
     private ExpNode myExp;
+    private Type myType;  // set by typeCheck
 }
 
 class WriteStmtNode extends StmtNode {
@@ -1066,6 +2410,7 @@ class WriteStmtNode extends StmtNode {
      */
     public void typeCheck(Type retType) {
         Type type = myExp.typeCheck();
+        myType = type;
         
         if (type.isFnType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
@@ -1095,20 +2440,89 @@ class WriteStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public int numNodes() {
+        return 1 + myExp.numNodes();
+    }
+
+    public void fold() {
+        myExp = myExp.fold();
+    }
+
+    public int lineNum() {
+        return myExp.lineNum();
+    }
+
+    public int charNum() {
+        return myExp.charNum();
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        myExp.collectReads(reads);
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        myExp.ssaVisit(ssa);
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        myExp = myExp.ssaRewrite(ssa);
+    }
+
+    public void loopScan(Loops loops) {
+        myExp.loopScan(loops);
+    }
+
+    public void loopRewrite(Loops loops) {
+        myExp = myExp.loopRewrite(loops);
+    }
+
+    public void inlineCalls(Inliner inliner, List<StmtNode> stmts) {
+        inliner.beginStmt();
+        myExp = myExp.inlineCalls(inliner);
+        inliner.endStmt(stmts);
+        stmts.add(this);
+    }
+
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        WriteStmtNode copy = (WriteStmtNode)shallowCopy();
+        copy.myExp = myExp.inlineCopy(inliner);
+        stmts.add(copy);
+        return Inliner.NO_RETURN;
+    }
+
+    /**
+     * exec
+     * the only strings are literals
+     */
+    public boolean exec(Interpreter interp) {
+        if (myType.isStringType()) {
+            interp.write(((StringLitNode)myExp).text());
+        }
+        else {
+            interp.write(myExp.value(interp));
+        }
+        return false;
+    }
+
     public void codeGen() {
-        myExp.codeGen();
-        Codegen.genPop(Codegen.A0);
-        if(myExp instanceof IntLitNode) {
-            Codegen.generate("li", Codegen.V0, 1);
+        myExp.genValue(0);
+        Codegen.generate(Opcode.MOVE, Codegen.A0, Codegen.T0);
+        if(myType.isStringType()) {
+            Codegen.generate(Opcode.LI, Codegen.V0, 4);           
         }
-        if(myExp instanceof StringLitNode) {
-            Codegen.generate("li", Codegen.V0, 4);           
+        else {
+            Codegen.generate(Opcode.LI, Codegen.V0, 1);
         }
-        Codegen.generate("syscall");
+        Codegen.generate(Opcode.SYSCALL);
+    }
+
+    public boolean hasCall() {
+        return myExp.hasCall();
     }
 
     // 1 kid
     private ExpNode myExp;
+    private Type myType;  // set by typeCheck
 }
 
 class IfStmtNode extends StmtNode {
@@ -1158,16 +2572,135 @@ class IfStmtNode extends StmtNode {
         doIndent(p, indent);
         p.println("}");
     }
-    public void codeGen() {
-        
+
+    public int numNodes() {
+        return 1 + myExp.numNodes() + myDeclList.numNodes() + myStmtList.numNodes();
     }
-    // e kids
-    private ExpNode myExp;
-    private DeclListNode myDeclList;
-    private StmtListNode myStmtList;
-}
 
-class IfElseStmtNode extends StmtNode {
+    public void fold() {
+        myExp = myExp.fold();
+        myStmtList.fold();
+    }
+
+    public int lineNum() {
+        return myExp.lineNum();
+    }
+
+    public int charNum() {
+        return myExp.charNum();
+    }
+
+    /**
+     * elimDeadCode
+     * if (true) is replaced by its statements and if (false) is left out
+     */
+    public boolean elimDeadCode(List<StmtNode> stmts) {
+        if (myExp.isConstant()) {
+            if (myExp.constValue() == Codegen.TRUE) {
+                return myStmtList.elimDeadCode(stmts);
+            }
+            return true;
+        }
+        myStmtList.elimDeadCode();
+        stmts.add(this);
+        return true;
+    }
+
+    public int elimDeadStores(Set<SymInfo> reads, List<StmtNode> stmts) {
+        stmts.add(this);
+        return myStmtList.elimDeadStores(reads);
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        myExp.collectReads(reads);
+        myStmtList.collectReads(reads);
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        myExp = myExp.ssaRewrite(ssa);
+        myStmtList.ssaRewrite(ssa);
+    }
+
+    public List<StmtNode> optimizeLoops(Loops loops) {
+        myStmtList.optimizeLoops(loops);
+        return new ArrayList<StmtNode>();
+    }
+
+    public void loopScan(Loops loops) {
+        myExp.loopScan(loops);
+        myStmtList.loopScan(loops);
+    }
+
+    /**
+     * loopRewrite
+     * nothing is hoisted from the statements, which may never run
+     */
+    public void loopRewrite(Loops loops) {
+        myExp = myExp.loopRewrite(loops);
+        loops.beginBranch();
+        myStmtList.loopRewrite(loops);
+        loops.endBranch();
+    }
+
+    public void inlineCalls(Inliner inliner, List<StmtNode> stmts) {
+        inliner.beginStmt();
+        myExp = myExp.inlineCalls(inliner);
+        inliner.endStmt(stmts);
+        stmts.add(this);
+        myStmtList.inlineCalls(inliner);
+    }
+
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        ExpNode exp = myExp.inlineCopy(inliner);
+        List<StmtNode> then = new LinkedList<StmtNode>();
+        int returns = myStmtList.inlineCopy(inliner, then);
+        stmts.add(new IfStmtNode(exp, noDecls(), new StmtListNode(then)));
+        return returns == Inliner.NO_RETURN ? returns : Inliner.MAY_RETURN;
+    }
+
+    public void markTailCalls(FnDeclNode fn) {
+        myStmtList.markTailCalls(fn);
+    }
+
+    public boolean hasCall() {
+        return myExp.hasCall() || myStmtList.hasCall();
+    }
+
+    /**
+     * buildCfg
+     * the condition ends the block; the statements are a block of their
+     * own, followed by the join where both paths meet
+     */
+    public void buildCfg(Cfg cfg) {
+        int cond = cfg.branch(myExp, this);
+        cfg.edge(cond, 0);
+        cfg.start(cond);
+        myStmtList.buildCfg(cfg);
+        cfg.edge(cfg.close(), 0);
+        cfg.edge(cond, 1);
+        cfg.start(cond);
+    }
+
+    public boolean exec(Interpreter interp) {
+        if (myExp.value(interp) != Codegen.FALSE) {
+            return myStmtList.exec(interp);
+        }
+        return false;
+    }
+
+    public void codeGen() {
+        String doneLabel = Codegen.nextLabel();
+        myExp.genJump(false, doneLabel);
+        myStmtList.codeGen();
+        Codegen.genLabel(doneLabel);
+    }
+    // e kids
+    private ExpNode myExp;
+    private DeclListNode myDeclList;
+    private StmtListNode myStmtList;
+}
+
+class IfElseStmtNode extends StmtNode {
     public IfElseStmtNode(ExpNode exp, DeclListNode dlist1,
                           StmtListNode slist1, DeclListNode dlist2,
                           StmtListNode slist2) {
@@ -1232,8 +2765,154 @@ class IfElseStmtNode extends StmtNode {
         doIndent(p, indent);
         p.println("}");        
     }
+
+    public int numNodes() {
+        return 1 + myExp.numNodes() + myThenDeclList.numNodes() + myThenStmtList.numNodes()
+            + myElseDeclList.numNodes() + myElseStmtList.numNodes();
+    }
+
+    public void fold() {
+        myExp = myExp.fold();
+        myThenStmtList.fold();
+        myElseStmtList.fold();
+    }
+
+    public int lineNum() {
+        return myExp.lineNum();
+    }
+
+    public int charNum() {
+        return myExp.charNum();
+    }
+
+    /**
+     * elimDeadCode
+     * a constant condition is replaced by the statements of the branch
+     * taken
+     */
+    public boolean elimDeadCode(List<StmtNode> stmts) {
+        if (myExp.isConstant()) {
+            if (myExp.constValue() == Codegen.TRUE) {
+                return myThenStmtList.elimDeadCode(stmts);
+            }
+            return myElseStmtList.elimDeadCode(stmts);
+        }
+        boolean thenReachable = myThenStmtList.elimDeadCode();
+        boolean elseReachable = myElseStmtList.elimDeadCode();
+        stmts.add(this);
+        return thenReachable || elseReachable;
+    }
+
+    public int elimDeadStores(Set<SymInfo> reads, List<StmtNode> stmts) {
+        stmts.add(this);
+        return myThenStmtList.elimDeadStores(reads)
+            + myElseStmtList.elimDeadStores(reads);
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        myExp.collectReads(reads);
+        myThenStmtList.collectReads(reads);
+        myElseStmtList.collectReads(reads);
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        myExp = myExp.ssaRewrite(ssa);
+        myThenStmtList.ssaRewrite(ssa);
+        myElseStmtList.ssaRewrite(ssa);
+    }
+
+    public List<StmtNode> optimizeLoops(Loops loops) {
+        myThenStmtList.optimizeLoops(loops);
+        myElseStmtList.optimizeLoops(loops);
+        return new ArrayList<StmtNode>();
+    }
+
+    public void loopScan(Loops loops) {
+        myExp.loopScan(loops);
+        myThenStmtList.loopScan(loops);
+        myElseStmtList.loopScan(loops);
+    }
+
+    /**
+     * loopRewrite
+     * nothing is hoisted from the branches, one of which never runs
+     */
+    public void loopRewrite(Loops loops) {
+        myExp = myExp.loopRewrite(loops);
+        loops.beginBranch();
+        myThenStmtList.loopRewrite(loops);
+        myElseStmtList.loopRewrite(loops);
+        loops.endBranch();
+    }
+
+    public void inlineCalls(Inliner inliner, List<StmtNode> stmts) {
+        inliner.beginStmt();
+        myExp = myExp.inlineCalls(inliner);
+        inliner.endStmt(stmts);
+        stmts.add(this);
+        myThenStmtList.inlineCalls(inliner);
+        myElseStmtList.inlineCalls(inliner);
+    }
+
+    /**
+     * inlineCopy
+     * the statement returns if both branches do
+     */
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        ExpNode exp = myExp.inlineCopy(inliner);
+        List<StmtNode> thenStmts = new LinkedList<StmtNode>();
+        List<StmtNode> elseStmts = new LinkedList<StmtNode>();
+        int thenReturns = myThenStmtList.inlineCopy(inliner, thenStmts);
+        int elseReturns = myElseStmtList.inlineCopy(inliner, elseStmts);
+        stmts.add(new IfElseStmtNode(exp, noDecls(), new StmtListNode(thenStmts),
+                                     noDecls(), new StmtListNode(elseStmts)));
+        if (thenReturns == elseReturns) {
+            return thenReturns;
+        }
+        return Inliner.MAY_RETURN;
+    }
+
+    public void markTailCalls(FnDeclNode fn) {
+        myThenStmtList.markTailCalls(fn);
+        myElseStmtList.markTailCalls(fn);
+    }
+
+    public boolean hasCall() {
+        return myExp.hasCall() || myThenStmtList.hasCall()
+            || myElseStmtList.hasCall();
+    }
+
+    public void buildCfg(Cfg cfg) {
+        int cond = cfg.branch(myExp, this);
+        cfg.edge(cond, 0);
+        cfg.start(cond);
+        myThenStmtList.buildCfg(cfg);
+        int thenEnd = cfg.close();
+        cfg.edge(cond, 1);
+        cfg.start(cond);
+        myElseStmtList.buildCfg(cfg);
+        int elseEnd = cfg.close();
+        cfg.edge(thenEnd, 0);
+        cfg.edge(elseEnd, 0);
+        cfg.start(cond);
+    }
+
+    public boolean exec(Interpreter interp) {
+        if (myExp.value(interp) != Codegen.FALSE) {
+            return myThenStmtList.exec(interp);
+        }
+        return myElseStmtList.exec(interp);
+    }
+
     public void codeGen() {
-        
+        String elseLabel = Codegen.nextLabel();
+        String doneLabel = Codegen.nextLabel();
+        myExp.genJump(false, elseLabel);
+        myThenStmtList.codeGen();
+        Codegen.generate(Opcode.B, doneLabel);
+        Codegen.genLabel(elseLabel);
+        myElseStmtList.codeGen();
+        Codegen.genLabel(doneLabel);
     }
     // 5 kids
     private ExpNode myExp;
@@ -1290,13 +2969,170 @@ class WhileStmtNode extends StmtNode {
         doIndent(p, indent);
         p.println("}");
     }
+
+    public int numNodes() {
+        return 1 + myExp.numNodes() + myDeclList.numNodes() + myStmtList.numNodes();
+    }
+
+    public void fold() {
+        myExp = myExp.fold();
+        myStmtList.fold();
+    }
+
+    public int lineNum() {
+        return myExp.lineNum();
+    }
+
+    public int charNum() {
+        return myExp.charNum();
+    }
+
+    /**
+     * elimDeadCode
+     * while (false) is left out; nothing after while (true) is reached,
+     * as C-- has no break
+     */
+    public boolean elimDeadCode(List<StmtNode> stmts) {
+        if (myExp.isConstant() && myExp.constValue() == Codegen.FALSE) {
+            return true;
+        }
+        myStmtList.elimDeadCode();
+        stmts.add(this);
+        return !myExp.isConstant();
+    }
+
+    public int elimDeadStores(Set<SymInfo> reads, List<StmtNode> stmts) {
+        stmts.add(this);
+        return myStmtList.elimDeadStores(reads);
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        myExp.collectReads(reads);
+        myStmtList.collectReads(reads);
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        myExp = myExp.ssaRewrite(ssa);
+        myStmtList.ssaRewrite(ssa);
+    }
+
+    /**
+     * optimizeLoops
+     * optimize this loop, then the loops inside it, which may hoist more
+     * into its body; the loop is rotated (see codeGen)
+     */
+    public List<StmtNode> optimizeLoops(Loops loops) {
+        loops.beginLoop();
+        loopScan(loops);
+        loops.endScan();
+        loopRewrite(loops);
+        List<StmtNode> preheader = loops.endLoop(lineNum());
+        myRotated = true;
+        myStmtList.optimizeLoops(loops);
+        return preheader;
+    }
+
+    public void loopScan(Loops loops) {
+        myExp.loopScan(loops);
+        myStmtList.loopScan(loops);
+    }
+
+    public void loopRewrite(Loops loops) {
+        myExp = myExp.loopRewrite(loops);
+        myStmtList.loopRewrite(loops);
+    }
+
+    /**
+     * inlineCalls
+     * the calls in the condition, which is evaluated again and again, are
+     * left alone
+     */
+    public void inlineCalls(Inliner inliner, List<StmtNode> stmts) {
+        stmts.add(this);
+        myStmtList.inlineCalls(inliner);
+    }
+
+    /**
+     * inlineCopy
+     * a loop whose body may return stops when it does
+     */
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        ExpNode exp = myExp.inlineCopy(inliner);
+        List<StmtNode> body = new LinkedList<StmtNode>();
+        int returns = myStmtList.inlineCopy(inliner, body);
+        if (returns == Inliner.NO_RETURN) {
+            stmts.add(new WhileStmtNode(exp, noDecls(), new StmtListNode(body)));
+            return returns;
+        }
+        exp = new AndNode(inliner.notDone(this), exp);
+        stmts.add(new WhileStmtNode(exp, noDecls(), new StmtListNode(body)));
+        return Inliner.MAY_RETURN;
+    }
+
+    public void markTailCalls(FnDeclNode fn) {
+        myStmtList.markTailCalls(fn);
+    }
+
+    public boolean hasCall() {
+        return myExp.hasCall() || myStmtList.hasCall();
+    }
+
+    /**
+     * buildCfg
+     * the condition is the header of the loop, a block by itself; the end
+     * of the body goes back to it
+     */
+    public void buildCfg(Cfg cfg) {
+        cfg.edge(cfg.close(), 0);
+        int header = cfg.start(-1);
+        cfg.branch(myExp, this);
+        cfg.beginLoop(header, this);
+        cfg.edge(header, 0);
+        cfg.start(header);
+        myStmtList.buildCfg(cfg);
+        cfg.backEdge(cfg.close(), header);
+        cfg.endLoop();
+        cfg.edge(header, 1);
+        cfg.start(header);
+    }
+
+    public boolean exec(Interpreter interp) {
+        while (myExp.value(interp) != Codegen.FALSE) {
+            if (myStmtList.exec(interp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * codeGen
+     * a rotated loop tests the condition once before the loop and then at
+     * the bottom of the body, jumping back to the top while it holds
+     */
     public void codeGen() {
-        
+        String loopLabel = Codegen.nextLabel();
+        String doneLabel = Codegen.nextLabel();
+        if (myRotated) {
+            myExp.genJump(false, doneLabel);
+            Codegen.genLabel(loopLabel);
+            myStmtList.codeGen();
+            myExp.genJump(true, loopLabel);
+        }
+        else {
+            Codegen.genLabel(loopLabel);
+            myExp.genJump(false, doneLabel);
+            myStmtList.codeGen();
+            Codegen.generate(Opcode.B, loopLabel);
+        }
+        Codegen.genLabel(doneLabel);
     }
     // 3 kids
     private ExpNode myExp;
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+    // whether to test the condition at the bottom (see optimizeLoops)
+    private boolean myRotated = false;
 }
 
 class CallStmtNode extends StmtNode {
@@ -1324,9 +3160,73 @@ class CallStmtNode extends StmtNode {
         myCall.unparse(p, indent);
         p.println(";");
     }
+
+    public int numNodes() {
+        return 1 + myCall.numNodes();
+    }
+
+    public void fold() {
+        myCall.fold();
+    }
+
+    public int lineNum() {
+        return myCall.lineNum();
+    }
+
+    public int charNum() {
+        return myCall.charNum();
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        myCall.collectReads(reads);
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        myCall.ssaVisit(ssa);
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        myCall.ssaRewrite(ssa);
+    }
+
+    public void loopScan(Loops loops) {
+        myCall.loopScan(loops);
+    }
+
+    public void loopRewrite(Loops loops) {
+        myCall.loopRewrite(loops);
+    }
+
+    /**
+     * inlineCalls
+     * an inlined call leaves nothing of the statement
+     */
+    public void inlineCalls(Inliner inliner, List<StmtNode> stmts) {
+        inliner.beginStmt();
+        ExpNode exp = myCall.inlineCalls(inliner);
+        inliner.endStmt(stmts);
+        if (exp == myCall) {
+            stmts.add(this);
+        }
+    }
+
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        stmts.add(new CallStmtNode((CallExpNode)myCall.inlineCopy(inliner)));
+        return Inliner.NO_RETURN;
+    }
+
+    public boolean exec(Interpreter interp) {
+        myCall.value(interp);
+        return false;
+    }
+
     public void codeGen() {
-        
+        myCall.genCall();
+    }
+    public boolean hasCall() {
+        return true;
     }
+
     // 1 kid
     private CallExpNode myCall;
 }
@@ -1388,78 +3288,467 @@ class ReturnStmtNode extends StmtNode {
         }
         p.println(";");
     }
-    public void codeGen() {
-        
-    }
-    // 1 kid
-    private ExpNode myExp; // possibly null
-    private int myCharnum;
-    private int myLinenum;
-}
-
-// **********************************************************************
-// ExpNode and its subclasses
-// **********************************************************************
-
-abstract class ExpNode extends ASTnode {
-    /**
-     * Default version for nodes with no names
-     */
-    public void nameAnalysis(SymTable symTab) { }
-    
-    abstract public Type typeCheck();
-    abstract public void codeGen();
-    abstract public int lineNum();
-    abstract public int charNum();
-    
-}
 
-class IntLitNode extends ExpNode {
-    public IntLitNode(int lineNum, int charNum, int intVal) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
-        myIntVal = intVal;
+    public int numNodes() {
+        return 1 + (myExp == null ? 0 : myExp.numNodes());
     }
 
-    public void unparse(PrintWriter p, int indent) {
-        p.print(myIntVal);
+    public void fold() {
+        if (myExp != null) {
+            myExp = myExp.fold();
+        }
     }
-    
-    /**
-     * Return the line number for this literal.
-     */
+
     public int lineNum() {
-        return myLineNum;
+        return myExp != null ? myExp.lineNum() : myLinenum;
     }
-    
-    /**
-     * Return the char number for this literal.
-     */
+
     public int charNum() {
-        return myCharNum;
+        return myExp != null ? myExp.charNum() : myCharnum;
     }
-        
+
     /**
-     * typeCheck
+     * elimDeadCode
+     * control never gets past a return
      */
-    public Type typeCheck() {
-        return new IntType();
+    public boolean elimDeadCode(List<StmtNode> stmts) {
+        stmts.add(this);
+        return false;
     }
 
-    public void codeGen() {
-        Codegen.generate("li", Codegen.T0, myIntVal);
-        Codegen.genPush(Codegen.T0);
+    public void collectReads(Set<SymInfo> reads) {
+        if (myExp != null) {
+            myExp.collectReads(reads);
+        }
     }
-    private int myLineNum;
-    private int myCharNum;
-    private int myIntVal;
-}
 
-class StringLitNode extends ExpNode {
-    public StringLitNode(int lineNum, int charNum, String strVal) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
-        myStrVal = strVal;
+    public void ssaVisit(Ssa ssa) {
+        if (myExp != null) {
+            myExp.ssaVisit(ssa);
+        }
+    }
+
+    public void ssaRewrite(Ssa ssa) {
+        if (myExp != null) {
+            myExp = myExp.ssaRewrite(ssa);
+        }
+    }
+
+    public void loopScan(Loops loops) {
+        if (myExp != null) {
+            myExp.loopScan(loops);
+        }
+    }
+
+    public void loopRewrite(Loops loops) {
+        if (myExp != null) {
+            myExp = myExp.loopRewrite(loops);
+        }
+    }
+
+    public void inlineCalls(Inliner inliner, List<StmtNode> stmts) {
+        if (myExp != null) {
+            inliner.beginStmt();
+            myExp = myExp.inlineCalls(inliner);
+            inliner.endStmt(stmts);
+        }
+        stmts.add(this);
+    }
+
+    /**
+     * inlineCopy
+     * the value is assigned to the local for it (see Inliner.returnFrom)
+     */
+    public int inlineCopy(Inliner inliner, List<StmtNode> stmts) {
+        ExpNode exp = null;
+        if (myExp != null) {
+            exp = myExp.inlineCopy(inliner);
+        }
+        inliner.returnFrom(exp, this, stmts);
+        return Inliner.RETURNS;
+    }
+
+    public void markTailCalls(FnDeclNode fn) {
+        if (myExp instanceof CallExpNode && fn.isTailCall((CallExpNode)myExp)) {
+            myTailOf = fn;
+        }
+    }
+
+    public boolean hasCall() {
+        return myExp != null && myExp.hasCall();
+    }
+
+    public void buildCfg(Cfg cfg) {
+        cfg.ret(this);
+    }
+
+    /**
+     * exec
+     * a tail call is simply a call here
+     */
+    public boolean exec(Interpreter interp) {
+        if (myExp != null) {
+            interp.setResult(myExp.value(interp));
+        }
+        return true;
+    }
+
+    /**
+     * codeGen
+     * leave the value, if any, in $v0 and jump to the function's epilogue;
+     * a tail call leaves that to the function called instead (see
+     * FnDeclNode.genTailCall)
+     */
+    public void codeGen() {
+        if (myTailOf != null) {
+            myTailOf.genTailCall((CallExpNode)myExp);
+            return;
+        }
+        if (myExp != null) {
+            myExp.genValue(0);
+            Codegen.generate(Opcode.MOVE, Codegen.V0, Codegen.T0);
+        }
+        Codegen.generate(Opcode.B, Codegen.returnLabel());
+    }
+    // 1 kid
+    private ExpNode myExp; // possibly null
+    private int myCharnum;
+    private int myLinenum;
+    // the function this return is a tail call in (see markTailCalls)
+    private FnDeclNode myTailOf = null;
+}
+
+// **********************************************************************
+// ExpNode and its subclasses
+// **********************************************************************
+
+abstract class ExpNode extends ASTnode {
+    /**
+     * Default version for nodes with no names
+     */
+    public void nameAnalysis(SymTable symTab) { }
+    
+    abstract public Type typeCheck();
+    abstract public int lineNum();
+    abstract public int charNum();
+
+    /**
+     * fold
+     * Fold the constant subexpressions of the expression and simplify it
+     * with algebraic identities, returning the expression to use in its
+     * place (possibly itself).  The folded expression computes the same
+     * value with the same 32-bit wraparound, evaluates the same calls and
+     * assignments, and still divides by zero at run time if the original
+     * did.  This default version is for expressions without operands.
+     */
+    public ExpNode fold() {
+        return this;
+    }
+
+    /**
+     * collectReads
+     * add the variables whose values the expression uses to the set reads;
+     * this default version is for expressions without variables
+     */
+    public void collectReads(Set<SymInfo> reads) { }
+
+    /**
+     * isDeadStore
+     * whether the expression is a local variable that is not in the set
+     * reads, so that storing to it has no effect
+     */
+    public boolean isDeadStore(Set<SymInfo> reads) {
+        return false;
+    }
+
+    /**
+     * ssaVar
+     * the number of the variable of ssa (see Ssa) the expression is the
+     * location of, or -1 if it is none
+     */
+    public int ssaVar(Ssa ssa) {
+        return -1;
+    }
+
+    /**
+     * ssaVisit
+     * report the uses and definitions of variables made by evaluating the
+     * expression to ssa, in the order they are made; this default version
+     * is for expressions without variables
+     */
+    public void ssaVisit(Ssa ssa) { }
+
+    /**
+     * evalLattice
+     * the value of the expression in the constant propagation of ssa:
+     * Ssa.TOP, a constant, or Ssa.BOTTOM; this default version is for
+     * expressions whose value is never known
+     */
+    public long evalLattice(Ssa ssa) {
+        return Ssa.BOTTOM;
+    }
+
+    /**
+     * ssaRewrite
+     * replace the uses of variables as decided by ssa (see
+     * Ssa.replacement), returning the expression to use in place of this
+     * one; this default version is for expressions without variables
+     */
+    public ExpNode ssaRewrite(Ssa ssa) {
+        return this;
+    }
+
+    /**
+     * loopScan
+     * report what evaluating the expression writes and calls, and its
+     * products, to loops (see Loops); this default version is for
+     * expressions without operands
+     */
+    public void loopScan(Loops loops) { }
+
+    /**
+     * isInvariant
+     * whether the value of the expression cannot change in the loop being
+     * optimized by loops; this default version is for expressions that
+     * are not literals or variables
+     */
+    public boolean isInvariant(Loops loops) {
+        return false;
+    }
+
+    /**
+     * loopRewrite
+     * replace the invariant parts of the expression and the reduced
+     * products as decided by loops, returning the expression to use in
+     * place of this one; this default version is for expressions that
+     * are left alone
+     */
+    public ExpNode loopRewrite(Loops loops) {
+        return this;
+    }
+
+    /**
+     * inlineCalls
+     * inline the calls in the expression that can be moved before the
+     * statement it is in, reporting what it evaluates to inliner (see
+     * Inliner), and return the expression to use in place of this one;
+     * this default version is for literals
+     */
+    public ExpNode inlineCalls(Inliner inliner) {
+        return this;
+    }
+
+    /**
+     * inlineCopy
+     * a copy of the expression for the body of a function being inlined,
+     * with its locals renamed (see Inliner.rename); this default version
+     * is for literals
+     */
+    public ExpNode inlineCopy(Inliner inliner) {
+        return (ExpNode)shallowCopy();
+    }
+
+    /**
+     * stepOf
+     * if the expression is x + c, c + x or x - c for the variable x with
+     * the given info and a literal c, the amount it adds to x; otherwise
+     * null
+     */
+    public Integer stepOf(SymInfo info) {
+        return null;
+    }
+
+    /**
+     * isConstant
+     * whether the expression is an int or bool literal
+     */
+    public boolean isConstant() {
+        return false;
+    }
+
+    /**
+     * constValue
+     * the value of a literal; true is 1 and false is 0
+     */
+    public int constValue() {
+        throw new InternalErrorException("constValue of an expression that is not a literal");
+    }
+
+    /**
+     * value
+     * the value of the expression in the program run by interp (see
+     * Interpreter), true being 1 and false 0; this default version is for
+     * the int and bool literals
+     */
+    public int value(Interpreter interp) {
+        return constValue();
+    }
+
+    /**
+     * store
+     * store val into the location denoted by the expression in the
+     * program run by interp; only IdNode and DotAccessExpNode are
+     * locations
+     */
+    public void store(Interpreter interp, int val) {
+        throw new InternalErrorException("store of an expression that is not a location");
+    }
+
+    /**
+     * codeGen
+     * push the value of the expression
+     */
+    public void codeGen() {
+        Register reg = valueReg();
+        if (reg == null) {
+            genValue(0);
+            reg = Codegen.T0;
+        }
+        Codegen.genPush(reg);
+    }
+
+    /**
+     * genValue
+     * evaluate the expression into temporary r (see Codegen.tmp) using
+     * only the temporaries from r up, so that those below r still hold
+     * their values afterwards -- unless the expression contains a call,
+     * which clobbers all of them (see BinaryExpNode.genValue)
+     */
+    abstract public void genValue(int r);
+
+    /**
+     * genJump
+     * evaluate the expression as a condition: jump to label if its value
+     * is sense, and go on with the next instruction otherwise, using the
+     * temporaries like genValue(0); this default version computes the
+     * value and tests it
+     */
+    public void genJump(boolean sense, String label) {
+        Register reg = valueReg();
+        if (reg == null) {
+            genValue(0);
+            reg = Codegen.T0;
+        }
+        Codegen.generate(sense ? Opcode.BNEZ : Opcode.BEQZ, reg, label);
+    }
+
+    /**
+     * valueReg
+     * the register that already holds the value of the expression, so that
+     * it need not be evaluated, or null; only a variable kept in a
+     * register (see FnDeclNode.promote) has one
+     */
+    public Register valueReg() {
+        return null;
+    }
+
+    /**
+     * regNeed
+     * the Sethi-Ullman number of the expression: how many temporaries it
+     * needs to be evaluated without spilling to the stack
+     */
+    public int regNeed() {
+        return 1;
+    }
+
+    /**
+     * hasCall
+     * whether evaluating the expression calls a function
+     */
+    public boolean hasCall() {
+        return false;
+    }
+
+    /**
+     * hasSideEffects
+     * whether evaluating the expression calls a function, assigns or may
+     * divide by zero, so that it must be evaluated in its place in the
+     * left-to-right order and must not be left out
+     */
+    public boolean hasSideEffects() {
+        return hasCall();
+    }
+
+    /**
+     * genAddr
+     * put the address of the location denoted by the expression into
+     * register dest; only IdNode and DotAccessExpNode are locations
+     */
+    public void genAddr(Register dest) {
+        throw new InternalErrorException("genAddr of an expression that is not a location");
+    }
+
+    /**
+     * genStore
+     * store register val into the location denoted by the expression,
+     * using register scratch for its address if needed
+     */
+    public void genStore(Register val, Register scratch) {
+        throw new InternalErrorException("genStore of an expression that is not a location");
+    }
+}
+
+class IntLitNode extends ExpNode {
+    public IntLitNode(int lineNum, int charNum, int intVal) {
+        myLineNum = lineNum;
+        myCharNum = charNum;
+        myIntVal = intVal;
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        p.print(myIntVal);
+    }
+    
+    /**
+     * Return the line number for this literal.
+     */
+    public int lineNum() {
+        return myLineNum;
+    }
+    
+    /**
+     * Return the char number for this literal.
+     */
+    public int charNum() {
+        return myCharNum;
+    }
+        
+    /**
+     * typeCheck
+     */
+    public Type typeCheck() {
+        return new IntType();
+    }
+
+    public boolean isConstant() {
+        return true;
+    }
+
+    public int constValue() {
+        return myIntVal;
+    }
+
+    public long evalLattice(Ssa ssa) {
+        return myIntVal;
+    }
+
+    public boolean isInvariant(Loops loops) {
+        return true;
+    }
+
+    public void genValue(int r) {
+        Codegen.generate(Opcode.LI, Codegen.tmp(r), myIntVal);
+    }
+    private int myLineNum;
+    private int myCharNum;
+    private int myIntVal;
+}
+
+class StringLitNode extends ExpNode {
+    public StringLitNode(int lineNum, int charNum, String strVal) {
+        myLineNum = lineNum;
+        myCharNum = charNum;
+        myStrVal = strVal;
     }
     
     /**
@@ -1487,19 +3776,46 @@ class StringLitNode extends ExpNode {
         p.print(myStrVal);
     }
 
-    public void codeGen() {
-        Codegen.generate(".data");
-        String label1 = Codegen.nextLabel();
-        Codegen.genLabel(label1);
-        Codegen.generate(".asciiz ", myStrVal);
-        Codegen.generate(".text");
-        Codegen.generate("la", Codegen.T0, label1);
-        Codegen.genPush(Codegen.T0);
+    /**
+     * genValue
+     * the address of the literal, which is emitted once with the others
+     * (see StringPool)
+     */
+    public void genValue(int r) {
+        String label = Compilation.current().strings().label(myStrVal);
+        Codegen.generate(Opcode.LA, Codegen.tmp(r), label);
+    }
+
+    /**
+     * text
+     * the characters of the literal without the quotes, with the escapes
+     * replaced by what they stand for
+     */
+    public String text() {
+        if (myText == null) {
+            StringBuilder sb = new StringBuilder();
+            for (int k = 1; k < myStrVal.length() - 1; k++) {
+                char ch = myStrVal.charAt(k);
+                if (ch == '\\') {
+                    ch = myStrVal.charAt(++k);
+                    if (ch == 'n') {
+                        ch = '\n';
+                    }
+                    else if (ch == 't') {
+                        ch = '\t';
+                    }
+                }
+                sb.append(ch);
+            }
+            myText = sb.toString();
+        }
+        return myText;
     }
 
     private int myLineNum;
     private int myCharNum;
     private String myStrVal;
+    private String myText = null;  // see text
 }
 
 class TrueNode extends ExpNode {
@@ -1533,9 +3849,30 @@ class TrueNode extends ExpNode {
         p.print("true");
     }
     
-    public void codeGen() {
-        Codegen.generate("li", Codegen.T0, 1);
-        Codegen.genPush(Codegen.T0);
+    public boolean isConstant() {
+        return true;
+    }
+
+    public int constValue() {
+        return Codegen.TRUE;
+    }
+
+    public long evalLattice(Ssa ssa) {
+        return Codegen.TRUE;
+    }
+
+    public boolean isInvariant(Loops loops) {
+        return true;
+    }
+
+    public void genValue(int r) {
+        Codegen.generate(Opcode.LI, Codegen.tmp(r), 1);
+    }
+
+    public void genJump(boolean sense, String label) {
+        if (sense) {
+            Codegen.generate(Opcode.B, label);
+        }
     }
     private int myLineNum;
     private int myCharNum;
@@ -1572,9 +3909,30 @@ class FalseNode extends ExpNode {
         p.print("false");
     }
 
-    public void codeGen() {
-        Codegen.generate("li", Codegen.T0, 0);
-        Codegen.genPush(Codegen.T0);
+    public boolean isConstant() {
+        return true;
+    }
+
+    public int constValue() {
+        return Codegen.FALSE;
+    }
+
+    public long evalLattice(Ssa ssa) {
+        return Codegen.FALSE;
+    }
+
+    public boolean isInvariant(Loops loops) {
+        return true;
+    }
+
+    public void genValue(int r) {
+        Codegen.generate(Opcode.LI, Codegen.tmp(r), 0);
+    }
+
+    public void genJump(boolean sense, String label) {
+        if (!sense) {
+            Codegen.generate(Opcode.B, label);
+        }
     }
     private int myLineNum;
     private int myCharNum;
@@ -1641,16 +3999,14 @@ class IdNode extends ExpNode {
     
     /**
      * typeCheck
+     * An undeclared ID was reported by name analysis; it has the error type
+     * so that no more errors are reported for it.
      */
     public Type typeCheck() {
-        if (myInfo != null) {
-            return myInfo.getType();
-        } 
-        else {
-            System.err.println("ID with null info field in IdNode.typeCheck");
-            System.exit(-1);
+        if (myInfo == null) {
+            return new ErrorType();
         }
-        return null;
+        return myInfo.getType();
     }
     
     public void unparse(PrintWriter p, int indent) {
@@ -1661,33 +4017,142 @@ class IdNode extends ExpNode {
     }
 
     public void genJumpAndLink() {
+        Codegen.generate(Opcode.JAL, fnLabel());
+    }
+
+    /**
+     * Return the label of the function with this name.
+     */
+    public String fnLabel() {
         if(myStrVal.equals("main")){
-            Codegen.generate("jal", "main");
+            return "main";
         }
-        else{
-            Codegen.generate("jal","_"+myStrVal);
+        return "_"+myStrVal;
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        reads.add(myInfo);
+    }
+
+    public boolean isDeadStore(Set<SymInfo> reads) {
+        return !myInfo.isGlobal() && !reads.contains(myInfo);
+    }
+
+    public int ssaVar(Ssa ssa) {
+        return ssa.scalarVar(myInfo, myStrVal);
+    }
+
+    public Register valueReg() {
+        return myInfo.getRegister();
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        ssa.use(this);
+    }
+
+    public long evalLattice(Ssa ssa) {
+        return ssa.lattice(this);
+    }
+
+    public ExpNode ssaRewrite(Ssa ssa) {
+        return ssa.replacement(this);
+    }
+
+    public boolean isInvariant(Loops loops) {
+        return loops.isInvariant(this);
+    }
+
+    /**
+     * loopRewrite
+     * the load of an invariant global is hoisted; a local is as cheap to
+     * use as the local it would be hoisted into
+     */
+    public ExpNode loopRewrite(Loops loops) {
+        if (myInfo.isGlobal() && isInvariant(loops)) {
+            return loops.hoist(this);
         }
+        return this;
     }
 
-    public void codeGen() {
-        int offset = myInfo.getOffSet();
-        if(offset > 0) {
-            Codegen.generate("lw", Codegen.T0, "_" + myStrVal);
+    public ExpNode inlineCalls(Inliner inliner) {
+        inliner.read(myInfo);
+        return this;
+    }
+
+    public ExpNode inlineCopy(Inliner inliner) {
+        IdNode copy = (IdNode)shallowCopy();
+        SymInfo info = inliner.rename(this);
+        if (info != myInfo) {
+            copy.myInfo = info;
+            copy.myStrVal = inliner.name(info);
+        }
+        return copy;
+    }
+
+    public void genValue(int r) {
+        if (myInfo.getRegister() != null) {
+            Codegen.generate(Opcode.MOVE, Codegen.tmp(r), myInfo.getRegister());
         }
         else {
-            Codegen.generate("lw", Codegen.T0, Codegen.FP, offset);
+            genAccess(Opcode.LW, Codegen.tmp(r), 0);
         }
     }
 
-    public void genAddr() {
-        int offset = myInfo.getOffSet();
-        if(offset > 0) {
-            Codegen.generate("la", Codegen.T0, "_" + myStrVal);
+    public int value(Interpreter interp) {
+        return interp.load(myInfo, 0);
+    }
+
+    public void store(Interpreter interp, int val) {
+        interp.store(myInfo, 0, val);
+    }
+
+    public void genAddr(Register dest) {
+        genAddr(dest, 0);
+    }
+
+    /**
+     * genAddr
+     * put the address offset bytes into the variable into register dest
+     */
+    public void genAddr(Register dest, int offset) {
+        if(myInfo.isGlobal()) {
+            Codegen.generate(Opcode.LA, dest, label(offset));
         }
         else {
-            Codegen.generate("la", Codegen.T0, Codegen.FP, offset);
+            Codegen.genFrameAddr(dest, myInfo.getOffSet() + offset);
         }
     }
+
+    public void genStore(Register val, Register scratch) {
+        if (myInfo.getRegister() != null) {
+            Codegen.generate(Opcode.MOVE, myInfo.getRegister(), val);
+        }
+        else {
+            genAccess(Opcode.SW, val, 0);
+        }
+    }
+
+    /**
+     * genAccess
+     * load (op is lw) or store (sw) reg at offset bytes into the variable
+     * in memory, with the offset in the instruction itself: label+offset
+     * for a global, the offset from the frame for a local
+     */
+    public void genAccess(Opcode op, Register reg, int offset) {
+        if(myInfo.isGlobal()) {
+            Codegen.generate(op, reg, label(offset));
+        }
+        else {
+            Codegen.generateFrame(op, reg, myInfo.getOffSet() + offset);
+        }
+    }
+
+    private String label(int offset) {
+        if (offset == 0) {
+            return "_" + myStrVal;
+        }
+        return "_" + myStrVal + "+" + offset;
+    }
     private int myLineNum;
     private int myCharNum;
     private String myStrVal;
@@ -1785,8 +4250,7 @@ class DotAccessExpNode extends ExpNode {
                         structSymTab = ((StructDefInfo)info).getSymTable();
                     }
                     else {
-                        System.err.println("Unexpected Sym type in DotAccessExpNode");
-                        System.exit(-1);
+                        throw new InternalErrorException("Unexpected Sym type in DotAccessExpNode");
                     }
                 }
             }
@@ -1794,8 +4258,7 @@ class DotAccessExpNode extends ExpNode {
         }
         
         else { // don't know what kind of thing myLhs is
-            System.err.println("Unexpected node type in LHS of dot-access");
-            System.exit(-1);
+            throw new InternalErrorException("Unexpected node type in LHS of dot-access");
         }
         
         // do name analysis on RHS of dot-access in the struct's symbol table
@@ -1835,8 +4298,154 @@ class DotAccessExpNode extends ExpNode {
         }
     }
 
-    public void codeGen() {
+    public int numNodes() {
+        return 1 + myLhs.numNodes() + myId.numNodes();
+    }
 
+    public void collectReads(Set<SymInfo> reads) {
+        myLhs.collectReads(reads);
+    }
+
+    /**
+     * root
+     * the struct variable the chain of fields starts from, or null if
+     * the chain does not start from a variable
+     */
+    public IdNode root() {
+        if (myLhs instanceof IdNode) {
+            return (IdNode)myLhs;
+        }
+        if (myLhs instanceof DotAccessExpNode) {
+            return ((DotAccessExpNode)myLhs).root();
+        }
+        return null;
+    }
+
+    /**
+     * fieldOffset
+     * the offset of the field from the start of the root struct
+     */
+    public int fieldOffset() {
+        int offset = myId.info().getOffSet();
+        if (myLhs instanceof DotAccessExpNode) {
+            offset += ((DotAccessExpNode)myLhs).fieldOffset();
+        }
+        return offset;
+    }
+
+    /**
+     * ssaVar
+     * a field of a local struct is a variable of its own
+     */
+    public int ssaVar(Ssa ssa) {
+        IdNode root = root();
+        if (root == null) {
+            return -1;
+        }
+        return ssa.fieldVar(root.info(), fieldOffset(), myId.name(),
+                            myId.info().getType());
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        ssa.use(this);
+    }
+
+    public long evalLattice(Ssa ssa) {
+        return ssa.lattice(this);
+    }
+
+    public ExpNode ssaRewrite(Ssa ssa) {
+        return ssa.replacement(this);
+    }
+
+    public boolean isInvariant(Loops loops) {
+        return loops.isInvariant(this);
+    }
+
+    /**
+     * loopRewrite
+     * the load of an invariant field is hoisted
+     */
+    public ExpNode loopRewrite(Loops loops) {
+        if (isInvariant(loops)) {
+            return loops.hoist(this);
+        }
+        return this;
+    }
+
+    public ExpNode inlineCalls(Inliner inliner) {
+        IdNode root = root();
+        if (root != null) {
+            inliner.read(root.info());
+        }
+        return this;
+    }
+
+    public ExpNode inlineCopy(Inliner inliner) {
+        DotAccessExpNode copy = (DotAccessExpNode)shallowCopy();
+        copy.myLhs = myLhs.inlineCopy(inliner);
+        copy.myId = (IdNode)myId.shallowCopy();
+        return copy;
+    }
+
+    /**
+     * value
+     * the field at its offset in the root struct, as in genValue
+     */
+    public int value(Interpreter interp) {
+        return interp.load(root().info(), fieldOffset());
+    }
+
+    public void store(Interpreter interp, int val) {
+        interp.store(root().info(), fieldOffset(), val);
+    }
+
+    /**
+     * genValue
+     * load the field: a chain a.b.c from a variable is one load at the
+     * offset of the field in a (see fieldOffset), otherwise the field is
+     * loaded at its offset from the address of the struct
+     */
+    public void genValue(int r) {
+        Register reg = Codegen.tmp(r);
+        IdNode root = root();
+        if (root != null) {
+            root.genAccess(Opcode.LW, reg, fieldOffset());
+            return;
+        }
+        myLhs.genAddr(reg);
+        Codegen.generateIndexed(Opcode.LW, reg, reg, myId.info().getOffSet());
+    }
+
+    /**
+     * genAddr
+     * the address of the struct plus the offset of the field
+     */
+    public void genAddr(Register dest) {
+        IdNode root = root();
+        if (root != null) {
+            root.genAddr(dest, fieldOffset());
+            return;
+        }
+        myLhs.genAddr(dest);
+        int offset = myId.info().getOffSet();
+        if (offset != 0) {
+            Codegen.generate(Opcode.ADDU, dest, dest, offset);
+        }
+    }
+
+    /**
+     * genStore
+     * the store is one instruction like the load in genValue
+     */
+    public void genStore(Register val, Register scratch) {
+        IdNode root = root();
+        if (root != null) {
+            root.genAccess(Opcode.SW, val, fieldOffset());
+            return;
+        }
+        myLhs.genAddr(scratch);
+        Codegen.generateIndexed(Opcode.SW, val, scratch, myId.info().getOffSet());
     }
     // 2 kids
     private ExpNode myLhs;    
@@ -1849,6 +4458,7 @@ class AssignNode extends ExpNode {
     public AssignNode(ExpNode lhs, ExpNode exp) {
         myLhs = lhs;
         myRhs = exp;
+        label();
     }
     
     /**
@@ -1908,25 +4518,149 @@ class AssignNode extends ExpNode {
         if (typeLhs.isErrorType() || typeExp.isErrorType()) {
             retType = new ErrorType();
         }
-        
-        return retType;
+        
+        return retType;
+    }
+    
+    public void unparse(PrintWriter p, int indent) {
+        if (indent != -1)  p.print("(");
+        myLhs.unparse(p, 0);
+        p.print(" = ");
+        myRhs.unparse(p, 0);
+        if (indent != -1)  p.print(")");
+    }
+
+    public int numNodes() {
+        return 1 + myLhs.numNodes() + myRhs.numNodes();
+    }
+
+    public ExpNode fold() {
+        myRhs = myRhs.fold();
+        label();
+        return this;
+    }
+
+    /**
+     * Return the left-hand and right-hand sides of the assignment.
+     */
+    public ExpNode lhs() {
+        return myLhs;
+    }
+
+    public ExpNode rhs() {
+        return myRhs;
+    }
+
+    /**
+     * collectReads
+     * the variable assigned to is not read, but the struct of a field is
+     */
+    public void collectReads(Set<SymInfo> reads) {
+        if (!(myLhs instanceof IdNode)) {
+            myLhs.collectReads(reads);
+        }
+        myRhs.collectReads(reads);
+    }
+
+    public boolean isDeadStore(Set<SymInfo> reads) {
+        return myLhs.isDeadStore(reads);
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        ssa.assign(myLhs, myRhs, null);
+    }
+
+    public long evalLattice(Ssa ssa) {
+        return myRhs.evalLattice(ssa);
+    }
+
+    public ExpNode ssaRewrite(Ssa ssa) {
+        myRhs = myRhs.ssaRewrite(ssa);
+        label();
+        return this;
+    }
+
+    public void loopScan(Loops loops) {
+        loops.write(myLhs);
+        myRhs.loopScan(loops);
+    }
+
+    public ExpNode loopRewrite(Loops loops) {
+        myRhs = myRhs.loopRewrite(loops);
+        label();
+        return this;
+    }
+
+    public ExpNode inlineCalls(Inliner inliner) {
+        myRhs = myRhs.inlineCalls(inliner);
+        label();
+        inliner.assigned();
+        return this;
+    }
+
+    public ExpNode inlineCopy(Inliner inliner) {
+        AssignNode copy = (AssignNode)shallowCopy();
+        copy.myLhs = myLhs.inlineCopy(inliner);
+        copy.myRhs = myRhs.inlineCopy(inliner);
+        copy.label();
+        return copy;
+    }
+
+    public int value(Interpreter interp) {
+        int val = myRhs.value(interp);
+        myLhs.store(interp, val);
+        return val;
+    }
+
+    public void genValue(int r) {
+        genAssign(r);
+    }
+
+    /**
+     * label
+     * compute regNeed and hasCall from those of the right-hand side; it is
+     * called whenever the right-hand side is set, so that the code
+     * generator, which asks for them at every level, finds them here
+     */
+    private void label() {
+        // the right-hand side, and a temporary for the address of a field
+        myNeed = myRhs.regNeed();
+        if (!(myLhs instanceof IdNode)) {
+            myNeed = Math.max(myNeed, 2);
+        }
+        myCall = myRhs.hasCall();
     }
-    
-    public void unparse(PrintWriter p, int indent) {
-        if (indent != -1)  p.print("(");
-        myLhs.unparse(p, 0);
-        p.print(" = ");
-        myRhs.unparse(p, 0);
-        if (indent != -1)  p.print(")");
+
+    public int regNeed() {
+        return myNeed;
     }
 
-    public void codeGen() {
-        myLhs.codeGen();
-        myRhs.codeGen();
+    public boolean hasCall() {
+        return myCall;
+    }
+
+    public boolean hasSideEffects() {
+        return true;
+    }
+
+    /**
+     * genAssign
+     * store the value of the right-hand side, leaving it in temporary r;
+     * $v1 holds the address of a field when there is no temporary left
+     */
+    public void genAssign(int r) {
+        myRhs.genValue(r);
+        Register scratch = Codegen.V1;
+        if (r + 1 < Codegen.NUM_TEMPS) {
+            scratch = Codegen.tmp(r + 1);
+        }
+        myLhs.genStore(Codegen.tmp(r), scratch);
     }
     // 2 kids
     private ExpNode myLhs;
     private ExpNode myRhs;
+    private int myNeed;         // set by label
+    private boolean myCall;     // set by label
 }
 
 class CallExpNode extends ExpNode {
@@ -1979,8 +4713,7 @@ class CallExpNode extends ExpNode {
         FnInfo fnInfo = (FnInfo)(myId.info());
         
         if (fnInfo == null) {
-            System.err.println("null sym for Id in CallExpNode.typeCheck");
-            System.exit(-1);
+            throw new InternalErrorException("null sym for Id in CallExpNode.typeCheck");
         }
         
         if (myExpList.size() != fnInfo.getNumParams()) {
@@ -2003,8 +4736,97 @@ class CallExpNode extends ExpNode {
         p.print(")");
     }
 
-    public void codeGen() {
+    public int numNodes() {
+        return 1 + myId.numNodes() + (myExpList == null ? 0 : myExpList.numNodes());
+    }
+
+    public ExpNode fold() {
+        myExpList.fold();
+        return this;
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        myExpList.collectReads(reads);
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        myExpList.ssaVisit(ssa);
+    }
+
+    public ExpNode ssaRewrite(Ssa ssa) {
+        myExpList.ssaRewrite(ssa);
+        return this;
+    }
+
+    public void loopScan(Loops loops) {
+        loops.call();
+        myExpList.loopScan(loops);
+    }
+
+    public ExpNode loopRewrite(Loops loops) {
+        myExpList.loopRewrite(loops);
+        return this;
+    }
+
+    /**
+     * Return the id and the symbol of the function called, and the
+     * actuals.
+     */
+    public IdNode fnId() {
+        return myId;
+    }
+
+    public FnInfo fnInfo() {
+        return (FnInfo)myId.info();
+    }
+
+    public List<ExpNode> args() {
+        return myExpList.exps();
+    }
+
+    /**
+     * inlineCalls
+     * the actuals go first, so they are moved before the statement along
+     * with the call if it can be
+     */
+    public ExpNode inlineCalls(Inliner inliner) {
+        boolean movable = !inliner.isBlocked();
+        myExpList.inlineCalls(inliner);
+        return inliner.inline(this, movable);
+    }
+
+    public ExpNode inlineCopy(Inliner inliner) {
+        CallExpNode copy = (CallExpNode)shallowCopy();
+        copy.myId = (IdNode)myId.shallowCopy();
+        copy.myExpList = myExpList.inlineCopy(inliner);
+        return copy;
+    }
+
+    public int value(Interpreter interp) {
+        return interp.call(fnInfo(), args());
+    }
+
+    public void genValue(int r) {
+        genCall();
+        Codegen.generate(Opcode.MOVE, Codegen.tmp(r), Codegen.V0);
+    }
 
+    public boolean hasCall() {
+        return true;
+    }
+
+    /**
+     * genCall
+     * push the actuals, call the function and pop the actuals again,
+     * leaving the value returned, if any, in $v0
+     */
+    public void genCall() {
+        myExpList.codeGen();
+        myId.genJumpAndLink();
+        if (myExpList.size() != 0) {
+            Codegen.generate(Opcode.ADDU, Codegen.SP, Codegen.SP, 4 * myExpList.size());
+            Compilation.current().pushed(-4 * myExpList.size());
+        }
     }
     // 2 kids
     private IdNode myId;
@@ -2014,6 +4836,7 @@ class CallExpNode extends ExpNode {
 abstract class UnaryExpNode extends ExpNode {
     public UnaryExpNode(ExpNode exp) {
         myExp = exp;
+        label();
     }
     
     /**
@@ -2032,6 +4855,10 @@ abstract class UnaryExpNode extends ExpNode {
         return myExp.charNum();
     }
 
+    public int numNodes() {
+        return 1 + myExp.numNodes();
+    }
+
     /**
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -2040,17 +4867,148 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
     
-    public void codeGen() {
-        myExp.codeGen();
+    /**
+     * fold
+     * fold the operand, then the operator (see foldOp)
+     */
+    public ExpNode fold() {
+        myExp = myExp.fold();
+        label();
+        return foldOp();
+    }
+
+    /**
+     * foldOp
+     * the expression to use in place of this one, given the folded
+     * operand
+     */
+    abstract protected ExpNode foldOp();
+
+    public void collectReads(Set<SymInfo> reads) {
+        myExp.collectReads(reads);
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        myExp.ssaVisit(ssa);
+    }
+
+    public long evalLattice(Ssa ssa) {
+        long v = myExp.evalLattice(ssa);
+        return Ssa.isConstant(v) ? evalConst((int) v) : v;
+    }
+
+    /**
+     * evalConst
+     * the operator applied to a constant
+     */
+    abstract protected int evalConst(int v);
+
+    public ExpNode ssaRewrite(Ssa ssa) {
+        myExp = myExp.ssaRewrite(ssa);
+        label();
+        return this;
     }
+
+    public void loopScan(Loops loops) {
+        myExp.loopScan(loops);
+    }
+
+    /**
+     * isInvariant
+     * found once per loop and kept, as loopRewrite asks for it at every
+     * level
+     */
+    public boolean isInvariant(Loops loops) {
+        if (myInvariantLoop != loops.loop()) {
+            myInvariant = !hasSideEffects() && myExp.isInvariant(loops);
+            myInvariantLoop = loops.loop();
+        }
+        return myInvariant;
+    }
+
+    /**
+     * loopRewrite
+     * an invariant expression is hoisted whole
+     */
+    public ExpNode loopRewrite(Loops loops) {
+        if (isInvariant(loops)) {
+            return loops.hoist(this);
+        }
+        myExp = myExp.loopRewrite(loops);
+        label();
+        return this;
+    }
+
+    public ExpNode inlineCalls(Inliner inliner) {
+        myExp = myExp.inlineCalls(inliner);
+        label();
+        return this;
+    }
+
+    public ExpNode inlineCopy(Inliner inliner) {
+        UnaryExpNode copy = (UnaryExpNode)shallowCopy();
+        copy.myExp = myExp.inlineCopy(inliner);
+        copy.label();
+        return copy;
+    }
+
+    public int value(Interpreter interp) {
+        return evalConst(myExp.value(interp));
+    }
+
+    public void genValue(int r) {
+        myExp.genValue(r);
+        genOp(Codegen.tmp(r));
+    }
+
+    /**
+     * label
+     * take regNeed, hasCall and hasSideEffects from the operand; it is
+     * called whenever the operand is set
+     */
+    private void label() {
+        myNeed = myExp.regNeed();
+        myCall = myExp.hasCall();
+        mySideEffects = myExp.hasSideEffects();
+    }
+
+    public int regNeed() {
+        return myNeed;
+    }
+
+    public boolean hasCall() {
+        return myCall;
+    }
+
+    public boolean hasSideEffects() {
+        return mySideEffects;
+    }
+
+    /**
+     * genOp
+     * apply the operator to the operand in register reg, leaving the
+     * result in reg
+     */
+    abstract protected void genOp(Register reg);
+
     // one child
     protected ExpNode myExp;
+
+    // set by label
+    private int myNeed;
+    private boolean myCall;
+    private boolean mySideEffects;
+
+    // set by isInvariant, for the loop it was last asked for
+    private Object myInvariantLoop = null;
+    private boolean myInvariant;
 }
 
 abstract class BinaryExpNode extends ExpNode {
     public BinaryExpNode(ExpNode exp1, ExpNode exp2) {
         myExp1 = exp1;
         myExp2 = exp2;
+        label();
     }
     
     /**
@@ -2069,23 +5027,347 @@ abstract class BinaryExpNode extends ExpNode {
         return myExp1.charNum();
     }
 
+    public int numNodes() {
+        return 1 + myExp1.numNodes() + myExp2.numNodes();
+    }
+
+    /**
+     * nameAnalysis
+     * Given a symbol table symTab, perform name analysis on this node's 
+     * two children
+     */
+    public void nameAnalysis(SymTable symTab) {
+        myExp1.nameAnalysis(symTab);
+        myExp2.nameAnalysis(symTab);
+    }
+    
+    /**
+     * fold
+     * fold the operands, then the operator (see foldOp)
+     */
+    public ExpNode fold() {
+        myExp1 = myExp1.fold();
+        myExp2 = myExp2.fold();
+        label();
+        return foldOp();
+    }
+
+    /**
+     * foldOp
+     * the expression to use in place of this one, given the folded
+     * operands; this default version folds two literals with apply
+     */
+    protected ExpNode foldOp() {
+        if (myExp1.isConstant() && myExp2.isConstant()) {
+            return literal(apply(myExp1.constValue(), myExp2.constValue()));
+        }
+        return this;
+    }
+
+    /**
+     * apply
+     * the operator applied to two values; true is 1 and false is 0
+     */
+    abstract protected int apply(int v1, int v2);
+
+    /**
+     * literal
+     * the literal for a value of the operator; this default version is
+     * for the operators with bool values
+     */
+    protected ExpNode literal(int val) {
+        return boolLit(val != Codegen.FALSE);
+    }
+
+    /**
+     * Return the value of a bool: 1 for true and 0 for false.
+     */
+    protected static int truth(boolean val) {
+        return val ? Codegen.TRUE : Codegen.FALSE;
+    }
+
+    /**
+     * Return a literal at the position of this node.
+     */
+    protected ExpNode intLit(int val) {
+        return new IntLitNode(lineNum(), charNum(), val);
+    }
+
+    protected ExpNode boolLit(boolean val) {
+        if (val) {
+            return new TrueNode(lineNum(), charNum());
+        }
+        return new FalseNode(lineNum(), charNum());
+    }
+
+    /**
+     * Return true if exp is the literal val.
+     */
+    protected static boolean isLit(ExpNode exp, int val) {
+        return exp.isConstant() && exp.constValue() == val;
+    }
+
+    /**
+     * Return true if exp is the variable with the given info.
+     */
+    protected static boolean isVar(ExpNode exp, SymInfo info) {
+        return exp instanceof IdNode && ((IdNode)exp).info() == info;
+    }
+
+    public void collectReads(Set<SymInfo> reads) {
+        myExp1.collectReads(reads);
+        myExp2.collectReads(reads);
+    }
+
+    public void ssaVisit(Ssa ssa) {
+        myExp1.ssaVisit(ssa);
+        myExp2.ssaVisit(ssa);
+    }
+
+    public long evalLattice(Ssa ssa) {
+        return latticeOp(myExp1.evalLattice(ssa), myExp2.evalLattice(ssa));
+    }
+
+    /**
+     * latticeOp
+     * the lattice value of the operator applied to the lattice values of
+     * the operands (see Ssa); this default version evaluates two
+     * constants with eval
+     */
+    protected long latticeOp(long v1, long v2) {
+        if (v1 == Ssa.TOP || v2 == Ssa.TOP) {
+            return Ssa.TOP;
+        }
+        if (v1 == Ssa.BOTTOM || v2 == Ssa.BOTTOM) {
+            return Ssa.BOTTOM;
+        }
+        return apply((int) v1, (int) v2);
+    }
+
+    public ExpNode ssaRewrite(Ssa ssa) {
+        myExp1 = myExp1.ssaRewrite(ssa);
+        myExp2 = myExp2.ssaRewrite(ssa);
+        label();
+        return this;
+    }
+
+    public void loopScan(Loops loops) {
+        myExp1.loopScan(loops);
+        myExp2.loopScan(loops);
+    }
+
+    /**
+     * isInvariant
+     * found once per loop and kept, as loopRewrite asks for it at every
+     * level
+     */
+    public boolean isInvariant(Loops loops) {
+        if (myInvariantLoop != loops.loop()) {
+            myInvariant = !hasSideEffects() && myExp1.isInvariant(loops)
+                && myExp2.isInvariant(loops);
+            myInvariantLoop = loops.loop();
+        }
+        return myInvariant;
+    }
+
+    /**
+     * loopRewrite
+     * an invariant expression is hoisted whole
+     */
+    public ExpNode loopRewrite(Loops loops) {
+        if (isInvariant(loops)) {
+            return loops.hoist(this);
+        }
+        myExp1 = myExp1.loopRewrite(loops);
+        myExp2 = myExp2.loopRewrite(loops);
+        label();
+        return this;
+    }
+
+    /**
+     * inlineCalls
+     * a division that may trap must stay in its place; whether there is
+     * one is known from the labels of the inlined operands (see label),
+     * without walking them again
+     */
+    public ExpNode inlineCalls(Inliner inliner) {
+        myExp1 = myExp1.inlineCalls(inliner);
+        myExp2 = myExp2.inlineCalls(inliner);
+        label();
+        if (hasSideEffects()) {
+            inliner.block();
+        }
+        return this;
+    }
+
+    public ExpNode inlineCopy(Inliner inliner) {
+        BinaryExpNode copy = (BinaryExpNode)shallowCopy();
+        copy.myExp1 = myExp1.inlineCopy(inliner);
+        copy.myExp2 = myExp2.inlineCopy(inliner);
+        copy.label();
+        return copy;
+    }
+
+    /**
+     * label
+     * compute regNeed, hasCall and hasSideEffects from those of the
+     * operands; it is called whenever the operands are set, so that the
+     * code generator, which asks for them at every level, finds them here
+     */
+    protected void label() {
+        myNeed = need();
+        myCall = myExp1.hasCall() || myExp2.hasCall();
+        mySideEffects = sideEffects();
+    }
+
+    /**
+     * need
+     * the operand that needs more temporaries goes first and the other
+     * one is evaluated in what is left; if both need the same, one more
+     * temporary is needed to hold the first while the second is evaluated
+     */
+    protected int need() {
+        int need1 = myExp1.regNeed();
+        int need2 = myExp2.regNeed();
+        if (need1 == need2) {
+            return need1 + 1;
+        }
+        return Math.max(need1, need2);
+    }
+
+    /**
+     * sideEffects
+     * whether the expression has side effects, given the operands
+     */
+    protected boolean sideEffects() {
+        return myExp1.hasSideEffects() || myExp2.hasSideEffects();
+    }
+
+    public int regNeed() {
+        return myNeed;
+    }
+
+    public boolean hasCall() {
+        return myCall;
+    }
+
+    public boolean hasSideEffects() {
+        return mySideEffects;
+    }
+
+    public int value(Interpreter interp) {
+        return apply(myExp1.value(interp), myExp2.value(interp));
+    }
+
+    public void genValue(int r) {
+        Register[] regs = genOperands(r);
+        Codegen.generate(opcode(), Codegen.tmp(r), regs[0], regs[1]);
+    }
+
+    /**
+     * genJump
+     * a comparison branches on its operands (see branchOpcode) instead
+     * of computing its value
+     */
+    public void genJump(boolean sense, String label) {
+        Opcode op = branchOpcode(sense);
+        if (op == null) {
+            super.genJump(sense, label);
+            return;
+        }
+        Register[] regs = genOperands(0);
+        Codegen.generate(op, regs[0], regs[1], label);
+    }
+
+    /**
+     * genOperands
+     * evaluate both operands, returning the registers holding the left
+     * and the right one.  The operand that needs more temporaries is
+     * evaluated into temporary r first (operands with side effects are
+     * always evaluated left to right), then the other one into r+1.  If
+     * the temporaries from r+1 are too few for the second operand, or it
+     * contains a call, which clobbers every temporary, the first is
+     * spilled to the stack instead while the second is evaluated into r,
+     * and popped into $v1.  An operand already in a register (see
+     * valueReg) is used from there, the first one only if the second
+     * cannot assign to it.
+     */
+    protected Register[] genOperands(int r) {
+        boolean swap = myExp2.regNeed() > myExp1.regNeed()
+            && !myExp1.hasSideEffects() && !myExp2.hasSideEffects();
+        ExpNode first = swap ? myExp2 : myExp1;
+        ExpNode second = swap ? myExp1 : myExp2;
+        Register dest = Codegen.tmp(r);
+        Register firstReg = second.hasSideEffects() ? null : first.valueReg();
+        Register secondReg = second.valueReg();
+
+        if (firstReg == null) {
+            first.genValue(r);
+            firstReg = dest;
+        }
+        if (secondReg == null) {
+            if (firstReg != dest) {
+                second.genValue(r);
+                secondReg = dest;
+            }
+            else if (second.hasCall() || r + 1 + second.regNeed() > Codegen.NUM_TEMPS) {
+                Codegen.genPush(dest);
+                second.genValue(r);
+                Codegen.genPop(Codegen.V1);
+                firstReg = Codegen.V1;
+                secondReg = dest;
+            }
+            else {
+                second.genValue(r + 1);
+                secondReg = Codegen.tmp(r + 1);
+            }
+        }
+
+        if (swap) {
+            return new Register[] { secondReg, firstReg };
+        }
+        return new Register[] { firstReg, secondReg };
+    }
+
+    /**
+     * genOperand
+     * evaluate exp into temporary r, unless it is already in a register;
+     * return the register holding it
+     */
+    protected static Register genOperand(ExpNode exp, int r) {
+        Register reg = exp.valueReg();
+        if (reg == null) {
+            exp.genValue(r);
+            reg = Codegen.tmp(r);
+        }
+        return reg;
+    }
+
     /**
-     * nameAnalysis
-     * Given a symbol table symTab, perform name analysis on this node's 
-     * two children
+     * Return the instruction that computes the operator from two registers.
      */
-    public void nameAnalysis(SymTable symTab) {
-        myExp1.nameAnalysis(symTab);
-        myExp2.nameAnalysis(symTab);
-    }
-    
-    public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
+    abstract protected Opcode opcode();
+
+    /**
+     * Return the instruction that branches if the operator applied to two
+     * registers is sense, or null if there is none.
+     */
+    protected Opcode branchOpcode(boolean sense) {
+        return null;
     }
+
     // two kids
     protected ExpNode myExp1;
     protected ExpNode myExp2;
+
+    // set by label
+    private int myNeed;
+    private boolean myCall;
+    private boolean mySideEffects;
+
+    // set by isInvariant, for the loop it was last asked for
+    private Object myInvariantLoop = null;
+    private boolean myInvariant;
 }
 
 // **********************************************************************
@@ -2122,6 +5404,28 @@ class UnaryMinusNode extends UnaryExpNode {
         myExp.unparse(p, 0);
         p.print(")");
     }
+
+    /**
+     * foldOp
+     * -k is a literal and -(-e) is e
+     */
+    protected ExpNode foldOp() {
+        if (myExp.isConstant()) {
+            return new IntLitNode(lineNum(), charNum(), -myExp.constValue());
+        }
+        if (myExp instanceof UnaryMinusNode) {
+            return ((UnaryMinusNode)myExp).myExp;
+        }
+        return this;
+    }
+
+    protected int evalConst(int v) {
+        return -v;
+    }
+
+    protected void genOp(Register reg) {
+        Codegen.generate(Opcode.SUBU, reg, Codegen.ZERO, reg);
+    }
 }
 
 class NotNode extends UnaryExpNode {
@@ -2154,6 +5458,39 @@ class NotNode extends UnaryExpNode {
         myExp.unparse(p, 0);
         p.print(")");
     }
+
+    /**
+     * foldOp
+     * !true is false, !false is true and !!e is e
+     */
+    protected ExpNode foldOp() {
+        if (myExp.isConstant()) {
+            if (myExp.constValue() == Codegen.FALSE) {
+                return new TrueNode(lineNum(), charNum());
+            }
+            return new FalseNode(lineNum(), charNum());
+        }
+        if (myExp instanceof NotNode) {
+            return ((NotNode)myExp).myExp;
+        }
+        return this;
+    }
+
+    protected int evalConst(int v) {
+        return v ^ Codegen.TRUE;
+    }
+
+    protected void genOp(Register reg) {
+        Codegen.generate(Opcode.XORI, reg, reg, Codegen.TRUE);
+    }
+
+    /**
+     * genJump
+     * !e jumps where e does not
+     */
+    public void genJump(boolean sense, String label) {
+        myExp.genJump(!sense, label);
+    }
 }
 
 
@@ -2161,6 +5498,10 @@ abstract class ArithmeticExpNode extends BinaryExpNode {
     public ArithmeticExpNode(ExpNode exp1, ExpNode exp2) {
         super(exp1, exp2);
     }
+
+    protected ExpNode literal(int val) {
+        return intLit(val);
+    }
     
     /**
      * typeCheck
@@ -2221,6 +5562,88 @@ abstract class LogicalExpNode extends BinaryExpNode {
         
         return retType;
     }
+
+    /**
+     * shortValue
+     * the value of the left operand that decides the result without
+     * evaluating the right one
+     */
+    abstract protected int shortValue();
+
+    /**
+     * inlineCalls
+     * the right operand is not always evaluated, so its calls are left
+     * alone
+     */
+    public ExpNode inlineCalls(Inliner inliner) {
+        myExp1 = myExp1.inlineCalls(inliner);
+        label();
+        inliner.block();
+        return this;
+    }
+
+    /**
+     * need
+     * the right operand is evaluated into the same temporary as the left
+     * one if it is evaluated only when needed (see genValue)
+     */
+    protected int need() {
+        if (myExp2.hasSideEffects()) {
+            return Math.max(myExp1.regNeed(), myExp2.regNeed());
+        }
+        return super.need();
+    }
+
+    /**
+     * value
+     * the right operand is evaluated only if the left one does not decide
+     * the result
+     */
+    public int value(Interpreter interp) {
+        int val = myExp1.value(interp);
+        if (val == shortValue()) {
+            return val;
+        }
+        return myExp2.value(interp);
+    }
+
+    /**
+     * genValue
+     * a right operand with side effects is evaluated only if the left
+     * one does not decide the result; one without is simply evaluated,
+     * which saves the branch
+     */
+    public void genValue(int r) {
+        if (!myExp2.hasSideEffects()) {
+            super.genValue(r);
+            return;
+        }
+        String doneLabel = Codegen.nextLabel();
+        myExp1.genValue(r);
+        Codegen.generate(shortValue() == Codegen.TRUE ? Opcode.BNEZ : Opcode.BEQZ,
+                         Codegen.tmp(r), doneLabel);
+        myExp2.genValue(r);
+        Codegen.genLabel(doneLabel);
+    }
+
+    /**
+     * genJump
+     * if the left operand decides the result, jump where it decides it
+     * to; otherwise the right one decides where to jump
+     */
+    public void genJump(boolean sense, String label) {
+        boolean decides = shortValue() == Codegen.TRUE;
+        if (decides == sense) {
+            myExp1.genJump(sense, label);
+            myExp2.genJump(sense, label);
+        }
+        else {
+            String doneLabel = Codegen.nextLabel();
+            myExp1.genJump(decides, doneLabel);
+            myExp2.genJump(sense, label);
+            Codegen.genLabel(doneLabel);
+        }
+    }
 }
 
 abstract class EqualityExpNode extends BinaryExpNode {
@@ -2272,6 +5695,27 @@ abstract class EqualityExpNode extends BinaryExpNode {
         
         return retType;
     }
+
+    /**
+     * genJump
+     * comparing with 0 tests the other operand: e != 0 is true where e
+     * is and e == 0 where e is not
+     */
+    public void genJump(boolean sense, String label) {
+        ExpNode other = null;
+        if (isLit(myExp2, 0)) {
+            other = myExp1;
+        }
+        else if (isLit(myExp1, 0)) {
+            other = myExp2;
+        }
+        if (other == null) {
+            super.genJump(sense, label);
+        }
+        else {
+            other.genJump(sense == (branchOpcode(true) == Opcode.BNE), label);
+        }
+    }
 }
 
 abstract class RelationalExpNode extends BinaryExpNode {
@@ -2324,6 +5768,38 @@ class PlusNode extends ArithmeticExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    /**
+     * foldOp
+     * also e + 0 and 0 + e are e
+     */
+    protected ExpNode foldOp() {
+        if (isLit(myExp2, 0)) {
+            return myExp1;
+        }
+        if (isLit(myExp1, 0)) {
+            return myExp2;
+        }
+        return super.foldOp();
+    }
+
+    protected int apply(int v1, int v2) {
+        return v1 + v2;
+    }
+
+    public Integer stepOf(SymInfo info) {
+        if (isVar(myExp1, info) && myExp2.isConstant()) {
+            return myExp2.constValue();
+        }
+        if (isVar(myExp2, info) && myExp1.isConstant()) {
+            return myExp1.constValue();
+        }
+        return null;
+    }
+
+    protected Opcode opcode() {
+        return Opcode.ADDU;
+    }
 }
 
 class MinusNode extends ArithmeticExpNode {
@@ -2338,6 +5814,35 @@ class MinusNode extends ArithmeticExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    /**
+     * foldOp
+     * also e - 0 is e and 0 - e is -e
+     */
+    protected ExpNode foldOp() {
+        if (isLit(myExp2, 0)) {
+            return myExp1;
+        }
+        if (isLit(myExp1, 0) && !myExp2.isConstant()) {
+            return new UnaryMinusNode(myExp2).foldOp();
+        }
+        return super.foldOp();
+    }
+
+    protected int apply(int v1, int v2) {
+        return v1 - v2;
+    }
+
+    public Integer stepOf(SymInfo info) {
+        if (isVar(myExp1, info) && myExp2.isConstant()) {
+            return -myExp2.constValue();
+        }
+        return null;
+    }
+
+    protected Opcode opcode() {
+        return Opcode.SUBU;
+    }
 }
 
 class TimesNode extends ArithmeticExpNode {
@@ -2352,6 +5857,91 @@ class TimesNode extends ArithmeticExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    /**
+     * foldOp
+     * also e * 1 and 1 * e are e, e * -1 and -1 * e are -e, and e * 0
+     * and 0 * e are 0 unless e has side effects
+     */
+    protected ExpNode foldOp() {
+        if (myExp1.isConstant() && !myExp2.isConstant()) {
+            return times(myExp2, myExp1.constValue());
+        }
+        if (myExp2.isConstant() && !myExp1.isConstant()) {
+            return times(myExp1, myExp2.constValue());
+        }
+        return super.foldOp();
+    }
+
+    private ExpNode times(ExpNode exp, int val) {
+        if (val == 1) {
+            return exp;
+        }
+        if (val == -1) {
+            return new UnaryMinusNode(exp).foldOp();
+        }
+        if (val == 0 && !exp.hasSideEffects()) {
+            return intLit(0);
+        }
+        return this;
+    }
+
+    protected int apply(int v1, int v2) {
+        return v1 * v2;
+    }
+
+    /**
+     * latticeOp
+     * also e * 0 and 0 * e are 0 whatever e is
+     */
+    protected long latticeOp(long v1, long v2) {
+        if (v1 == 0 || v2 == 0) {
+            return 0;
+        }
+        return super.latticeOp(v1, v2);
+    }
+
+    /**
+     * loopScan
+     * the product may be of an induction variable
+     */
+    public void loopScan(Loops loops) {
+        super.loopScan(loops);
+        loops.product(this, myExp1, myExp2);
+    }
+
+    public ExpNode loopRewrite(Loops loops) {
+        ExpNode reduced = loops.reduced(this);
+        if (reduced != null) {
+            return reduced;
+        }
+        return super.loopRewrite(loops);
+    }
+
+    /**
+     * genValue
+     * a product by a constant may be shifts and an add (see
+     * Codegen.genMultiply)
+     */
+    public void genValue(int r) {
+        if (Codegen.reducingStrength()) {
+            if (myExp2.isConstant() && Codegen.canMultiply(myExp2.constValue())) {
+                Codegen.genMultiply(Codegen.tmp(r), genOperand(myExp1, r),
+                                    myExp2.constValue());
+                return;
+            }
+            if (myExp1.isConstant() && Codegen.canMultiply(myExp1.constValue())) {
+                Codegen.genMultiply(Codegen.tmp(r), genOperand(myExp2, r),
+                                    myExp1.constValue());
+                return;
+            }
+        }
+        super.genValue(r);
+    }
+
+    protected Opcode opcode() {
+        return Opcode.MUL;
+    }
 }
 
 class DivideNode extends ArithmeticExpNode {
@@ -2366,6 +5956,79 @@ class DivideNode extends ArithmeticExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    /**
+     * sideEffects
+     * a division may trap, unless it is by a literal other than 0 and -1
+     */
+    protected boolean sideEffects() {
+        if (myExp2.isConstant() && myExp2.constValue() != 0
+            && myExp2.constValue() != -1) {
+            return myExp1.hasSideEffects();
+        }
+        return true;
+    }
+
+    /**
+     * foldOp
+     * two literals are folded unless the division would trap at run time
+     * (by zero, or the overflowing MIN_VALUE / -1); also e / 1 is e
+     */
+    protected ExpNode foldOp() {
+        if (isLit(myExp2, 1)) {
+            return myExp1;
+        }
+        if (myExp2.isConstant() && myExp2.constValue() == 0) {
+            return this;
+        }
+        if (isLit(myExp1, Integer.MIN_VALUE) && isLit(myExp2, -1)) {
+            return this;
+        }
+        return super.foldOp();
+    }
+
+    protected int apply(int v1, int v2) {
+        return v1 / v2;
+    }
+
+    /**
+     * latticeOp
+     * a division that traps has no value
+     */
+    protected long latticeOp(long v1, long v2) {
+        if (v2 == 0 || (v1 == Integer.MIN_VALUE && v2 == -1)) {
+            return Ssa.BOTTOM;
+        }
+        return super.latticeOp(v1, v2);
+    }
+
+    /**
+     * value
+     * a division by zero stops the run (see Interpreter.divide)
+     */
+    public int value(Interpreter interp) {
+        return interp.divide(myExp1.value(interp), myExp2.value(interp));
+    }
+
+    /**
+     * genValue
+     * a quotient by a constant is shifts, or a multiplication by a magic
+     * number (see Codegen.genDivide)
+     */
+    public void genValue(int r) {
+        if (Codegen.reducingStrength() && myExp2.isConstant()) {
+            int val = myExp2.constValue();
+            if (val != 0 && val != 1 && val != -1) {
+                Codegen.genDivide(Codegen.tmp(r), genOperand(myExp1, r), val);
+                return;
+            }
+        }
+        super.genValue(r);
+    }
+
+    protected Opcode opcode() {
+        return Opcode.DIV;
+    }
 }
 
 class AndNode extends LogicalExpNode {
@@ -2380,6 +6043,58 @@ class AndNode extends LogicalExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    /**
+     * foldOp
+     * && short-circuits: false && e is false and true && e is e; also
+     * e && true is e, and e && false is false unless e has side effects
+     */
+    protected ExpNode foldOp() {
+        if (myExp1.isConstant()) {
+            return myExp1.constValue() == Codegen.FALSE ? myExp1 : myExp2;
+        }
+        if (isLit(myExp2, Codegen.TRUE)) {
+            return myExp1;
+        }
+        if (isLit(myExp2, Codegen.FALSE) && !myExp1.hasSideEffects()) {
+            return myExp2;
+        }
+        return this;
+    }
+
+    protected int apply(int v1, int v2) {
+        return truth(v1 != 0 && v2 != 0);
+    }
+
+    /**
+     * ssaVisit
+     * the right operand may not be evaluated
+     */
+    public void ssaVisit(Ssa ssa) {
+        myExp1.ssaVisit(ssa);
+        ssa.beginMaybe();
+        myExp2.ssaVisit(ssa);
+        ssa.endMaybe();
+    }
+
+    /**
+     * latticeOp
+     * false if either operand is false
+     */
+    protected long latticeOp(long v1, long v2) {
+        if (v1 == Codegen.FALSE || v2 == Codegen.FALSE) {
+            return Codegen.FALSE;
+        }
+        return super.latticeOp(v1, v2);
+    }
+
+    protected int shortValue() {
+        return Codegen.FALSE;
+    }
+
+    protected Opcode opcode() {
+        return Opcode.AND;
+    }
 }
 
 class OrNode extends LogicalExpNode {
@@ -2394,6 +6109,58 @@ class OrNode extends LogicalExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    /**
+     * foldOp
+     * || short-circuits: true || e is true and false || e is e; also
+     * e || false is e, and e || true is true unless e has side effects
+     */
+    protected ExpNode foldOp() {
+        if (myExp1.isConstant()) {
+            return myExp1.constValue() == Codegen.TRUE ? myExp1 : myExp2;
+        }
+        if (isLit(myExp2, Codegen.FALSE)) {
+            return myExp1;
+        }
+        if (isLit(myExp2, Codegen.TRUE) && !myExp1.hasSideEffects()) {
+            return myExp2;
+        }
+        return this;
+    }
+
+    protected int apply(int v1, int v2) {
+        return truth(v1 != 0 || v2 != 0);
+    }
+
+    /**
+     * ssaVisit
+     * the right operand may not be evaluated
+     */
+    public void ssaVisit(Ssa ssa) {
+        myExp1.ssaVisit(ssa);
+        ssa.beginMaybe();
+        myExp2.ssaVisit(ssa);
+        ssa.endMaybe();
+    }
+
+    /**
+     * latticeOp
+     * true if either operand is true
+     */
+    protected long latticeOp(long v1, long v2) {
+        if (v1 == Codegen.TRUE || v2 == Codegen.TRUE) {
+            return Codegen.TRUE;
+        }
+        return super.latticeOp(v1, v2);
+    }
+
+    protected int shortValue() {
+        return Codegen.TRUE;
+    }
+
+    protected Opcode opcode() {
+        return Opcode.OR;
+    }
 }
 
 class EqualsNode extends EqualityExpNode {
@@ -2408,6 +6175,18 @@ class EqualsNode extends EqualityExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    protected int apply(int v1, int v2) {
+        return truth(v1 == v2);
+    }
+
+    protected Opcode opcode() {
+        return Opcode.SEQ;
+    }
+
+    protected Opcode branchOpcode(boolean sense) {
+        return sense ? Opcode.BEQ : Opcode.BNE;
+    }
 }
 
 class NotEqualsNode extends EqualityExpNode {
@@ -2422,6 +6201,18 @@ class NotEqualsNode extends EqualityExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    protected int apply(int v1, int v2) {
+        return truth(v1 != v2);
+    }
+
+    protected Opcode opcode() {
+        return Opcode.SNE;
+    }
+
+    protected Opcode branchOpcode(boolean sense) {
+        return sense ? Opcode.BNE : Opcode.BEQ;
+    }
 }
 
 class LessNode extends RelationalExpNode {
@@ -2436,6 +6227,18 @@ class LessNode extends RelationalExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    protected int apply(int v1, int v2) {
+        return truth(v1 < v2);
+    }
+
+    protected Opcode opcode() {
+        return Opcode.SLT;
+    }
+
+    protected Opcode branchOpcode(boolean sense) {
+        return sense ? Opcode.BLT : Opcode.BGE;
+    }
 }
 
 class GreaterNode extends RelationalExpNode {
@@ -2450,6 +6253,18 @@ class GreaterNode extends RelationalExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    protected int apply(int v1, int v2) {
+        return truth(v1 > v2);
+    }
+
+    protected Opcode opcode() {
+        return Opcode.SGT;
+    }
+
+    protected Opcode branchOpcode(boolean sense) {
+        return sense ? Opcode.BGT : Opcode.BLE;
+    }
 }
 
 class LessEqNode extends RelationalExpNode {
@@ -2464,6 +6279,18 @@ class LessEqNode extends RelationalExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    protected int apply(int v1, int v2) {
+        return truth(v1 <= v2);
+    }
+
+    protected Opcode opcode() {
+        return Opcode.SLE;
+    }
+
+    protected Opcode branchOpcode(boolean sense) {
+        return sense ? Opcode.BLE : Opcode.BGT;
+    }
 }
 
 class GreaterEqNode extends RelationalExpNode {
@@ -2478,4 +6305,16 @@ class GreaterEqNode extends RelationalExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    protected int apply(int v1, int v2) {
+        return truth(v1 >= v2);
+    }
+
+    protected Opcode opcode() {
+        return Opcode.SGE;
+    }
+
+    protected Opcode branchOpcode(boolean sense) {
+        return sense ? Opcode.BGE : Opcode.BLT;
+    }
 }